@@ -0,0 +1,8 @@
+#!/bin/bash
+
+# Builds the JMH benchmark module and runs it. Any arguments are passed on to
+# JMH, e.g. "./bench.sh Messaging -rf json" runs only MessagingBenchmark and
+# writes the results to jmh-result.json.
+
+(cd bench && mvn -q -B package) || exit 1
+java -cp bench/target/benchmarks.jar:./jars/plume.jar:./jars/java-json.jar org.openjdk.jmh.Main "$@"
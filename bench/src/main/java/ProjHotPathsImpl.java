@@ -0,0 +1,120 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.washington.cs.cse490h.bench.ProjHotPaths;
+import edu.washington.cs.cse490h.lib.BenchHarness;
+import edu.washington.cs.cse490h.lib.Node;
+import edu.washington.cs.cse490h.lib.Utility;
+
+/**
+ * Default package half of ProjBenchmark. See ProjHotPaths for why this exists.
+ */
+public class ProjHotPathsImpl implements ProjHotPaths {
+	private static final String WRITE_FILE = "bench_write";
+	private static final String APPEND_FILE = "bench_append";
+	private static final String READ_FILE = "bench_read";
+	private static final int READ_LINES = 32;
+
+	private RIOPacket rioPacket;
+	private byte[] rioPacked;
+
+	private RPCNode.RPCCallBundle bundle;
+	private byte[] bundleBytes;
+
+	private NFSService nfs;
+	private String line;
+	private String storageRoot;
+
+	public void setUp(int payloadSize, String storageRoot) throws IOException {
+		this.storageRoot = storageRoot;
+		Utility.setStorageRoot(storageRoot);
+		BenchHarness harness = new BenchHarness(490);
+
+		Random rand = new Random(490);
+		byte[] payload = new byte[payloadSize];
+		rand.nextBytes(payload);
+		rioPacket = new RIOPacket(Protocol.DATA, 42, payload);
+		rioPacked = rioPacket.pack();
+
+		// a commit request whose appended line carries roughly payloadSize bytes
+		line = Utility.bytesToHexString(payload).substring(0, payloadSize);
+		NFSTransaction transaction = new NFSTransaction.Builder(1)
+				.appendLine("tweets", line).build();
+		List<MCCNode.MCCFileData> files = new ArrayList<MCCNode.MCCFileData>();
+		files.add(new MCCNode.MCCFileData(0, "tweets", null, false));
+		RPCNode.RPCMsg msg = new MCCNode.MCCMsg(files, transaction);
+		bundle = new RPCNode.RPCCallBundle(msg.getId(),
+				RPCNode.RPCCallType.REQUEST, RPCNode.RPCMsgType.COMMIT, msg);
+		bundleBytes = RPCNode.RPCCallBundle.serialize(bundle);
+
+		Node node = new Node() {
+			public void start() {}
+			public void onReceive(Integer from, int protocol, byte[] msg) {}
+			public void onCommand(String command) {}
+		};
+		harness.attach(node, 0);
+		nfs = new NFSService(node);
+
+		StringBuilder contents = new StringBuilder();
+		for (int i = 0; i < READ_LINES; i++) {
+			if (i != 0) {
+				contents.append('\n');
+			}
+			contents.append(line);
+		}
+		nfs.write(READ_FILE, contents.toString());
+	}
+
+	public void tearDown() throws IOException {
+		deleteRecursively(new File(storageRoot));
+	}
+
+	public void resetAppendFile() throws IOException {
+		nfs.write(APPEND_FILE, "");
+	}
+
+	public byte[] rioPack() {
+		return rioPacket.pack();
+	}
+
+	public Object rioUnpack() {
+		return RIOPacket.unpack(rioPacked);
+	}
+
+	public byte[] rpcSerialize() {
+		return RPCNode.RPCCallBundle.serialize(bundle);
+	}
+
+	public Object rpcDeserialize() {
+		return RPCNode.RPCCallBundle.deserialize(bundleBytes);
+	}
+
+	public int rpcExtractMessageId() {
+		return RPCNode.extractMessageId(bundleBytes);
+	}
+
+	public boolean nfsWrite() throws IOException {
+		return nfs.write(WRITE_FILE, line);
+	}
+
+	public boolean nfsAppend() throws IOException {
+		return nfs.append(APPEND_FILE, line);
+	}
+
+	public List<String> nfsRead() throws IOException {
+		return nfs.read(READ_FILE);
+	}
+
+	private static void deleteRecursively(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,97 @@
+package edu.washington.cs.cse490h.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Microbenchmarks for the project hot paths: the RIO header, RPC bundle
+ * serialization and NFSService file operations against a temp directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProjBenchmark {
+
+    @Param({ "16", "256", "4096" })
+    public int payloadSize;
+
+    private ProjHotPaths paths;
+    private String storageRoot;
+
+    @Setup
+    public void setUp() throws Exception {
+        storageRoot = Files.createTempDirectory("nfsbench").toString();
+        paths = (ProjHotPaths) Class.forName(ProjHotPaths.IMPL_CLASS)
+                .newInstance();
+        paths.setUp(payloadSize, storageRoot);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetAppendFile() throws IOException {
+        paths.resetAppendFile();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        paths.tearDown();
+    }
+
+    @Benchmark
+    public byte[] rioPacketPack() {
+        return paths.rioPack();
+    }
+
+    @Benchmark
+    public Object rioPacketUnpack() {
+        return paths.rioUnpack();
+    }
+
+    @Benchmark
+    public byte[] rpcBundleSerialize() {
+        return paths.rpcSerialize();
+    }
+
+    @Benchmark
+    public Object rpcBundleDeserialize() {
+        return paths.rpcDeserialize();
+    }
+
+    @Benchmark
+    public int rpcExtractMessageId() {
+        return paths.rpcExtractMessageId();
+    }
+
+    @Benchmark
+    public boolean nfsWrite() throws IOException {
+        return paths.nfsWrite();
+    }
+
+    @Benchmark
+    public boolean nfsAppend() throws IOException {
+        return paths.nfsAppend();
+    }
+
+    @Benchmark
+    public List<String> nfsRead() throws IOException {
+        return paths.nfsRead();
+    }
+}
@@ -0,0 +1,47 @@
+package edu.washington.cs.cse490h.bench;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The project classes live in the default package, which neither JMH nor any
+ * named package can refer to. The default package class ProjHotPathsImpl
+ * implements this interface and the benchmarks load it reflectively, so every
+ * call below goes straight to the project code.
+ */
+public interface ProjHotPaths {
+    /** Name of the default package implementation of this interface */
+    String IMPL_CLASS = "ProjHotPathsImpl";
+
+    /**
+     * Build the messages and the storage node used by the other methods.
+     * 
+     * @param payloadSize
+     *            Approximate number of application bytes per message
+     * @param storageRoot
+     *            Directory to keep node storage in
+     */
+    void setUp(int payloadSize, String storageRoot) throws IOException;
+
+    /** Remove everything that setUp and the storage methods wrote */
+    void tearDown() throws IOException;
+
+    /** Truncate the file that the append benchmark grows */
+    void resetAppendFile() throws IOException;
+
+    byte[] rioPack();
+
+    Object rioUnpack();
+
+    byte[] rpcSerialize();
+
+    Object rpcDeserialize();
+
+    int rpcExtractMessageId();
+
+    boolean nfsWrite() throws IOException;
+
+    boolean nfsAppend() throws IOException;
+
+    List<String> nfsRead() throws IOException;
+}
@@ -0,0 +1,58 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Minimal Manager that lets benchmarks drive a node's storage code outside of
+ * a Simulator or an Emulator. Writes never crash, nothing is logged and every
+ * packet the node sends is dropped.
+ */
+public class BenchHarness extends Manager {
+
+    /**
+     * Create a harness whose random number generator is seeded with seed
+     * 
+     * @param seed
+     *            Seed for Utility.getRNG()
+     * @throws IOException
+     *             If the Manager fails to set up its input reader
+     */
+    public BenchHarness(long seed) throws IOException {
+        super(Node.class, seed, "", "");
+        Utility.randNumGen = new Random(seed);
+        setTime(0);
+    }
+
+    /**
+     * Bind a node to this harness so that it can use persistent storage.
+     * 
+     * @param node
+     *            The node to bind
+     * @param addr
+     *            The address the node should think it has
+     */
+    public void attach(Node node, int addr) {
+        node.init(this, addr);
+    }
+
+    @Override
+    protected void start() {
+    }
+
+    @Override
+    protected void sendPkt(Node fromNode, int to, int protocol, byte[] payload) {
+    }
+
+    @Override
+    protected void checkWriteCrash(Node n, String description) {
+    }
+
+    @Override
+    protected void storageWriteEvent(Node node, String description) {
+    }
+
+    @Override
+    protected void storageReadEvent(Node node, String description) {
+    }
+}
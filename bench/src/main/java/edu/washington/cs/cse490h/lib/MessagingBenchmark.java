@@ -0,0 +1,130 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Microbenchmarks for the MessageLayer hot paths: the Packet wire format,
+ * vector clocks and the Utility encoding/crypto helpers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessagingBenchmark {
+
+    @Param({ "16", "256", "4096" })
+    public int payloadSize;
+
+    private Packet packet;
+    private byte[] packed;
+    private ByteBuffer directBuf;
+    private ByteBuffer packedBuf;
+
+    private VectorTime vtime;
+    private VectorTime otherVtime;
+
+    private byte[] bytes;
+    private String hex;
+    private String hashInput;
+    private byte[] salt;
+    private byte[] aesKey;
+
+    @Setup
+    public void setUp() {
+        Random rand = new Random(490);
+
+        byte[] payload = new byte[payloadSize];
+        rand.nextBytes(payload);
+        packet = new Packet(1, 0, 0, payload);
+        packed = packet.pack();
+        directBuf = ByteBuffer.allocateDirect(BufferPool.BUFFER_SIZE);
+        packedBuf = ByteBuffer.allocateDirect(packed.length);
+        packedBuf.put(packed).flip();
+
+        vtime = new VectorTime(Manager.INITIAL_VECTOR_LENGTH);
+        otherVtime = new VectorTime(Manager.INITIAL_VECTOR_LENGTH);
+        for (int i = 0; i < Manager.INITIAL_VECTOR_LENGTH; i++) {
+            for (int j = rand.nextInt(4); j > 0; j--) {
+                otherVtime.step(i);
+            }
+        }
+
+        bytes = payload;
+        hex = Utility.bytesToHexString(bytes);
+        hashInput = Utility.byteArrayToString(Utility.stringToByteArray(hex));
+        salt = new byte[16];
+        rand.nextBytes(salt);
+        aesKey = new byte[16];
+        rand.nextBytes(aesKey);
+    }
+
+    @Benchmark
+    public byte[] packetPack() {
+        return packet.pack();
+    }
+
+    @Benchmark
+    public Packet packetUnpack() throws Packet.CorruptPacketException {
+        return Packet.unpack(packed);
+    }
+
+    @Benchmark
+    public ByteBuffer packetEncode() {
+        directBuf.clear();
+        packet.encode(directBuf);
+        return directBuf;
+    }
+
+    @Benchmark
+    public Packet packetDecode() throws Packet.CorruptPacketException {
+        packedBuf.rewind();
+        return Packet.decode(packedBuf);
+    }
+
+    @Benchmark
+    public VectorTime vectorTimeUpdateTo() {
+        vtime.updateTo(otherVtime);
+        return vtime;
+    }
+
+    @Benchmark
+    public String vectorTimeToString() {
+        return otherVtime.toString();
+    }
+
+    @Benchmark
+    public String bytesToHexString() {
+        return Utility.bytesToHexString(bytes);
+    }
+
+    @Benchmark
+    public byte[] hexStringToByteArray() {
+        return Utility.hexStringToByteArray(hex);
+    }
+
+    @Benchmark
+    public byte[] aesEncrypt() {
+        return Utility.AESEncrypt(bytes, aesKey);
+    }
+
+    @Benchmark
+    public byte[] hashBytes() {
+        return Utility.hashBytes(hashInput, salt);
+    }
+}
@@ -0,0 +1,351 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+
+import plume.Option;
+import plume.OptionGroup;
+import plume.Options;
+
+import edu.washington.cs.cse490h.lib.Manager.FailureLvl;
+
+/**
+ * <pre>
+ *
+ * Runs the end-to-end scenarios headless in the Simulator at increasing node
+ * counts and operation counts, and prints one tab separated row per run.
+ *
+ * Usage: java ScenarioBenchmark [options]
+ *  --scenarios=<string>  - Comma separated scenarios: rio,2pc,paxos,twitter [default rio,2pc,paxos,twitter]
+ *  --sizes=<string>      - Comma separated node counts [default 4,8,16]
+ *  --ops=<string>        - Comma separated operation counts [default 1,2]
+ *  --maxSteps=<long>     - Time steps simulated past the end of the script [default 500]
+ *  --scriptDir=<string>  - Directory holding PaxosSanityTest and TwitterTest [default scripts]
+ *  -o --out=<string>     - File to append the report to, stdout if empty [default ]
+ *
+ * </pre>
+ *
+ * The scenarios are:
+ *
+ * rio: every RIOTester node sends 20 * ops + 1 messages to every node,
+ * itself included, one per time step.
+ *
+ * 2pc: node 0 runs one Node2PC vote across all nodes. ops is always 1.
+ *
+ * Both rio and 2pc number their nodes from 0, so at more than 255 nodes
+ * the broadcast address 255 is left out and that node never starts.
+ *
+ * paxos, twitter: the PaxosSanityTest and TwitterTest scripts, run by every
+ * client against the servers in ServerList and repeated ops times. Nodes
+ * other than the servers are clients, and every client works on its own
+ * user names so that the runs do not conflict.
+ *
+ * Each run starts from an empty storage directory. The scenarios use
+ * FailureLvl.NOTHING, so drops, delays and crashes follow the node classes'
+ * rates and the simulator's fixed command file seed. Runs that still have
+ * work left after the script plus maxSteps time steps are cut off and
+ * reported as incomplete. A run whose nodes throw reports the exception in
+ * the status column along with the counters up to that point.
+ */
+public class ScenarioBenchmark {
+
+    @OptionGroup("Scenario Options")
+    @Option(value = "Comma separated scenarios: rio,2pc,paxos,twitter")
+    public static String scenarios = "rio,2pc,paxos,twitter";
+
+    @Option(value = "Comma separated node counts")
+    public static String sizes = "4,8,16";
+
+    @Option(value = "Comma separated operation counts")
+    public static String ops = "1,2";
+
+    @Option(value = "Time steps simulated past the end of the script")
+    public static long maxSteps = 500;
+
+    @Option(value = "Directory holding PaxosSanityTest and TwitterTest")
+    public static String scriptDir = "scripts";
+
+    @Option(value = "-o File to append the report to, stdout if empty")
+    public static String out = "";
+
+    private static String usage_string = "java ScenarioBenchmark [options]";
+
+    private static final String HEADER = "scenario\tnodes\tops\tstatus\tcompleted"
+            + "\twall_ms\ttimesteps\tpackets\tbytes\tstorage_writes"
+            + "\tstorage_reads\tpeak_heap_bytes";
+
+    /**
+     * A command script and the number of nodes it starts
+     */
+    private static class Script {
+        private final List<String> lines = new ArrayList<String>();
+        private int nodes;
+        private int timesteps;
+
+        private void add(String line) {
+            lines.add(line);
+            if (line.trim().equals("time")) {
+                timesteps++;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(usage_string, ScenarioBenchmark.class);
+        options.parse_or_usage(args);
+
+        PrintStream report = System.out;
+        if (!out.equals("")) {
+            report = new PrintStream(new FileOutputStream(out, true), true);
+        }
+
+        report.println("# " + new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ")
+                .format(new Date()) + " java " + System.getProperty("java.version")
+                + " maxSteps " + maxSteps);
+        report.println(HEADER);
+
+        for (String scenario : scenarios.split(",")) {
+            scenario = scenario.trim();
+            for (String size : sizes.split(",")) {
+                for (String op : ops.split(",")) {
+                    int n = Integer.parseInt(size.trim());
+                    int o = Integer.parseInt(op.trim());
+                    if (scenario.equals("2pc") && o != 1) {
+                        continue;
+                    }
+                    report.println(run(scenario, n, o));
+                }
+            }
+        }
+
+        if (report != System.out) {
+            report.close();
+        }
+    }
+
+    /**
+     * Runs one scenario in a fresh Simulator and storage directory
+     *
+     * @return The report row for the run
+     */
+    private static String run(String scenario, int size, int ops)
+            throws IOException {
+        File root = File.createTempFile("scenario", "");
+        root.delete();
+        root.mkdirs();
+
+        String status = "ok";
+        boolean completed = false;
+        long start = 0;
+        long wallNanos = 0;
+        long peakHeap = 0;
+        Simulator sim = null;
+        Script script = null;
+
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        try {
+            script = buildScript(scenario, size, ops);
+            File scriptFile = new File(root, "commands");
+            PrintStream w = new PrintStream(new FileOutputStream(scriptFile));
+            for (String line : script.lines) {
+                w.println(line);
+            }
+            w.close();
+
+            Utility.setStorageRoot(new File(root, "storage").getPath());
+            System.gc();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+
+            // framework output is turned off at the source; what the nodes
+            // print themselves still needs somewhere to go
+            Console.setLevel(Console.QUIET);
+            PrintStream quiet = new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+            System.setOut(quiet);
+            System.setErr(quiet);
+
+            start = System.nanoTime();
+            sim = new Simulator(nodeClass(scenario), FailureLvl.NOTHING, null,
+                    "", "", scriptFile.getPath());
+            completed = sim.runEmbedded(script.timesteps + maxSteps);
+        } catch (Throwable t) {
+            // node code that throws ends the simulation just as it would
+            // from the command line; report how far the run got
+            status = t.getClass().getSimpleName();
+        } finally {
+            if (start != 0) {
+                wallNanos = System.nanoTime() - start;
+                for (MemoryPoolMXBean pool : ManagementFactory
+                        .getMemoryPoolMXBeans()) {
+                    if (pool.getType() == MemoryType.HEAP) {
+                        peakHeap += pool.getPeakUsage().getUsed();
+                    }
+                }
+            }
+            System.setOut(stdout);
+            System.setErr(stderr);
+            Console.setLevel(Console.TRACE);
+            Utility.setStorageRoot("storage");
+            delete(root);
+        }
+
+        return scenario + "\t" + (script == null ? size : script.nodes) + "\t"
+                + ops + "\t" + status + "\t" + completed + "\t"
+                + (wallNanos / 1000000) + "\t"
+                + (sim == null ? 0 : sim.now()) + "\t"
+                + (sim == null ? 0 : sim.getPacketsSent()) + "\t"
+                + (sim == null ? 0 : sim.getBytesSent()) + "\t"
+                + (sim == null ? 0 : sim.getStorageWrites()) + "\t"
+                + (sim == null ? 0 : sim.getStorageReads()) + "\t" + peakHeap;
+    }
+
+    private static Class<? extends Node> nodeClass(String scenario)
+            throws ClassNotFoundException {
+        String name;
+        if (scenario.equals("rio")) {
+            name = "RIOTester";
+        } else if (scenario.equals("2pc")) {
+            name = "Node2PC";
+        } else if (scenario.equals("paxos") || scenario.equals("twitter")) {
+            name = "TwitterNode";
+        } else {
+            throw new IllegalArgumentException("Unknown scenario: " + scenario);
+        }
+        return Class.forName(name).asSubclass(Node.class);
+    }
+
+    /**
+     * Writes the command script for a scenario. The node classes live in the
+     * default package, so their sizing knobs are set reflectively.
+     */
+    private static Script buildScript(String scenario, int size, int ops)
+            throws Exception {
+        Script script = new Script();
+        if (scenario.equals("rio")) {
+            Class.forName("RIOTester").getField("NUM_NODES").setInt(null, size);
+            Class.forName("RIOTester").getField("NUM_DELIVERIES")
+                    .setInt(null, 20 * ops);
+            for (int i = 0; i < size; ++i) {
+                script.add("start " + i);
+            }
+            script.add("time");
+            for (int i = 0; i < size; ++i) {
+                script.add(i + " begin");
+            }
+            // a RIOTester node sends one message per time step, the numbers
+            // 0 to NUM_DELIVERIES to each node, itself included
+            script.timesteps += size * (20 * ops + 1);
+            script.nodes = size;
+        } else if (scenario.equals("2pc")) {
+            Class.forName("Node2PC").getField("NUM_NODES").setInt(null, size);
+            for (int i = 0; i < size; ++i) {
+                script.add("start " + i);
+            }
+            script.add("time");
+            script.add("0 initVote");
+            script.nodes = size;
+        } else if (scenario.equals("paxos")) {
+            scaleClientScript(script, new File(scriptDir, "PaxosSanityTest"),
+                    size, ops);
+        } else if (scenario.equals("twitter")) {
+            scaleClientScript(script, new File(scriptDir, "TwitterTest"),
+                    size, ops);
+        } else {
+            throw new IllegalArgumentException("Unknown scenario: " + scenario);
+        }
+        return script;
+    }
+
+    /**
+     * Rewrites a script written for client 0 so that every client runs it,
+     * ops times over. The first client's first round is the script as
+     * written; every other round suffixes each argument with the client and
+     * round so that user names stay distinct.
+     */
+    private static void scaleClientScript(Script script, File base, int size,
+            int ops) throws IOException {
+        TreeSet<Integer> started = new TreeSet<Integer>();
+        List<String> body = new ArrayList<String>();
+
+        BufferedReader reader = new BufferedReader(new FileReader(base));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts[0].equals("start")) {
+                started.add(Integer.parseInt(parts[1]));
+            } else if (!line.trim().equals("")) {
+                body.add(line.trim());
+            }
+        }
+        reader.close();
+
+        List<Integer> clients = new ArrayList<Integer>();
+        clients.add(0);
+        for (int addr : ServerList.serverNodes) {
+            started.add(addr);
+        }
+        for (int addr = 0; started.size() + clients.size() - 1 < size; ++addr) {
+            if (!started.contains(addr) && addr != Manager.BROADCAST_ADDRESS) {
+                clients.add(addr);
+            }
+        }
+        started.addAll(clients);
+
+        for (int addr : started) {
+            script.add("start " + addr);
+        }
+        for (int round = 0; round < ops; ++round) {
+            for (String command : body) {
+                String[] parts = command.split("\\s+");
+                if (!parts[0].equals("0")) {
+                    script.add(command);
+                    continue;
+                }
+                for (int client : clients) {
+                    String suffix = (client == 0 && round == 0) ? ""
+                            : "_" + client + "_" + round;
+                    StringBuilder sb = new StringBuilder();
+                    sb.append(client).append(' ').append(parts[1]);
+                    for (int i = 2; i < parts.length; ++i) {
+                        sb.append(' ').append(parts[i]).append(suffix);
+                    }
+                    script.add(sb.toString());
+                }
+            }
+        }
+        script.nodes = started.size();
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,52 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct ByteBuffers of one size, shared by every connection in
+ * the process. Direct buffers are expensive to allocate and are the only
+ * kind a channel can write without copying, so they are kept and reused.
+ */
+class BufferPool {
+	// Big enough for the packets the student protocols send
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	// Buffers beyond this many are left to the garbage collector
+	private static final int MAX_POOLED = 256;
+
+	private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * @return A cleared buffer of BUFFER_SIZE bytes
+	 */
+	static ByteBuffer acquire() {
+		ByteBuffer buf = pool.poll();
+		if (buf == null) {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		pooled.decrementAndGet();
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not use it afterwards.
+	 * Buffers that did not come from acquire() are ignored.
+	 *
+	 * @param buf
+	 *            The buffer to return
+	 */
+	static void release(ByteBuffer buf) {
+		if (buf == null || !buf.isDirect() || buf.capacity() != BUFFER_SIZE) {
+			return;
+		}
+		if (pooled.incrementAndGet() > MAX_POOLED) {
+			pooled.decrementAndGet();
+			return;
+		}
+		pool.offer(buf);
+	}
+}
@@ -0,0 +1,94 @@
+package edu.washington.cs.cse490h.lib;
+
+/**
+ * Level-gated sink for the console output of the framework and of the
+ * message layers built on it. Prompts that ask the user for input do not go
+ * through here and are always printed.
+ *
+ * Messages that are expensive to build should be guarded with isEnabled() so
+ * that nothing is built when the level is off:
+ *
+ * <pre>
+ * if (Console.isEnabled(Console.TRACE)) {
+ *     Console.println(Console.TRACE, &quot;Randomly dropping: &quot; + p);
+ * }
+ * </pre>
+ */
+public class Console {
+
+    /**
+     * Nothing. Used for headless runs.
+     */
+    public static final int QUIET = 0;
+
+    /**
+     * Once per run: the seed, the exit stats and the final node states.
+     */
+    public static final int INFO = 1;
+
+    /**
+     * Every time step: the time, the event order, random drops, delays and
+     * crashes, and the debugging output of the message layers.
+     */
+    public static final int TRACE = 2;
+
+    private static int level = TRACE;
+
+    /**
+     * Sets the most detailed level that is printed.
+     *
+     * @param level
+     *            One of QUIET, INFO or TRACE
+     */
+    public static void setLevel(int level) {
+        if (level < QUIET || level > TRACE) {
+            throw new IllegalArgumentException("Invalid console level: "
+                    + level);
+        }
+        Console.level = level;
+    }
+
+    /**
+     * @return The most detailed level that is printed
+     */
+    public static int getLevel() {
+        return level;
+    }
+
+    /**
+     * @param level
+     *            The level of a message
+     * @return true if messages at this level are printed
+     */
+    public static boolean isEnabled(int level) {
+        return level <= Console.level;
+    }
+
+    /**
+     * Prints a line to standard out if the level is enabled.
+     *
+     * @param level
+     *            The level of the message
+     * @param msg
+     *            The message
+     */
+    public static void println(int level, String msg) {
+        if (level <= Console.level) {
+            System.out.println(msg);
+        }
+    }
+
+    /**
+     * Prints to standard out, without a line break, if the level is enabled.
+     *
+     * @param level
+     *            The level of the message
+     * @param msg
+     *            The message
+     */
+    public static void print(int level, String msg) {
+        if (level <= Console.level) {
+            System.out.print(msg);
+        }
+    }
+}
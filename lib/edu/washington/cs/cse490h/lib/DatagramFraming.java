@@ -0,0 +1,149 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Packets over UDP, for the datagram transport between nodes and the Router.
+ * Each datagram holds one plain encoded packet, or, from a node to the
+ * Router, the address handshake written by PacketChannel.writeAddress.
+ * Nothing is retransmitted or reordered here: a lost datagram is a lost
+ * packet, and it is up to the nodes' own protocols to recover.
+ *
+ * A packet bigger than the MTU is dropped instead of sent, as a network
+ * that does not fragment would.
+ */
+class DatagramFraming {
+	// the most a UDP datagram can carry
+	static final int MAX_DATAGRAM = 65507;
+	// socket buffers, so that a burst is not dropped by the kernel
+	static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+
+	private static volatile int mtu = MAX_DATAGRAM;
+	private static final AtomicLong oversized = new AtomicLong();
+
+	// a buffer for each sending thread
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(MAX_DATAGRAM);
+		}
+	};
+
+	/**
+	 * Set the largest packet, in encoded bytes, that is sent in a datagram
+	 *
+	 * @param bytes
+	 *            The limit, e.g. 1472 for an Ethernet MTU less the IP and
+	 *            UDP headers
+	 * @throws IllegalArgumentException
+	 *             If no packet fits, or it is more than a datagram holds
+	 */
+	static void setMtu(int bytes) throws IllegalArgumentException {
+		if (bytes < Packet.EXTENDED_HEADER_SIZE || bytes > MAX_DATAGRAM) {
+			throw new IllegalArgumentException("The MTU must be between " + Packet.EXTENDED_HEADER_SIZE
+					+ " and " + MAX_DATAGRAM + " bytes");
+		}
+		mtu = bytes;
+	}
+
+	static int getMtu() {
+		return mtu;
+	}
+
+	/**
+	 * @return How many packets have been dropped for being over the MTU
+	 */
+	static long getOversized() {
+		return oversized.get();
+	}
+
+	/**
+	 * Open a datagram channel with big socket buffers
+	 *
+	 * @throws IOException
+	 *             If the channel cannot be opened
+	 */
+	static DatagramChannel open() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.socket().setReceiveBufferSize(SOCKET_BUFFER);
+		channel.socket().setSendBufferSize(SOCKET_BUFFER);
+		return channel;
+	}
+
+	/**
+	 * Send a packet in a datagram of its own
+	 *
+	 * @param channel
+	 *            The channel to send on
+	 * @param packet
+	 *            The packet
+	 * @param to
+	 *            Where to send it, or null if the channel is connected
+	 * @return false if the packet was over the MTU and was dropped
+	 * @throws IOException
+	 *             If the send fails
+	 */
+	static boolean send(DatagramChannel channel, Packet packet, SocketAddress to) throws IOException {
+		int size = packet.encodedSize();
+		if (size > mtu) {
+			oversized.incrementAndGet();
+			if (Console.isEnabled(Console.INFO)) {
+				Console.println(Console.INFO, "Dropping a packet of " + size + " bytes, over the MTU of "
+						+ mtu + ": " + packet.toHeaderString());
+			}
+			return false;
+		}
+
+		ByteBuffer buf = packet.getEncoding(false);
+		if (buf == null) {
+			buf = buffers.get();
+			buf.clear();
+			packet.encode(buf);
+			buf.flip();
+		}
+		if (to == null) {
+			channel.write(buf);
+		} else {
+			channel.send(buf, to);
+		}
+		return true;
+	}
+
+	/**
+	 * Read the packet in a datagram
+	 *
+	 * @param buf
+	 *            The datagram, ready to be read
+	 * @return The packet, or null if the datagram is an address handshake
+	 * @throws Packet.CorruptPacketException
+	 *             If the datagram is neither
+	 */
+	static Packet decode(ByteBuffer buf) throws Packet.CorruptPacketException {
+		if (buf.remaining() <= 5) {
+			return null;
+		}
+		Packet packet = Packet.decode(buf);
+		if (packet == null || buf.hasRemaining()) {
+			// not exactly one packet
+			throw new Packet.CorruptPacketException();
+		}
+		return packet;
+	}
+
+	/**
+	 * @param buf
+	 *            A datagram that decode() found to be a handshake
+	 * @return The address in it
+	 */
+	static int handshakeAddress(ByteBuffer buf) {
+		int addr = buf.get(buf.position()) & 0xFF;
+		if (addr != Packet.EXTENDED_ADDRESS_MARKER || buf.remaining() < 5) {
+			return addr;
+		}
+		return buf.getInt(buf.position() + 1);
+	}
+}
@@ -0,0 +1,244 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+
+/**
+ * The packets the Router holds for a node that is down, oldest first. Up to
+ * a memory limit they are kept as Packets; past it they are appended to a
+ * spill file, and read back from it once the ones in memory have been taken.
+ * Once anything is in the file every new packet goes there too, so the
+ * order is kept. The file is deleted when it has been read to the end.
+ * If a packet cannot be written to the file, it and every packet after it
+ * wait in an overflow list in memory, which is taken after the file.
+ *
+ * Not thread safe: NodeContainer calls it under its own lock.
+ */
+class DownQueue {
+	// bytes kept in memory for each down node before spilling to disk
+	private static volatile long memoryLimit = 4 * 1024 * 1024;
+	// where spill files go
+	private static volatile File spillDir = new File("router-spill");
+
+	private final String name;
+	private final LinkedList<Packet> memory = new LinkedList<Packet>();
+	private long memoryBytes;
+
+	private File spillFile;
+	private OutputStream spillOut;
+	private DataInputStream spillIn;
+	// packets written to spillOut since it was last flushed
+	private boolean unflushed;
+	private long spilledPackets;
+	private long spilledBytes;
+
+	// packets that could not be spilled, and everything added after them
+	private final LinkedList<Packet> overflow = new LinkedList<Packet>();
+	private long overflowBytes;
+
+	// total spilled over the queue's life, for the stats
+	private long everSpilled;
+
+	/**
+	 * @param addr
+	 *            The address of the node, to name the spill file
+	 */
+	DownQueue(int addr) {
+		this(String.valueOf(addr));
+	}
+
+	/**
+	 * @param name
+	 *            What the packets are queued for, to name the spill file
+	 */
+	DownQueue(String name) {
+		this.name = name;
+		memoryBytes = 0;
+		overflowBytes = 0;
+		spilledPackets = 0;
+		spilledBytes = 0;
+		everSpilled = 0;
+	}
+
+	/**
+	 * Set how many bytes of packets each down-queue keeps in memory
+	 *
+	 * @param bytes
+	 *            The limit; 0 spills everything
+	 */
+	static void setMemoryLimit(long bytes) {
+		memoryLimit = bytes;
+	}
+
+	/**
+	 * Set the directory that spill files are written to. It is created when
+	 * the first file is.
+	 *
+	 * @param dir
+	 *            The directory
+	 */
+	static void setSpillDir(String dir) {
+		spillDir = new File(dir);
+	}
+
+	/**
+	 * Add a packet to the end of the queue
+	 *
+	 * @param p
+	 *            The packet
+	 */
+	void add(Packet p) {
+		int size = p.encodedSize();
+		if (spillFile == null && overflow.isEmpty() && memoryBytes + size <= memoryLimit) {
+			memory.add(p);
+			memoryBytes += size;
+			return;
+		}
+		if (!overflow.isEmpty()) {
+			// behind a packet that could not be spilled
+			overflow.add(p);
+			overflowBytes += size;
+			return;
+		}
+
+		try {
+			if (spillFile == null) {
+				spillDir.mkdirs();
+				spillFile = File.createTempFile("down-" + name + "-", ".queue", spillDir);
+				spillOut = new BufferedOutputStream(new FileOutputStream(spillFile, true));
+				if (Console.isEnabled(Console.INFO)) {
+					Console.println(Console.INFO, "Down-queue for " + name + " is over " + memoryLimit
+							+ " bytes, spilling to " + spillFile);
+				}
+			}
+			spillOut.write(p.pack());
+			unflushed = true;
+			spilledPackets++;
+			spilledBytes += size;
+			everSpilled++;
+		} catch (IOException e) {
+			// keep the packet rather than lose it, behind the ones on disk
+			System.err.println("Could not spill a packet for " + name + " to disk: " + e);
+			overflow.add(p);
+			overflowBytes += size;
+		}
+	}
+
+	/**
+	 * Put a packet back at the head of the queue
+	 *
+	 * @param p
+	 *            The packet last taken by poll()
+	 */
+	void push(Packet p) {
+		memory.addFirst(p);
+		memoryBytes += p.encodedSize();
+	}
+
+	/**
+	 * Take the packet at the head of the queue
+	 *
+	 * @return The packet, or null if the queue is empty
+	 */
+	Packet poll() {
+		Packet p = memory.poll();
+		if (p != null) {
+			memoryBytes -= p.encodedSize();
+			return p;
+		}
+		if (spilledPackets == 0) {
+			return pollOverflow();
+		}
+
+		try {
+			if (unflushed) {
+				// only whole packets reach the file, so the reader never
+				// sees half of one
+				spillOut.flush();
+				unflushed = false;
+			}
+			if (spillIn == null) {
+				spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+			}
+			p = Packet.unpack(spillIn);
+		} catch (IOException e) {
+			System.err.println("Could not read the spilled packets for " + name + ": " + e);
+			p = null;
+		}
+
+		if (p == null) {
+			// the rest of the file is lost
+			spilledPackets = 0;
+			spilledBytes = 0;
+		} else {
+			spilledPackets--;
+			spilledBytes -= p.encodedSize();
+		}
+		if (spilledPackets == 0) {
+			closeSpill();
+		}
+		return p == null ? pollOverflow() : p;
+	}
+
+	private Packet pollOverflow() {
+		Packet p = overflow.poll();
+		if (p != null) {
+			overflowBytes -= p.encodedSize();
+		}
+		return p;
+	}
+
+	private void closeSpill() {
+		try {
+			spillOut.close();
+			if (spillIn != null) {
+				spillIn.close();
+			}
+		} catch (IOException e) {
+		}
+		spillFile.delete();
+		spillFile = null;
+		spillOut = null;
+		spillIn = null;
+		unflushed = false;
+	}
+
+	boolean isEmpty() {
+		return memory.isEmpty() && spilledPackets == 0 && overflow.isEmpty();
+	}
+
+	/**
+	 * @return The number of packets queued, in memory or on disk
+	 */
+	long packets() {
+		return memory.size() + spilledPackets + overflow.size();
+	}
+
+	/**
+	 * @return The number of bytes queued, in memory or on disk
+	 */
+	long bytes() {
+		return memoryBytes + spilledBytes + overflowBytes;
+	}
+
+	/**
+	 * @return The number of packets queued on disk
+	 */
+	long spilled() {
+		return spilledPackets;
+	}
+
+	/**
+	 * @return The number of packets that have ever been spilled to disk
+	 */
+	long everSpilled() {
+		return everSpilled;
+	}
+}
@@ -1,24 +1,29 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.net.Socket;
 import java.net.InetAddress;
-import java.util.Collection;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.LinkedList;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.IOException;
 
 /**
  * <pre>   
  * Keeps track of information about an emulated node
  * The emulated is the Router's abstraction of the client.  It reliably handles messages to and from a single client.
+ *
+ * By default each EmulatedNode reads from its client on a thread of its own and writes to
+ * it with blocking writes. In the Router's selector mode it has no thread: the selector
+ * loop calls handleRead() and handleWrite(), and every method is called from that loop.
+ * In datagram mode it has no connection either: the Router's receive loop hands it each
+ * packet with handleDatagram(), and it sends each packet in a datagram of its own.
  * </pre>   
  */
 public class EmulatedNode implements Runnable{
 	private Router parent;
-	private Socket socket;
-	private OutputStream out;
-	private InputStream in;
+	private PacketChannel channel;
 	private int addr;
 	
 	// TODO: implement and use 
@@ -32,6 +37,21 @@ public class EmulatedNode implements Runnable{
 	private boolean cleanQuit;
 	private boolean finished;
 
+	// selector mode only: the key of the channel, null when this node has
+	// a thread of its own
+	private SelectionKey key;
+	// selector mode only: the packets read during the termination protocol,
+	// non-null once the first FIN has been read
+	private LinkedList<Packet> quitQueue;
+	// selector mode only: packets are waiting for the channel to take them
+	private boolean writePending;
+	// selector mode only: packets have been queued since the last flush
+	private boolean dirty;
+	// datagram mode only: the Router's socket and the node's address, null
+	// in the other modes
+	private DatagramChannel udp;
+	private SocketAddress peer;
+
 	/**
 	 * Create a new EmulatedNode
 	 * 
@@ -48,17 +68,33 @@ public class EmulatedNode implements Runnable{
 	 * @throws IOException
 	 *             If creation of the socket fails
 	 */
-	public EmulatedNode(Router parent, Socket socket, int addr, InetAddress ipAddress, int port) throws IOException {
+	public EmulatedNode(Router parent, SocketChannel socket, int addr, InetAddress ipAddress, int port) throws IOException {
+		this(parent, new PacketChannel(socket), addr, ipAddress, port);
+	}
+
+	/**
+	 * Create a new EmulatedNode on a blocking channel, with a thread of its
+	 * own
+	 * 
+	 * @param parent
+	 *            A pointer to the router so that it can signal failures
+	 * @param channel
+	 *            The channel to the emulated node, past the address handshake
+	 * @param addr
+	 *            The virtual address of the emulated node
+	 * @param ipAddress
+	 *            The IP address of the machine that the node is on
+	 * @param port
+	 *            The port that the emulated node is on
+	 */
+	EmulatedNode(Router parent, PacketChannel channel, int addr, InetAddress ipAddress, int port) {
 		this.parent = parent;
-		this.socket = socket;
+		this.channel = channel;
 		this.addr = addr;
 		// this.vtime = new VectorTime(Manager.MAX_ADDRESS);
 		this.ipAddress = ipAddress;
 		this.port = port;
 
-		out = socket.getOutputStream();
-		in = socket.getInputStream();
-
 		cleanQuit = false;
 		finished = false;
 
@@ -66,10 +102,66 @@ public class EmulatedNode implements Runnable{
 		t.start();
 	}
 
+	/**
+	 * Create a new EmulatedNode driven by the Router's selector loop
+	 * 
+	 * @param parent
+	 *            A pointer to the router so that it can signal failures
+	 * @param channel
+	 *            The non-blocking channel to the emulated node, past the
+	 *            address handshake
+	 * @param addr
+	 *            The virtual address of the emulated node
+	 * @param ipAddress
+	 *            The IP address of the machine that the node is on
+	 * @param port
+	 *            The port that the emulated node is on
+	 * @param key
+	 *            The channel's key in the Router's selector
+	 */
+	EmulatedNode(Router parent, PacketChannel channel, int addr, InetAddress ipAddress, int port, SelectionKey key) {
+		this.parent = parent;
+		this.channel = channel;
+		this.addr = addr;
+		this.ipAddress = ipAddress;
+		this.port = port;
+		this.key = key;
+
+		cleanQuit = false;
+		finished = false;
+		writePending = false;
+		dirty = false;
+		key.attach(this);
+	}
+
+	/**
+	 * Create a new EmulatedNode that is sent datagrams on the Router's socket
+	 * 
+	 * @param parent
+	 *            A pointer to the router so that it can signal failures
+	 * @param udp
+	 *            The Router's datagram socket
+	 * @param peer
+	 *            The node's socket address
+	 * @param addr
+	 *            The virtual address of the emulated node
+	 */
+	EmulatedNode(Router parent, DatagramChannel udp, InetSocketAddress peer, int addr) {
+		this.parent = parent;
+		this.udp = udp;
+		this.peer = peer;
+		this.addr = addr;
+		this.ipAddress = peer.getAddress();
+		this.port = peer.getPort();
+
+		cleanQuit = false;
+		finished = false;
+	}
+
 	public void run() {
 		try {
 			while(isUp()) {
-				Packet packet = Packet.unpack(in);
+				Packet packet = channel.read();
 
 				if(packet == null) {
 					// The other side closed the connection
@@ -82,19 +174,8 @@ public class EmulatedNode implements Runnable{
 					// if a send occurs here it's OK cause finished = true
 					// we don't call nodeQuit inside close because it could cause deadlock
 					parent.nodeQuit(addr, queue);
-				} else if(packet.getDest() == Manager.BROADCAST_ADDRESS) {
-					Collection<Integer> c = parent.emulatedNodes.keySet();
-					System.out.println("Broadcasting: " + packet);
-
-					synchronized(parent.emulatedNodes) {
-						for(Integer dest: c) {
-							if(dest != addr) {
-								parent.emulatedNodes.get(dest).send(packet);
-							}
-						}
-					}
 				} else {
-					parent.emulatedNodes.get(packet.getDest()).send(packet);
+					route(packet);
 				}
 			}
 		} catch (IOException e) {
@@ -103,16 +184,140 @@ public class EmulatedNode implements Runnable{
 
 		if(!cleanQuit) {
 			// If the termination protocol did not finish, quit
-			try {
-				socket.close();
-			} catch (IOException e) {
-			}
+			channel.close();
 			if(parent != null) {
 				parent.nodeQuit(addr, null);
 			}
 		}
 	}
 
+	/**
+	 * Forward a packet from this node to its destination, or to every other
+	 * node if it is a broadcast.
+	 * 
+	 * @param packet
+	 *            The packet to forward
+	 */
+	private void route(Packet packet) {
+		parent.route(addr, packet);
+	}
+
+	/**
+	 * Selector mode: called when the channel has bytes to read. Routes every
+	 * whole packet read, and runs the termination protocol when a FIN comes.
+	 */
+	void handleRead() {
+		try {
+			int n = channel.fill();
+			Packet packet;
+			while (!cleanQuit && (packet = channel.next()) != null) {
+				boolean fin = (packet.getFlags() & Packet.FIN) != 0;
+				if (quitQueue != null) {
+					// grab all the undelivered messages until the second FIN
+					if (fin) {
+						cleanQuit = true;
+						closeChannel();
+						if (parent != null) {
+							parent.nodeQuit(addr, quitQueue);
+						}
+						return;
+					}
+					quitQueue.add(packet);
+				} else if (fin) {
+					// start termination protocol: send our FIN and stop
+					// sending anything else
+					send(Packet.getFinPacket(addr));
+					flushQueued();
+					finished = true;
+					quitQueue = new LinkedList<Packet>();
+					if (!writePending) {
+						channel.shutdownOutput();
+					}
+				} else {
+					route(packet);
+				}
+			}
+			if (n == -1 && !cleanQuit) {
+				if (quitQueue != null) {
+					System.err.println("Connection to EmulatedNode " + addr
+							+ " closed before the termination protocol finished");
+				}
+				quit();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			quit();
+		}
+	}
+
+	/**
+	 * Datagram mode: called with each packet the node sends. Runs the
+	 * termination protocol as handleRead() does; if a FIN is lost, the node
+	 * stays finished and its packets are queued until it restarts.
+	 * 
+	 * @param packet
+	 *            The packet
+	 */
+	void handleDatagram(Packet packet) {
+		if (cleanQuit) {
+			return;
+		}
+		boolean fin = (packet.getFlags() & Packet.FIN) != 0;
+		if (quitQueue != null) {
+			if (fin) {
+				cleanQuit = true;
+				Router p = parent;
+				if (p != null) {
+					p.nodeQuit(addr, quitQueue);
+				}
+			} else {
+				quitQueue.add(packet);
+			}
+		} else if (fin) {
+			send(Packet.getFinPacket(addr));
+			finished = true;
+			quitQueue = new LinkedList<Packet>();
+		} else if (!finished) {
+			route(packet);
+		}
+	}
+
+	/**
+	 * Selector mode: called when the channel can take more of the packets
+	 * waiting to be written.
+	 */
+	void handleWrite() {
+		try {
+			if (channel.flush()) {
+				writePending = false;
+				key.interestOps(SelectionKey.OP_READ);
+				if (quitQueue != null) {
+					// our FIN is out; make sure that we don't send new packets
+					channel.shutdownOutput();
+				}
+			}
+		} catch (IOException e) {
+			finished = true;
+			e.printStackTrace();
+			quit();
+		}
+	}
+
+	/**
+	 * Selector mode: the connection ended without the termination protocol
+	 */
+	private void quit() {
+		closeChannel();
+		if (parent != null) {
+			parent.nodeQuit(addr, null);
+		}
+	}
+
+	private void closeChannel() {
+		key.cancel();
+		channel.close();
+	}
+
 	/**
 	 * Called by other EmulatedNodes to send a packet to this node.
 	 * 
@@ -125,14 +330,45 @@ public class EmulatedNode implements Runnable{
 	 *         the router know when the node is closing and packets should be
 	 *         queued
 	 */
-	protected synchronized boolean send(Packet pkt){
+	protected boolean send(Packet pkt){
+		if (!enqueue(pkt)) {
+			return false;
+		}
+		flush();
+		return true;
+	}
+
+	/**
+	 * The first half of send(): hand a packet to the connection. With write
+	 * batching on it is only added to the batch, and flush() writes it.
+	 * 
+	 * @param pkt
+	 *            The packet to send
+	 * @return false if the node is closing and the packet should be queued
+	 */
+	protected synchronized boolean enqueue(Packet pkt) {
 		if(finished) {
 			return false;
 		}
 
 		try {
-			out.write(pkt.pack());
-			out.flush();
+			if (udp != null) {
+				DatagramFraming.send(udp, pkt, peer);
+			} else if (key != null) {
+				channel.queue(pkt);
+				if (!PacketChannel.isBatching()) {
+					flushQueued();
+				} else if (!dirty) {
+					// written along with everything else sent to this node
+					// in this pass of the selector loop
+					dirty = true;
+					parent.flushLater(this);
+				}
+			} else if (PacketChannel.isBatching()) {
+				channel.enqueue(pkt);
+			} else {
+				channel.write(pkt);
+			}
 		} catch (IOException e) {
 			finished = true;
 			e.printStackTrace();
@@ -140,6 +376,55 @@ public class EmulatedNode implements Runnable{
 		return true;
 	}
 
+	/**
+	 * The second half of send(): write the batch. Callers should hold no
+	 * locks, so that other threads sending to this node meanwhile add their
+	 * packets to the batch rather than wait for it.
+	 */
+	protected void flush() {
+		if (key != null || udp != null || !PacketChannel.isBatching()) {
+			return;
+		}
+		try {
+			channel.flushPending();
+		} catch (IOException e) {
+			finished = true;
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Selector mode: write what the channel takes now of the packets queued
+	 * for this node, and the rest when it is writable.
+	 */
+	void flushQueued() {
+		dirty = false;
+		try {
+			if (!writePending && !channel.flush()) {
+				writePending = true;
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		} catch (IOException e) {
+			finished = true;
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return About how many packets are waiting to be written to the node
+	 */
+	int queueDepth() {
+		return udp != null ? 0 : channel.queuedPackets();
+	}
+
+	/**
+	 * @return true in selector mode while the channel has not taken
+	 *         everything queued to it
+	 */
+	boolean isWriteBlocked() {
+		return writePending;
+	}
+
 	/**
 	 * Close the the connection to the node server cleanly.
 	 * 
@@ -153,14 +438,16 @@ public class EmulatedNode implements Runnable{
 		finished = true;
 
 		try {
-			// make sure that we don't send new packets
-			socket.shutdownOutput();
+			// make sure that we don't send new packets, once the ones
+			// already batched are out
+			channel.drain();
+			channel.shutdownOutput();
 
 			LinkedList<Packet> queue = new LinkedList<Packet>();
 
 			while(true) {
 				// grab all the undelivered messages
-				Packet packet = Packet.unpack(in);
+				Packet packet = channel.read();
 
 				if(packet == null) {
 					throw new IOException("Corrupted packet.  Cannot recover from misalignment.");
@@ -169,7 +456,7 @@ public class EmulatedNode implements Runnable{
 				if((packet.getFlags() & Packet.FIN) != 0) {
 					// if we get the second FIN, everything is done
 					cleanQuit = true;
-					socket.close();
+					channel.close();
 					return queue;
 				} else {
 					queue.add(packet);
@@ -213,7 +500,8 @@ public class EmulatedNode implements Runnable{
 	 * @return A string containing details of this emulated node
 	 */
 	public String toString() {
-		return new String("<TCP: " + socket.getInetAddress() + ":" + socket.getPort() + " Fish: " + addr + ">");
+		String transport = udp != null ? "<UDP: " : (channel.isLoopback() ? "<Loopback: " : "<TCP: ");
+		return new String(transport + ipAddress + ":" + port + " Fish: " + addr + ">");
 	}
 
 	/**
@@ -225,6 +513,10 @@ public class EmulatedNode implements Runnable{
 		// connection first
 		parent = null;
 		finished = true;
+		if (key != null) {
+			// there is no thread to notice and close the connection
+			closeChannel();
+		}
 	}
 	
 	/**
@@ -232,8 +524,11 @@ public class EmulatedNode implements Runnable{
 	 * @return True if the node is still alive
 	 */
 	protected boolean isUp() {
-		return (!socket.isClosed() &&
-				!socket.isInputShutdown() &&
+		if (udp != null) {
+			return !finished;
+		}
+		return (!channel.isClosed() &&
+				!channel.isInputShutdown() &&
 				!finished);
 	}
 }
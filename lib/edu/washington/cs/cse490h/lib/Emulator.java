@@ -17,10 +17,24 @@ import edu.washington.cs.cse490h.lib.Packet.CorruptPacketException;
  * Manager that runs under a single emulated node on the client machine.
  */
 public class Emulator extends Manager {
+	/**
+	 * Thrown by stop() in an emulator run by an EmulatorHost, so that only
+	 * that emulator's thread ends
+	 */
+	static class StopException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
 	private Node node;
 	private NodeServer server;
 	private int address;
 	private final long timeStep;
+	// -1 for fixed steps, otherwise the shortest an adaptive step can be
+	private long minTimeStep = -1;
+	// signalled when the server stores a packet or stops
+	private final Object wakeup = new Object();
+	// run by an EmulatorHost along with other emulators
+	private boolean hosted;
 
 	private final String routerName;
 	private final int routerPort;
@@ -29,6 +43,12 @@ public class Emulator extends Manager {
 	private boolean failed;
 	private boolean IOFinished;
 
+	// the packets taken from the server in one step
+	private final ArrayList<Packet> received = new ArrayList<Packet>();
+
+	// this node's random number generator, seeded with its own seed
+	private final Random rng;
+
 	/**
 	 * Base constructor for the Emulator. Does most of the work, but the command
 	 * input method and failure level should be set before calling this
@@ -64,12 +84,13 @@ public class Emulator extends Manager {
 
 		setParser(new EmulationCommandsParser());
 
-		System.out.print("Starting emulation ");
+		Console.print(Console.INFO, "Starting emulation ");
 		if (Replay.isReplaying()) {
-			System.out.print("in replay mode ");
+			Console.print(Console.INFO, "in replay mode ");
 		}
-		System.out.println("with seed: " + this.seed);
-		Utility.randNumGen = new Random(this.seed);
+		Console.println(Console.INFO, "with seed: " + this.seed);
+		rng = new Random(this.seed);
+		Utility.randNumGen = rng;
 
 		this.routerName = routerName;
 		this.routerPort = routerPort;
@@ -188,6 +209,53 @@ public class Emulator extends Manager {
 		sortedEvents = commandFileParser.parseFile(commandFile);
 	}
 
+	/**
+	 * Create an emulator for an EmulatorHost. It runs a list of commands
+	 * instead of reading user input, does not record a replay, and generates
+	 * its failures randomly. Its stop() ends only its own thread.
+	 *
+	 * @param nodeImpl
+	 *            The Class object for the student's node implementation
+	 * @param nodeAddr
+	 *            The address of the node to start up
+	 * @param routerName
+	 *            Name of the machine that the Router is on
+	 * @param routerPort
+	 *            The port that the Router is listening on
+	 * @param seed
+	 *            Seed for the RNG. Can be null to use the current time
+	 * @param timeStep
+	 *            The number of milliseconds to wait between rounds
+	 * @param commands
+	 *            The commands for this node. The emulator consumes the list
+	 * @throws IOException
+	 *             If the replay setup fails
+	 */
+	Emulator(Class<? extends Node> nodeImpl, int nodeAddr, String routerName,
+			int routerPort, Long seed, long timeStep, ArrayList<Event> commands)
+			throws IOException {
+		this(nodeImpl, nodeAddr, routerName, routerPort, seed, timeStep, "", "");
+
+		cmdInputType = InputType.FILE;
+		userControl = FailureLvl.NOTHING;
+		sortedEvents = commands;
+		hosted = true;
+	}
+
+	/**
+	 * @return Whether this emulator shares its JVM with others
+	 */
+	boolean isHosted() {
+		return hosted;
+	}
+
+	/**
+	 * @return The address of the emulated node
+	 */
+	int getAddress() {
+		return address;
+	}
+
 	/**
 	 * Perform a single emulator time step with a set of events as argument
 	 * 
@@ -203,6 +271,18 @@ public class Emulator extends Manager {
 
 		executeEvents(currentRoundEvents);
 
+		if (node != null) {
+			try {
+				node.onTimestepEnd();
+			} catch (NodeCrashException e) {
+				failNode();
+			}
+		}
+
+		// everything the node sent this step goes out together
+		if (server != null && !Replay.isReplaying()) {
+			server.flush();
+		}
 	}
 
 	/**
@@ -210,6 +290,9 @@ public class Emulator extends Manager {
 	 */
 	@Override
 	protected void start() {
+		// the node's code runs on this thread
+		Utility.setThreadRNG(rng);
+
 		// start the synoptic partial-ordered logger
 		synPartialOrderLogger.start(MessageLayer.synopticPartialOrderLogFilename);
 
@@ -222,7 +305,9 @@ public class Emulator extends Manager {
 					failNode();
 				}
 
-				System.out.println("\nTime: " + now());
+				if (Console.isEnabled(Console.TRACE)) {
+					Console.println(Console.TRACE, "\nTime: " + now());
+				}
 
 				if (node == null) {
 					checkRecover();
@@ -252,12 +337,9 @@ public class Emulator extends Manager {
 					logEventWithNodeField(node, "TIMESTEP time:" + now());
 				}
 
-				try {
-					// We sleep here to give a chance for messages to travel
-					// over the network
-					Thread.sleep(timeStep);
-				} catch (InterruptedException e) {
-				}
+				// We wait here to give a chance for messages to travel over
+				// the network
+				waitForStep();
 			}
 		} else if (cmdInputType == InputType.USER) {
 			while (node != null || failed) {
@@ -370,15 +452,28 @@ public class Emulator extends Manager {
 
 	@Override
 	protected void stop() {
-		System.out.println(stopString());
+		boolean info = Console.isEnabled(Console.INFO);
+		if (info) {
+			Console.println(Console.INFO, stopString());
+			if (!hosted) {
+				Console.println(Console.INFO, PacketChannel.getWriteStats().toString());
+			}
+		}
 		if (node != null) {
-			System.out.println(node.addr + ": " + node.toString());
+			if (info) {
+				Console.println(Console.INFO, node.addr + ": " + node.toString());
+			}
 			logEventWithNodeField(node, "STOPPED");
 		} else {
-			System.out.println("failed");
+			Console.println(Console.INFO, "failed");
 		}
 
 		synPartialOrderLogger.stop();
+		if (hosted) {
+			// the other nodes in this JVM keep running
+			killServer();
+			throw new StopException();
+		}
 		System.exit(0);
 	}
 
@@ -420,7 +515,7 @@ public class Emulator extends Manager {
 		}
 
 		node.init(this, address);
-		vtimes.put(node.addr, new VectorTime(MAX_ADDRESS));
+		vtimes.put(node.addr, new VectorTime(INITIAL_VECTOR_LENGTH));
 		logEventWithNodeField(node, "START");
 		failed = false;
 
@@ -491,8 +586,8 @@ public class Emulator extends Manager {
 	@Override
 	protected void checkWriteCrash(Node n, String description) {
 		if (userControl.compareTo(FailureLvl.CRASH) < 0) {
-			if (Utility.getRNG().nextDouble() < failureRate) {
-				System.out.println("Randomly failing before write");
+			if (rng.nextDouble() < failureRate) {
+				Console.println(Console.TRACE, "Randomly failing before write");
 				NodeCrashException e = failNode();
 				// This function is called by Node, so we need to rethrow the
 				// exception to fully stop execution
@@ -531,10 +626,88 @@ public class Emulator extends Manager {
 	 */
 	protected void IOFinish() {
 		IOFinished = true;
+		packetArrived();
+	}
+
+	/**
+	 * Called by the NodeServer when it stores a packet, so an adaptive step
+	 * can end early
+	 */
+	protected void packetArrived() {
+		if (minTimeStep < 0) {
+			return;
+		}
+		synchronized (wakeup) {
+			wakeup.notifyAll();
+		}
+	}
+
+	/**
+	 * Make the time step adaptive. A step still lasts at most the time step
+	 * given to the constructor, but ends as soon as the server has a packet
+	 * for the node, once at least minTimeStep ms have passed. Time still
+	 * advances one step at a time, so timeouts and replays count the same
+	 * steps; only the wall clock time between steps changes.
+	 * 
+	 * @param minTimeStep
+	 *            The shortest step, in ms. -1 goes back to fixed steps
+	 */
+	public void setMinTimeStep(long minTimeStep) {
+		if (minTimeStep > timeStep) {
+			throw new IllegalArgumentException("Minimum time step " + minTimeStep
+					+ " is longer than the time step " + timeStep);
+		}
+		this.minTimeStep = minTimeStep;
+	}
+
+	/**
+	 * Wait between two steps. Fixed steps sleep for the whole time step;
+	 * adaptive steps wait for the server instead. A replay has its packets
+	 * already, so it only waits the minimum.
+	 */
+	private void waitForStep() {
+		try {
+			if (minTimeStep < 0) {
+				Thread.sleep(timeStep);
+				return;
+			}
+
+			long start = System.nanoTime();
+			if (minTimeStep > 0) {
+				Thread.sleep(minTimeStep);
+			}
+			if (Replay.isReplaying()) {
+				return;
+			}
+
+			long deadline = start + timeStep * 1000000L;
+			synchronized (wakeup) {
+				while (!IOFinished && (server == null || !server.hasPackets())) {
+					long left = deadline - System.nanoTime();
+					if (left <= 0) {
+						return;
+					}
+					// wait(long, int) rounds to the millisecond anyway
+					wakeup.wait(Math.max(1, left / 1000000L));
+				}
+			}
+		} catch (InterruptedException e) {
+		}
 	}
 
 	/****************** Methods to check and handle events ******************/
 
+	/**
+	 * Adds a newly received message to the in transit messages, recording it
+	 * for replay
+	 */
+	private void addInTransit(Packet pkt) throws IOException {
+		if (Replay.replayOut != null) {
+			Replay.replayOut.write(pkt.pack());
+		}
+		inTransitMsgs.add(pkt);
+	}
+
 	/**
 	 * Goes through all of the in transit messages and decides whether to drop,
 	 * delay, or deliver.
@@ -544,29 +717,21 @@ public class Emulator extends Manager {
 	 */
 	private void checkInTransit(ArrayList<Event> currentRoundEvents) {
 		// Load in all the newly received messages
-		Packet pkt;
 		try {
 			if (Replay.isReplaying()) {
-				pkt = Replay.getPacket();
-				if (Replay.isNullPacket(pkt)) {
-					pkt = null;
+				Packet pkt = Replay.getPacket();
+				while (pkt != null && !Replay.isNullPacket(pkt)) {
+					addInTransit(pkt);
+					pkt = Replay.getPacket();
 				}
 			} else {
-				pkt = server.getPacket();
-			}
-			while (pkt != null) {
-				if (Replay.replayOut != null) {
-					Replay.replayOut.write(pkt.pack());
-				}
-				inTransitMsgs.add(pkt);
-				if (Replay.isReplaying()) {
-					pkt = Replay.getPacket();
-					if (Replay.isNullPacket(pkt)) {
-						pkt = null;
-					}
-				} else {
-					pkt = server.getPacket();
+				// everything that arrived since the last step, in one go
+				received.clear();
+				server.drainTo(received);
+				for (Packet pkt : received) {
+					addInTransit(pkt);
 				}
+				received.clear();
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -593,9 +758,11 @@ public class Emulator extends Manager {
 			Iterator<Packet> iter = currentPackets.iterator();
 		while (iter.hasNext()) {
 			Packet p = iter.next();
-			double rand = Utility.getRNG().nextDouble();
+			double rand = rng.nextDouble();
 			if (rand < dropRate) {
-				System.out.println("Randomly dropping: " + p.toString());
+				if (Console.isEnabled(Console.TRACE)) {
+					Console.println(Console.TRACE, "Randomly dropping: " + p.toString());
+				}
 				logEvent(node, "DROP " + p.toSynopticString(node));
 				iter.remove();
 			}
@@ -661,13 +828,15 @@ public class Emulator extends Manager {
 			Iterator<Packet> iter = currentPackets.iterator();
 			while (iter.hasNext()) {
 				Packet p = iter.next();
-				double rand = Utility.getRNG().nextDouble();
+				double rand = rng.nextDouble();
 				// adjust the probability since these are not independent events
 				// Ex: 50% drop rate and 50% delay rate should mean that nothing
 				// gets through
 				double adjustedDelay = delayRate / (1 - dropRate);
 				if (rand < adjustedDelay) {
-					System.out.println("Randomly Delaying: " + p.toString());
+					if (Console.isEnabled(Console.TRACE)) {
+						Console.println(Console.TRACE, "Randomly Delaying: " + p.toString());
+					}
 					logEvent(node, "DELAY " + p.toSynopticString(node));
 					iter.remove();
 					inTransitMsgs.add(p);
@@ -690,7 +859,7 @@ public class Emulator extends Manager {
 		// See if we should crash.
 		// Failures and restarts specified in the file are deprecated
 		if (userControl.compareTo(FailureLvl.CRASH) < 0) {
-			double rand = Utility.getRNG().nextDouble();
+			double rand = rng.nextDouble();
 			if (rand < failureRate) {
 				currentRoundEvents.add(Event.getFailure(address));
 			}
@@ -715,7 +884,7 @@ public class Emulator extends Manager {
 		if (userControl.compareTo(FailureLvl.CRASH) < 0) { // userControl <
 			// CRASH
 			// make a copy so we don't have concurrent modification exceptions
-			double rand = Utility.getRNG().nextDouble();
+			double rand = rng.nextDouble();
 			if (rand < recoveryRate) {
 				startNode();
 			}
@@ -811,10 +980,15 @@ public class Emulator extends Manager {
 				}
 			} while (doAgain);
 		} else {
-			Collections.shuffle(currentRoundEvents, Utility.getRNG());
-			System.out.println("Executing with order: ");
+			Collections.shuffle(currentRoundEvents, rng);
+			boolean trace = Console.isEnabled(Console.TRACE);
+			if (trace) {
+				Console.println(Console.TRACE, "Executing with order: ");
+			}
 			for (Event ev : currentRoundEvents) {
-				System.out.println(ev.toString());
+				if (trace) {
+					Console.println(Console.TRACE, ev.toString());
+				}
 				handleEvent(ev);
 			}
 		}
@@ -897,9 +1071,11 @@ public class Emulator extends Manager {
 		}
 
 		Packet newPacket = new Packet(to, fromNode.addr, protocol, payload);
-		logEvent(fromNode, "SEND " + newPacket.toSynopticString(fromNode));
+		if (isLogging()) {
+			logEvent(fromNode, "SEND " + newPacket.toSynopticString(fromNode));
+		}
 		// XXX: broadcasts are one msg here, whereas simulator they are multiple
-		sendToRouter(to, newPacket.pack());
+		sendToRouter(to, newPacket);
 		return;
 	}
 
@@ -909,9 +1085,9 @@ public class Emulator extends Manager {
 	 * @param destAddr
 	 *            The virtual address of the destination
 	 * @param pkt
-	 *            The serialized version of the Packet to be sent
+	 *            The Packet to be sent
 	 */
-	private void sendToRouter(int destAddr, byte[] pkt) {
+	private void sendToRouter(int destAddr, Packet pkt) {
 		if (!Replay.isReplaying()) {
 			server.send(pkt);
 		}
@@ -929,7 +1105,9 @@ public class Emulator extends Manager {
 			return;
 		}
 
-		logEvent(node, "RECVD " + pkt.toSynopticString(node));
+		if (isLogging()) {
+			logEvent(node, "RECVD " + pkt.toSynopticString(node));
+		}
 
 		if (pkt.getDest() == address
 				|| pkt.getDest() == Manager.BROADCAST_ADDRESS) {
@@ -0,0 +1,154 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+
+/**
+ * Runs many emulated nodes in one JVM. Each node gets its own Emulator, with
+ * its own step loop, its own connection to the router and its own storage
+ * directory under the storage root, as if it had been started on its own.
+ * Step loops and server threads are virtual threads when the JVM has them
+ * (Java 21 and up) and daemon platform threads otherwise.
+ */
+public class EmulatorHost {
+	// Thread.ofVirtual(), Thread.Builder.name(String) and
+	// Thread.Builder.start(Runnable), or null before Java 21
+	private static final Method ofVirtual;
+	private static final Method builderName;
+	private static final Method builderStart;
+
+	static {
+		Method of = null;
+		Method name = null;
+		Method start = null;
+		try {
+			of = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			start = builder.getMethod("start", Runnable.class);
+		} catch (Exception e) {
+			of = null;
+		}
+		ofVirtual = of;
+		builderName = name;
+		builderStart = start;
+	}
+
+	private final ArrayList<Emulator> emulators = new ArrayList<Emulator>();
+	private final ArrayList<Thread> threads = new ArrayList<Thread>();
+
+	/**
+	 * Create the emulators for a range of addresses. Nothing connects to the
+	 * router until start() is called.
+	 *
+	 * @param nodeImpl
+	 *            The Class object for the student's node implementation
+	 * @param firstAddr
+	 *            The address of the first node
+	 * @param count
+	 *            How many nodes to run, at consecutive addresses
+	 * @param routerName
+	 *            Name of the machine that the Router is on
+	 * @param routerPort
+	 *            The port that the Router is listening on
+	 * @param seed
+	 *            Seed for the RNG. Node i uses seed + i. Can be null to use
+	 *            the current time
+	 * @param timeStep
+	 *            The number of milliseconds to wait between rounds
+	 * @param minTimeStep
+	 *            The shortest adaptive step in ms, or -1 for fixed steps
+	 * @param commandFile
+	 *            File of commands that every node runs, or "" for none
+	 * @throws FileNotFoundException
+	 *             If the command file does not exist
+	 * @throws IOException
+	 *             If setting up an emulator fails
+	 * @throws IllegalArgumentException
+	 *             If the addresses are not valid
+	 */
+	public EmulatorHost(Class<? extends Node> nodeImpl, int firstAddr,
+			int count, String routerName, int routerPort, Long seed,
+			long timeStep, long minTimeStep, String commandFile)
+			throws FileNotFoundException, IOException, IllegalArgumentException {
+		if (count < 1 || !Packet.validAddress(firstAddr)
+				|| !Packet.validAddress(firstAddr + count - 1)) {
+			throw new IllegalArgumentException("Cannot host " + count
+					+ " nodes starting at address " + firstAddr);
+		}
+
+		for (int i = 0; i < count; i++) {
+			ArrayList<Event> commands;
+			if (commandFile.equals("")) {
+				commands = new ArrayList<Event>();
+			} else {
+				// every emulator consumes its own copy
+				commands = new EmulationCommandsParser().parseFile(commandFile);
+			}
+			Long nodeSeed = seed == null ? null : seed + i;
+			Emulator emulator = new Emulator(nodeImpl, firstAddr + i, routerName,
+					routerPort, nodeSeed, timeStep, commands);
+			emulator.setMinTimeStep(minTimeStep);
+			emulators.add(emulator);
+		}
+	}
+
+	/**
+	 * Start every node and wait for all of them to stop. Like the other
+	 * managers, this does not return.
+	 */
+	public void start() {
+		Console.println(Console.INFO, "Hosting " + emulators.size() + " nodes on "
+				+ (ofVirtual == null ? "platform" : "virtual") + " threads");
+
+		for (final Emulator emulator : emulators) {
+			threads.add(startThread(new Runnable() {
+				public void run() {
+					try {
+						emulator.start();
+					} catch (Emulator.StopException e) {
+						// the emulator stopped its node and server
+					}
+				}
+			}, "Emulator " + emulator.getAddress()));
+		}
+
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+			}
+		}
+
+		if (Console.isEnabled(Console.INFO)) {
+			Console.println(Console.INFO, PacketChannel.getWriteStats().toString());
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Start a thread for a hosted node, virtual if the JVM supports it.
+	 *
+	 * @param r
+	 *            What the thread runs
+	 * @param name
+	 *            The thread's name
+	 * @return The started thread
+	 */
+	static Thread startThread(Runnable r, String name) {
+		if (ofVirtual != null) {
+			try {
+				Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+				return (Thread) builderStart.invoke(builder, r);
+			} catch (Exception e) {
+				// virtual threads are a preview feature on Java 19 and 20
+			}
+		}
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+}
@@ -0,0 +1,321 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ * Decides, for the Router, whether each packet on a link is dropped and how
+ * long it takes to arrive. It is driven by a config file with one rule per
+ * line; blank lines and lines starting with // or # are skipped. An address
+ * of * matches any node.
+ *
+ *   seed &lt;long&gt;
+ *   drop &lt;src&gt; &lt;dest&gt; &lt;probability&gt;
+ *   latency &lt;src&gt; &lt;dest&gt; fixed &lt;ms&gt;
+ *   latency &lt;src&gt; &lt;dest&gt; uniform &lt;min ms&gt; &lt;max ms&gt;
+ *   latency &lt;src&gt; &lt;dest&gt; normal &lt;mean ms&gt; &lt;stddev ms&gt;
+ *   latency &lt;src&gt; &lt;dest&gt; exponential &lt;mean ms&gt;
+ *   bandwidth &lt;src&gt; &lt;dest&gt; &lt;bytes per second&gt;
+ *   partition &lt;from s&gt; &lt;to s&gt; &lt;addr,addr,...&gt; &lt;addr,addr,...&gt; ...
+ *
+ * For each kind of rule the most specific one for a link applies: src and
+ * dest, then src and *, then * and dest, then * and *. A bandwidth cap makes
+ * the packets on a link queue up behind each other, so it also delays them.
+ * A partition drops the packets between nodes in different groups, from
+ * and to the given number of seconds after the Router started; nodes in no
+ * group are not affected.
+ * </pre>
+ */
+class FaultInjector {
+	private static final int ANY = -1;
+
+	/**
+	 * A latency distribution, in nanoseconds
+	 */
+	private static class Latency {
+		private final String kind;
+		private final double a;
+		private final double b;
+
+		Latency(String kind, double a, double b) {
+			this.kind = kind;
+			this.a = a;
+			this.b = b;
+		}
+
+		long sample(Random rand) {
+			double ms;
+			if (kind.equals("uniform")) {
+				ms = a + rand.nextDouble() * (b - a);
+			} else if (kind.equals("normal")) {
+				ms = a + rand.nextGaussian() * b;
+			} else if (kind.equals("exponential")) {
+				ms = -a * Math.log(1 - rand.nextDouble());
+			} else {
+				ms = a;
+			}
+			return (long) (Math.max(0, ms) * 1000000);
+		}
+	}
+
+	/**
+	 * A scheduled partition
+	 */
+	private static class Partition {
+		private final long from;
+		private final long to;
+		// address -> group number
+		private final HashMap<Integer, Integer> groups = new HashMap<Integer, Integer>();
+
+		Partition(long from, long to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		boolean separates(int src, int dest, long elapsed) {
+			if (elapsed < from || elapsed >= to) {
+				return false;
+			}
+			Integer a = groups.get(src);
+			Integer b = groups.get(dest);
+			return a != null && b != null && !a.equals(b);
+		}
+	}
+
+	/**
+	 * The rules that apply to one (src, dest) link, and its bandwidth state
+	 */
+	private static class Link {
+		private final double drop;
+		private final Latency latency;
+		private final long bandwidth;
+		// when the link has sent everything queued on it
+		private long nextFree;
+
+		Link(double drop, Latency latency, long bandwidth) {
+			this.drop = drop;
+			this.latency = latency;
+			this.bandwidth = bandwidth;
+			nextFree = 0;
+		}
+
+		/**
+		 * @return When the last bit of a packet of this size has been sent
+		 */
+		synchronized long transmit(int size, long now) {
+			long start = Math.max(now, nextFree);
+			nextFree = start + size * 1000000000L / bandwidth;
+			return nextFree;
+		}
+	}
+
+	private final HashMap<Long, Double> drops = new HashMap<Long, Double>();
+	private final HashMap<Long, Latency> latencies = new HashMap<Long, Latency>();
+	private final HashMap<Long, Long> bandwidths = new HashMap<Long, Long>();
+	private final ArrayList<Partition> partitions = new ArrayList<Partition>();
+	private final ConcurrentHashMap<Long, Link> links = new ConcurrentHashMap<Long, Link>();
+
+	private final Random rand;
+	private final long seed;
+	private final long start;
+
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong partitioned = new AtomicLong();
+	private final AtomicLong delayed = new AtomicLong();
+	private final AtomicLong delayNanos = new AtomicLong();
+
+	/**
+	 * Read a fault config file. Times in partitions count from now.
+	 *
+	 * @param filename
+	 *            The config file
+	 * @throws IOException
+	 *             If the file cannot be read
+	 * @throws IllegalArgumentException
+	 *             If a line is not a valid rule
+	 */
+	FaultInjector(String filename) throws IOException, IllegalArgumentException {
+		Long configSeed = null;
+		BufferedReader reader = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			int lineNum = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNum++;
+				line = line.trim();
+				if (line.equals("") || line.startsWith("//") || line.startsWith("#")) {
+					continue;
+				}
+				String[] cmd = line.split("\\s+");
+				try {
+					if (cmd[0].equals("seed") && cmd.length == 2) {
+						configSeed = Long.parseLong(cmd[1]);
+					} else if (!parseRule(cmd)) {
+						throw new IllegalArgumentException("not a valid rule");
+					}
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException(filename + " line " + lineNum + ": " + line
+							+ ": " + e.getMessage());
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException(filename + " line " + lineNum + ": " + line
+							+ ": " + e.getMessage());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		seed = configSeed == null ? System.currentTimeMillis() : configSeed;
+		rand = new Random(seed);
+		start = System.nanoTime();
+	}
+
+	/**
+	 * @return false if the tokens are not a rule
+	 */
+	private boolean parseRule(String[] cmd) {
+		if (cmd[0].equals("drop") && cmd.length == 4) {
+			double p = Double.parseDouble(cmd[3]);
+			if (p < 0 || p > 1) {
+				throw new IllegalArgumentException("probability must be between 0 and 1");
+			}
+			drops.put(key(cmd[1], cmd[2]), p);
+		} else if (cmd[0].equals("latency") && cmd.length >= 5) {
+			String kind = cmd[3];
+			double a = Double.parseDouble(cmd[4]);
+			double b = 0;
+			if (kind.equals("uniform") || kind.equals("normal")) {
+				if (cmd.length != 6) {
+					return false;
+				}
+				b = Double.parseDouble(cmd[5]);
+			} else if (!(kind.equals("fixed") || kind.equals("exponential")) || cmd.length != 5) {
+				return false;
+			}
+			latencies.put(key(cmd[1], cmd[2]), new Latency(kind, a, b));
+		} else if (cmd[0].equals("bandwidth") && cmd.length == 4) {
+			long bytes = Long.parseLong(cmd[3]);
+			if (bytes <= 0) {
+				throw new IllegalArgumentException("bandwidth must be positive");
+			}
+			bandwidths.put(key(cmd[1], cmd[2]), bytes);
+		} else if (cmd[0].equals("partition") && cmd.length >= 5) {
+			Partition p = new Partition((long) (Double.parseDouble(cmd[1]) * 1000000000L),
+					(long) (Double.parseDouble(cmd[2]) * 1000000000L));
+			for (int i = 3; i < cmd.length; i++) {
+				for (String addr : cmd[i].split(",")) {
+					p.groups.put(Integer.parseInt(addr), i);
+				}
+			}
+			partitions.add(p);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	private static long key(String src, String dest) {
+		return key(src.equals("*") ? ANY : Integer.parseInt(src), dest.equals("*") ? ANY : Integer.parseInt(dest));
+	}
+
+	private static long key(int src, int dest) {
+		return ((long) src << 32) | (dest & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @return The most specific rule for a link, or null
+	 */
+	private static <T> T lookup(HashMap<Long, T> rules, int src, int dest) {
+		T rule = rules.get(key(src, dest));
+		if (rule == null) {
+			rule = rules.get(key(src, ANY));
+		}
+		if (rule == null) {
+			rule = rules.get(key(ANY, dest));
+		}
+		if (rule == null) {
+			rule = rules.get(key(ANY, ANY));
+		}
+		return rule;
+	}
+
+	private Link link(int src, int dest) {
+		long k = key(src, dest);
+		Link link = links.get(k);
+		if (link == null) {
+			Double drop = lookup(drops, src, dest);
+			Long bandwidth = lookup(bandwidths, src, dest);
+			link = new Link(drop == null ? 0 : drop, lookup(latencies, src, dest),
+					bandwidth == null ? 0 : bandwidth);
+			Link raced = links.putIfAbsent(k, link);
+			if (raced != null) {
+				link = raced;
+			}
+		}
+		return link;
+	}
+
+	/**
+	 * Decide what happens to a packet
+	 *
+	 * @param src
+	 *            The sending node
+	 * @param dest
+	 *            The receiving node
+	 * @param size
+	 *            The size of the packet on the wire
+	 * @param now
+	 *            The current System.nanoTime()
+	 * @return When to deliver the packet, in System.nanoTime() terms, or -1
+	 *         to drop it
+	 */
+	long schedule(int src, int dest, int size, long now) {
+		for (Partition p : partitions) {
+			if (p.separates(src, dest, now - start)) {
+				partitioned.incrementAndGet();
+				return -1;
+			}
+		}
+
+		Link link = link(src, dest);
+		if (link.drop > 0 && rand.nextDouble() < link.drop) {
+			dropped.incrementAndGet();
+			return -1;
+		}
+
+		long due = now;
+		if (link.bandwidth > 0) {
+			due = link.transmit(size, now);
+		}
+		if (link.latency != null) {
+			due += link.latency.sample(rand);
+		}
+		if (due > now) {
+			delayed.incrementAndGet();
+			delayNanos.addAndGet(due - now);
+		}
+		return due;
+	}
+
+	long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * @return One line, e.g.
+	 *         "Faults: 12 dropped, 40 dropped by partitions, 300 delayed by 51.20 ms on average"
+	 */
+	public String toString() {
+		long d = delayed.get();
+		return "Faults: " + dropped.get() + " dropped, " + partitioned.get() + " dropped by partitions, "
+				+ d + " delayed by " + String.format("%.2f", d == 0 ? 0.0 : delayNanos.get() / 1e6 / d)
+				+ " ms on average";
+	}
+}
@@ -0,0 +1,185 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * One end of an in-memory connection between a node and a Router in the same
+ * JVM. Each direction is a bounded byte buffer: reads block until there are
+ * bytes and writes block while the buffer is full, like a socket's. The
+ * PacketChannel on either end frames packets on it exactly as it does on a
+ * socket, so the address handshake, the FIN handshake and the Router's
+ * down-queues all work unchanged; the bytes just never leave the process.
+ *
+ * Loopback channels are always blocking, so only the Router's threaded mode
+ * can use them.
+ */
+class LoopbackChannel implements ByteChannel, GatheringByteChannel {
+	// bytes buffered in each direction, about what a socket buffers
+	static final int CAPACITY = 256 * 1024;
+
+	/**
+	 * One direction of a connection
+	 */
+	private static class Pipe {
+		private final byte[] data;
+		private int head;
+		private int count;
+		// no more bytes will be written; the reader sees the end of the
+		// stream once it has read what is left
+		private boolean writerDone;
+		// the reading end is closed; writes fail
+		private boolean readerGone;
+
+		Pipe(int capacity) {
+			data = new byte[capacity];
+			head = 0;
+			count = 0;
+			writerDone = false;
+			readerGone = false;
+		}
+
+		synchronized int read(ByteBuffer dst) throws IOException {
+			while (count == 0 && !writerDone && !readerGone) {
+				waitForChange();
+			}
+			if (readerGone) {
+				throw new AsynchronousCloseException();
+			}
+			if (count == 0) {
+				return -1;
+			}
+
+			int n = Math.min(dst.remaining(), count);
+			int first = Math.min(n, data.length - head);
+			dst.put(data, head, first);
+			dst.put(data, 0, n - first);
+			head = (head + n) % data.length;
+			count -= n;
+			notifyAll();
+			return n;
+		}
+
+		synchronized int write(ByteBuffer src) throws IOException {
+			int written = 0;
+			while (src.hasRemaining()) {
+				while (count == data.length && !readerGone && !writerDone) {
+					waitForChange();
+				}
+				if (writerDone) {
+					throw new ClosedChannelException();
+				}
+				if (readerGone) {
+					throw new IOException("Broken pipe");
+				}
+
+				int tail = (head + count) % data.length;
+				int n = Math.min(src.remaining(), data.length - count);
+				int first = Math.min(n, data.length - tail);
+				src.get(data, tail, first);
+				src.get(data, 0, n - first);
+				count += n;
+				written += n;
+				notifyAll();
+			}
+			return written;
+		}
+
+		synchronized void shutdownWriter() {
+			writerDone = true;
+			notifyAll();
+		}
+
+		synchronized void closeReader() {
+			readerGone = true;
+			notifyAll();
+		}
+
+		private void waitForChange() throws InterruptedIOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	private final Pipe in;
+	private final Pipe out;
+	private volatile boolean open;
+
+	private LoopbackChannel(Pipe in, Pipe out) {
+		this.in = in;
+		this.out = out;
+		open = true;
+	}
+
+	/**
+	 * Create a connection
+	 *
+	 * @return The two ends of the connection. What is written to one is
+	 *         read from the other
+	 */
+	static LoopbackChannel[] pair() {
+		Pipe a = new Pipe(CAPACITY);
+		Pipe b = new Pipe(CAPACITY);
+		return new LoopbackChannel[] { new LoopbackChannel(a, b), new LoopbackChannel(b, a) };
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+		return in.read(dst);
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		return out.write(src);
+	}
+
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long written = 0;
+		for (int i = offset; i < offset + length; i++) {
+			written += write(srcs[i]);
+		}
+		return written;
+	}
+
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	/**
+	 * Stop writing. The other end reads what has been written and then the
+	 * end of the stream.
+	 */
+	void shutdownOutput() {
+		out.shutdownWriter();
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Close this end. A thread blocked reading it gets an
+	 * AsynchronousCloseException, and the other end reads the end of the
+	 * stream.
+	 */
+	public void close() {
+		open = false;
+		in.closeReader();
+		out.shutdownWriter();
+	}
+}
@@ -15,7 +15,10 @@ import java.util.HashMap;
  */
 public abstract class Manager {
     protected static final int BROADCAST_ADDRESS = 255;
-    protected static final int MAX_ADDRESS = 255;
+    // Addresses above 255 are sent with the extended packet header
+    protected static final int MAX_ADDRESS = Integer.MAX_VALUE;
+    // Vector times start out this long and grow to fit larger addresses
+    protected static final int INITIAL_VECTOR_LENGTH = 255;
 
     protected final double failureRate;
     protected final double recoveryRate;
@@ -31,6 +34,9 @@ public abstract class Manager {
     protected HashMap<Integer, VectorTime> vtimes;
 
     private int pktsSent;
+    private long bytesSent;
+    private long storageWrites;
+    private long storageReads;
     protected ArrayList<Event> sortedEvents;
     protected ArrayList<Timeout> waitingTOs;
     protected ArrayList<Packet> inTransitMsgs;
@@ -99,6 +105,9 @@ public abstract class Manager {
             String replayOutputFilename, String replayInputFilename)
             throws IllegalArgumentException, IOException {
         pktsSent = 0;
+        bytesSent = 0;
+        storageWrites = 0;
+        storageReads = 0;
         waitingTOs = new ArrayList<Timeout>();
         inTransitMsgs = new ArrayList<Packet>();
         parser = null;
@@ -169,7 +178,8 @@ public abstract class Manager {
      */
     protected String stopString() {
         String s = "MessageLayer exiting.\nNumber of packets sent: "
-                + String.valueOf(pktsSent);
+                + String.valueOf(pktsSent)
+                + "\nNumber of bytes sent: " + String.valueOf(bytesSent);
         if (userControl != FailureLvl.EVERYTHING) {
             s += "\nRandom Seed: " + seed;
         }
@@ -180,7 +190,9 @@ public abstract class Manager {
      * Stops MessageLayer. This method should not return
      */
     protected void stop() {
-        System.out.println(stopString());
+        if (Console.isEnabled(Console.INFO)) {
+            Console.println(Console.INFO, stopString());
+        }
         System.exit(0);
     }
 
@@ -210,6 +222,53 @@ public abstract class Manager {
                     "Either pkt is not valid, address is not valid, or TTL is not valid");
         }
         pktsSent++;
+        bytesSent += Packet.headerSize(to, from) + payload.length;
+    }
+
+    /**
+     * @return The number of packets handed to sendPkt so far. A broadcast
+     *         counts once.
+     */
+    public int getPacketsSent() {
+        return pktsSent;
+    }
+
+    /**
+     * @return The number of bytes, headers included, handed to sendPkt so far
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return The number of storage writes that nodes have performed so far
+     */
+    public long getStorageWrites() {
+        return storageWrites;
+    }
+
+    /**
+     * @return The number of storage reads that nodes have performed so far
+     */
+    public long getStorageReads() {
+        return storageReads;
+    }
+
+    /**
+     * Counts a storage write and hands it to storageWriteEvent. Called by
+     * Node once the write has survived checkWriteCrash.
+     */
+    void countStorageWrite(Node node, String description) {
+        storageWrites++;
+        storageWriteEvent(node, description);
+    }
+
+    /**
+     * Counts a storage read and hands it to storageReadEvent.
+     */
+    void countStorageRead(Node node, String description) {
+        storageReads++;
+        storageReadEvent(node, description);
     }
 
     /**
@@ -289,6 +348,16 @@ public abstract class Manager {
      */
     protected abstract void storageReadEvent(Node node, String description);
 
+    /**
+     * Vector times are only used for the synoptic logs, so when no log is
+     * being written there is no need to keep them or to build event strings.
+     * 
+     * @return true if a synoptic log is being written
+     */
+    protected boolean isLogging() {
+        return synPartialOrderLogger.isEnabled();
+    }
+
     /**
      * Logs an event string for a node to synoptic partial log without a node
      * field
@@ -300,6 +369,9 @@ public abstract class Manager {
      *            the event string
      */
     protected void logEvent(Node node, String eventStr) {
+        if (!isLogging()) {
+            return;
+        }
         // step() comes before logging because on communication, we've updated
         // the destination vtime to be at least the source, but it needs to be
         // strictly greater than the source.
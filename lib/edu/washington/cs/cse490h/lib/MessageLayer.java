@@ -24,13 +24,21 @@ import edu.washington.cs.cse490h.lib.Manager.FailureLvl;
  *  -s --simulate=<boolean>                           - Simulate [default false]
  *  -e --emulate=<boolean>                            - Emulate [default false]
  *  -n --nodeClass=<string>                           - Node class to use [default ]
- *  --routerHostname=<string>                         - Router hostname [default localhost]
+ *  --routerHostname=<string>                         - Router hostname, or loopback for a Router in this JVM [default localhost]
  *  --routerPort=<int>                                - Router port [default -1]
  *  -a --nodeAddr=<int>                               - Node address [default -1]
+ *  --nodeCount=<int>                                 - Emulate this many nodes in one JVM, at addresses from nodeAddr up [default 1]
  *  -t --timestep=<long>                              - Time step, in ms [default 1000]
+ *  -m --minTimestep=<long>                           - Shortest time step, in ms: steps end early when packets arrive. -1 for fixed steps [default -1]
  *  -r --seed=<long>                                  - Random seed
  *  -c --commandFile=<string>                         - Command file [default ]
  *  -f --failureLvlInt=<int>                          - Failure level, a number between 0 and 4 [default 4]
+ *  -q --headless=<boolean>                           - Headless: suppress the framework's console output [default false]
+ *  --consoleLevel=<int>                              - Console level: 0 quiet, 1 info, 2 trace [default -1]
+ *  -k --checksums=<boolean>                          - Send packets to the router with CRC32C checksums [default false]
+ *  -b --batchWrites=<boolean>                        - Batch the packets sent in a time step into one write [default true]
+ *  -u --udp=<boolean>                                - Talk to the router over UDP, which can drop and reorder packets [default false]
+ *  --mtu=<int>                                       - The largest packet sent over UDP, in bytes [default 65507]
  *
  * Debugging Options:
  *  -L --synopticTotallyOrderedLogFilename=<string>   - Synoptic totally ordered log filename [default ]
@@ -86,7 +94,7 @@ public class MessageLayer {
 	/**
 	 * Router hostname
 	 */
-	@Option(value="Router hostname", aliases={"-router-host"})
+	@Option(value="Router hostname, or loopback for a Router in this JVM", aliases={"-router-host"})
 	public static String routerHostname = "localhost";
 
 	/**
@@ -99,12 +107,24 @@ public class MessageLayer {
 	@Option(value="-a Node address", aliases={"-node-address"}) 
 	public static int nodeAddr = -1;
 
+	/**
+	 * Number of nodes to emulate in this JVM
+	 */
+	@Option(value="Emulate this many nodes in one JVM, at addresses from nodeAddr up", aliases={"-node-count"})
+	public static int nodeCount = 1;
+
 	/**
 	 * Time step
 	 */
 	@Option(value = "-t Time step, in ms", aliases = { "-time-step" })
 	public static long timestep = 1000;
 
+	/**
+	 * Minimum time step, turns on adaptive steps
+	 */
+	@Option(value = "-m Shortest time step, in ms: steps end early when packets arrive. -1 for fixed steps", aliases = { "-min-time-step" })
+	public static long minTimestep = -1;
+
 	/**
 	 * Seed to use
 	 */
@@ -122,6 +142,42 @@ public class MessageLayer {
 	 */
 	@Option(value="-f Failure level, a number between 0 and 4", aliases={"-failure-lvl"})
 	public static int failureLvlInt = 4;
+
+	/**
+	 * Headless mode
+	 */
+	@Option(value="-q Headless: suppress the framework's console output", aliases={"-headless"})
+	public static boolean headless = false;
+
+	/**
+	 * Console level, overrides the one picked by headless
+	 */
+	@Option(value="Console level: 0 quiet, 1 info, 2 trace", aliases={"-console-level"})
+	public static int consoleLevel = -1;
+
+	/**
+	 * Checked frames to the router
+	 */
+	@Option(value="-k Send packets to the router with CRC32C checksums", aliases={"-checksums"})
+	public static boolean checksums = false;
+
+	/**
+	 * Write batching to the router
+	 */
+	@Option(value="-b Batch the packets sent in a time step into one write", aliases={"-batch-writes"})
+	public static boolean batchWrites = true;
+
+	/**
+	 * UDP transport to the router
+	 */
+	@Option(value="-u Talk to the router over UDP, which can drop and reorder packets", aliases={"-udp"})
+	public static boolean udp = false;
+
+	/**
+	 * UDP MTU
+	 */
+	@Option(value="The largest packet sent over UDP, in bytes", aliases={"-mtu"})
+	public static int mtu = DatagramFraming.MAX_DATAGRAM;
 	// end option group "Execution Options"
 
 
@@ -199,6 +255,22 @@ public class MessageLayer {
 			return;
 		}
 
+		if (consoleLevel != -1) {
+			Console.setLevel(consoleLevel);
+		} else if (headless) {
+			Console.setLevel(Console.QUIET);
+		}
+
+		PacketChannel.setChecksums(checksums);
+		PacketChannel.setBatching(batchWrites);
+		NodeServer.setDatagrams(udp);
+		try {
+			DatagramFraming.setMtu(mtu);
+		} catch (IllegalArgumentException e) {
+			printError(e.getMessage());
+			return;
+		}
+
 		if (!simulate && !emulate) {
 			printError("you must specify either -s or -e.");
 			return;
@@ -294,12 +366,42 @@ public class MessageLayer {
 					printWarning("Both seed and replay input are specified.  Seed will be ignored.");
 				}
 
+				if (routerHostname.equals(Router.LOOPBACK)) {
+					// the nodes and the router all run in this JVM
+					Router.startLoopback(routerPort);
+				}
+
+				if (nodeCount > 1) {
+					if (!replayOutputFilename.equals("") || !replayInputFilename.equals("")
+							|| !synopticPartialOrderLogFilename.equals("")) {
+						printError("Replay and synoptic log files are not supported with --nodeCount");
+						return;
+					}
+					if (failureLvl != FailureLvl.NOTHING) {
+						printWarning("Hosted nodes share the console, so their failures are all random (failure-lvl 0)");
+					}
+
+					EmulatorHost host;
+					try {
+						host = new EmulatorHost(nodeImpl, nodeAddr, nodeCount, routerHostname, routerPort, seed, timestep, minTimestep, commandFile);
+					} catch (FileNotFoundException e) {
+						printError("Incorrect command file name given to EmulatorHost. Exception: " + e);
+						return;
+					} catch (IllegalArgumentException e) {
+						printError("Illegal arguments given to EmulatorHost. Exception: " + e);
+						return;
+					}
+					host.start();
+					return;
+				}
+
 				try {
 					if (!commandFile.equals("")) {
 						manager = new Emulator(nodeImpl, nodeAddr, routerHostname, routerPort, failureLvl, seed, timestep, replayOutputFilename, replayInputFilename, commandFile);
 					} else {
 						manager = new Emulator(nodeImpl, nodeAddr, routerHostname, routerPort, failureLvl, seed, timestep, replayOutputFilename, replayInputFilename);
 					}
+					((Emulator) manager).setMinTimeStep(minTimestep);
 				} catch(UnknownHostException e) {
 					printError("Router host name is unkown! Exception: " + e);
 					return;
@@ -107,6 +107,14 @@ public abstract class Node {
 	 */
 	public abstract void onCommand(String command);
 
+	/**
+	 * Called by the manager at the end of each time step that the node is up
+	 * for, once the step's packets, timeouts and commands have all been
+	 * handled. Does nothing unless overridden.
+	 */
+	public void onTimestepEnd() {
+	}
+
 	/**
 	 * This method should be the one called to send a message.
 	 * 
@@ -176,6 +184,13 @@ public abstract class Node {
 		}
 	}
 
+	/**
+	 * @return The current time step
+	 */
+	public long now() {
+		return manager.now();
+	}
+
 	/**
 	 * Gets a PersistentStorageReader object for the filename specified.
 	 * 
@@ -263,7 +278,7 @@ public abstract class Node {
 		// Ask the manager to check whether we should crash or not.
 		manager.checkWriteCrash(this, description);
 		// Since we didn't crash, notify manager of this write event.
-		manager.storageWriteEvent(this, synDescription);
+		manager.countStorageWrite(this, synDescription);
 	}
 
 	/**
@@ -275,7 +290,7 @@ public abstract class Node {
 	 */
 	public void handleDiskReadEvent(String synDescription) {
 		// Notify manager of this read event.
-		manager.storageReadEvent(this, synDescription);
+		manager.countStorageRead(this, synDescription);
 	}
 
 	/**
@@ -0,0 +1,209 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.net.InetAddress;
+import java.util.LinkedList;
+
+/**
+ * A container that represents an address. It either wraps an emulated node, or
+ * a queue of messages to a failed node. When the node comes back, the queue is
+ * replayed to it in batches, and anything sent to it meanwhile queues up
+ * behind the replay so the order is kept.
+ */
+class NodeContainer {
+	// packets replayed to a restarted node at a time
+	static final int REPLAY_BATCH = 64;
+	// packets per second replayed to a restarted node, 0 for no limit
+	private static volatile int replayRate = 0;
+
+	private final int addr;
+	private boolean up;
+	private EmulatedNode node;
+	private final DownQueue downQueue;
+	// the down-queue is being sent to the restarted node
+	private boolean replaying;
+	// the rate limit: when the next batch may be replayed, in nanoTime
+	private long nextReplay;
+
+	NodeContainer(int addr, EmulatedNode node) {
+		this.addr = addr;
+		up = true;
+		this.node = node;
+		downQueue = new DownQueue(addr);
+		replaying = false;
+	}
+
+	/**
+	 * @param packetsPerSecond
+	 *            How fast down-queues are replayed, 0 for no limit
+	 */
+	static void setReplayRate(int packetsPerSecond) {
+		replayRate = packetsPerSecond;
+	}
+
+	synchronized void quit(LinkedList<Packet> queue) {
+		if(node != null) {
+			node.finish();
+		}
+		up = false;
+		replaying = false;
+		node = null;
+
+		if(queue != null) {
+			for (Packet pkt : queue) {
+				downQueue.add(pkt);
+			}
+		}
+	}
+
+	/**
+	 * Bring the address back up with a new node
+	 * 
+	 * @return true if there are queued packets, which the caller should
+	 *         replay with replayBatch()
+	 */
+	synchronized boolean restart(EmulatedNode node) {
+		if(this.node != null) {
+			this.node.finish();
+		}
+		up = true;
+		this.node = node;
+
+		if (!downQueue.isEmpty()) {
+			if (Console.isEnabled(Console.INFO)) {
+				Console.println(Console.INFO, "Replaying " + downQueue.packets() + " packets ("
+						+ downQueue.bytes() + " bytes) queued for " + addr);
+			}
+			replaying = true;
+			nextReplay = 0;
+		}
+		return replaying;
+	}
+
+	/**
+	 * Replay the next batch of the down-queue to the restarted node. In
+	 * threaded mode the batch is written before this returns, so a slow node
+	 * slows the replay down; in selector mode no batch is queued while the
+	 * channel still has not taken the last one.
+	 * 
+	 * @return -1 once there is nothing left to replay, 0 if the next batch
+	 *         can go straight away, Long.MAX_VALUE if it has to wait for
+	 *         the channel, or otherwise the nanoseconds until the rate limit
+	 *         lets it go
+	 */
+	long replayBatch() {
+		EmulatedNode target;
+		long wait;
+		synchronized (this) {
+			if (!replaying || !up) {
+				// if the node went down again, the rest stays queued
+				replaying = false;
+				return -1;
+			}
+			if (node.isWriteBlocked()) {
+				return Long.MAX_VALUE;
+			}
+			long now = System.nanoTime();
+			if (now < nextReplay) {
+				return nextReplay - now;
+			}
+
+			int n = 0;
+			Packet p;
+			while (n < REPLAY_BATCH && (p = downQueue.poll()) != null) {
+				if (!node.enqueue(p)) {
+					// going down again: keep it for the next restart
+					downQueue.push(p);
+					replaying = false;
+					return -1;
+				}
+				n++;
+			}
+			if (downQueue.isEmpty()) {
+				replaying = false;
+			}
+			if (replayRate > 0) {
+				nextReplay = now + n * 1000000000L / replayRate;
+			}
+			wait = replaying ? Math.max(0, nextReplay - now) : -1;
+			target = node;
+		}
+		target.flush();
+		return wait;
+	}
+
+	synchronized boolean isUp() {
+		return up;
+	}
+
+	/**
+	 * @return About how many packets are waiting to be written to the node,
+	 *         0 if it is down
+	 */
+	synchronized int getQueueDepth() {
+		return node == null ? 0 : node.queueDepth();
+	}
+
+	/**
+	 * @return The number of packets waiting for the node, in memory or on
+	 *         disk
+	 */
+	synchronized long getQueuedPackets() {
+		return downQueue.packets();
+	}
+
+	/**
+	 * @return The number of bytes waiting for the node, in memory or on disk
+	 */
+	synchronized long getQueuedBytes() {
+		return downQueue.bytes();
+	}
+
+	/**
+	 * @return The number of packets waiting for the node on disk
+	 */
+	synchronized long getSpilledPackets() {
+		return downQueue.spilled();
+	}
+
+	/**
+	 * @return The number of packets for the node that have ever been spilled
+	 *         to disk
+	 */
+	synchronized long getEverSpilled() {
+		return downQueue.everSpilled();
+	}
+
+	synchronized boolean hasConflict(InetAddress ipAddress, int port) {
+		if (up == false) {
+			return false;
+		}
+		return ipAddress.equals(node.getIPAddress()) && port == node.getPort();
+	}
+
+	void send(Packet p) {
+		EmulatedNode target = null;
+		synchronized (this) {
+			if (up && !replaying) {
+				if (node.enqueue(p)) {
+					target = node;
+				} else {
+					if (Console.isEnabled(Console.INFO)) {
+						Console.println(Console.INFO, "Failed to send because node is going down.  Queueing: "
+								+ p.toHeaderString());
+					}
+					downQueue.add(p);
+				}
+			} else {
+				if (!up && Console.isEnabled(Console.TRACE)) {
+					Console.println(Console.TRACE, "Queueing to failed node: " + p.toHeaderString());
+				}
+				downQueue.add(p);
+			}
+		}
+		if (target != null) {
+			// outside the lock, so that threads sending to this node at the
+			// same time share the write
+			target.flush();
+		}
+	}
+}
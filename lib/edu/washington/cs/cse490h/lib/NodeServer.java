@@ -2,20 +2,30 @@ package edu.washington.cs.cse490h.lib;
 
 import java.lang.Thread;
 import java.util.ArrayList;
-import java.net.Socket;
+import java.util.Collection;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 
 /**
  * In a separate thread, this class listens to incoming messages from the router
- * and stores the data received.
+ * and stores the data received. Over TCP (or loopback) it has a connection to the
+ * router; over UDP each packet is a datagram of its own (see DatagramFraming), and
+ * nothing is resent if one is lost.
  */
 public class NodeServer implements Runnable {
-	private Socket socket;
-	private ArrayList<Packet> packetsReceived;
-	private InputStream in;
-	private OutputStream out;
+	// how long close() waits for the router's FIN over UDP
+	private static final long UDP_FIN_TIMEOUT = 1000;
+	// talk to routers over UDP instead of TCP
+	private static boolean datagrams = false;
+
+	// null over UDP
+	private PacketChannel channel;
+	// null over TCP
+	private DatagramChannel udp;
+	private PacketQueue packetsReceived;
 	private int address;
 	private Emulator parent;
 
@@ -27,7 +37,8 @@ public class NodeServer implements Runnable {
 	 * Creates a new NodeServer.
 	 * 
 	 * @param name
-	 *            The name of the machine on which the router resides
+	 *            The name of the machine on which the router resides, or
+	 *            Router.LOOPBACK for a Router in this JVM
 	 * @param port
 	 *            The port on which the router is listening
 	 * @param nodeAddr
@@ -38,26 +49,53 @@ public class NodeServer implements Runnable {
 	 *             If there is a problem creating the socket
 	 */
 	public NodeServer(String name, int port, int nodeAddr, Emulator parent) throws IOException{
-		socket = new Socket(name, port);
-		packetsReceived = new ArrayList<Packet>();
-		in = socket.getInputStream();
-		out = socket.getOutputStream();
+		packetsReceived = new PacketQueue();
 		gotFIN = false;
 		this.parent = parent;
 		finished = false;
 		
 		address = nodeAddr;
-		out.write(nodeAddr);
-		out.flush();
+		if (datagrams && !Router.LOOPBACK.equals(name)) {
+			udp = DatagramFraming.open();
+			udp.connect(new InetSocketAddress(name, port));
+			// one datagram, so the router can send to us before we send
+			PacketChannel.writeAddress(udp, nodeAddr);
+		} else if (Router.LOOPBACK.equals(name)) {
+			channel = new PacketChannel(Router.connectLoopback(port, nodeAddr));
+		} else {
+			SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(name, port));
+			socketChannel.socket().setTcpNoDelay(true);
+			PacketChannel.writeAddress(socketChannel, nodeAddr);
+			channel = new PacketChannel(socketChannel);
+		}
 		
-		Thread t = new Thread(this);
-		t.start();
+		if (parent.isHosted()) {
+			EmulatorHost.startThread(this, "NodeServer " + nodeAddr);
+		} else {
+			Thread t = new Thread(this);
+			t.start();
+		}
+	}
+
+	/**
+	 * Talk to routers over UDP instead of TCP, from the next NodeServer
+	 * created on
+	 * 
+	 * @param on
+	 *            true for UDP
+	 */
+	public static void setDatagrams(boolean on) {
+		datagrams = on;
 	}
 
 	public void run() {
+		if (udp != null) {
+			receiveDatagrams();
+			return;
+		}
 		try {
-			while(!finished && !socket.isClosed()) {
-				Packet packet = Packet.unpack(in);
+			while(!finished && !channel.isClosed()) {
+				Packet packet = channel.read();
 
 				if(packet == null) {
 					// The other side closed the connection
@@ -78,10 +116,7 @@ public class NodeServer implements Runnable {
 			//e.printStackTrace();
 		}
 
-		try {
-			socket.close();
-		} catch (IOException e) {
-		}
+		channel.close();
 		synchronized (parent) {
 			if (parent != null) {
 				parent.IOFinish();
@@ -90,29 +125,102 @@ public class NodeServer implements Runnable {
 	}
 
 	/**
-	 * Gets the first packet stored
-	 * 
-	 * @return The first packet stored
+	 * Over UDP: receive datagrams until the router's FIN comes or the
+	 * channel is closed
 	 */
-	protected Packet getPacket() {
-		synchronized (packetsReceived) {
-			if (packetsReceived.isEmpty()) {
-				return null;
+	private void receiveDatagrams() {
+		ByteBuffer buf = ByteBuffer.allocateDirect(DatagramFraming.MAX_DATAGRAM);
+		try {
+			while (!finished && udp.isOpen()) {
+				buf.clear();
+				udp.receive(buf);
+				buf.flip();
+
+				Packet packet;
+				try {
+					packet = DatagramFraming.decode(buf);
+				} catch (Packet.CorruptPacketException e) {
+					System.err.println("Dropping a corrupt datagram from the router.");
+					continue;
+				}
+				if (packet == null) {
+					continue;
+				}
+				if ((packet.getFlags() & Packet.FIN) != 0) {
+					gotFIN = true;
+					return;
+				}
+				storePacket(packet);
 			}
-			return packetsReceived.remove(0);
+		} catch (IOException e) {
+			if (!finished) {
+				System.err.println("Encountered IOException when trying to receive packet.");
+			}
+		}
+
+		closeChannel();
+		// close() sets parent to null
+		Emulator p = parent;
+		if (p != null) {
+			p.IOFinish();
+		}
+	}
+
+	private void closeChannel() {
+		if (udp != null) {
+			try {
+				udp.close();
+			} catch (IOException e) {
+			}
+		} else {
+			channel.close();
 		}
 	}
 
 	/**
-	 * Send a packet to the EmulatedNode at the router
+	 * Moves every packet received so far to a collection, in the order they
+	 * were received. Does not block the thread that receives them.
+	 * 
+	 * @param into
+	 *            The collection to add the packets to
+	 * @return The number of packets moved
+	 */
+	protected int drainTo(Collection<Packet> into) {
+		return packetsReceived.drainTo(into);
+	}
+
+	/**
+	 * Send a packet to the EmulatedNode at the router. With write batching
+	 * on, the packet is only written by the next flush().
 	 * 
 	 * @param pkt
-	 *            Serialized version of the packet
+	 *            The packet to send
 	 */
-	protected void send(byte[] pkt) {
+	protected void send(Packet pkt) {
 		try {
-			out.write(pkt);
-			out.flush();
+			if (udp != null) {
+				DatagramFraming.send(udp, pkt, null);
+			} else if (PacketChannel.isBatching()) {
+				channel.enqueue(pkt);
+			} else {
+				channel.write(pkt);
+			}
+		} catch (IOException e) {
+			finished = true;
+			//e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Write every packet sent since the last flush, in as few writes as
+	 * possible. The emulator calls this once per time step.
+	 */
+	protected void flush() {
+		if (udp != null) {
+			return;
+		}
+		try {
+			channel.drain();
 		} catch (IOException e) {
 			finished = true;
 			//e.printStackTrace();
@@ -126,10 +234,19 @@ public class NodeServer implements Runnable {
 	 *            The packet to store
 	 */
 	private void storePacket(Packet packet) {
-		synchronized (packetsReceived) {
-			packetsReceived.add(packet);
+		packetsReceived.add(packet);
+		Emulator p = parent;
+		if (p != null) {
+			p.packetArrived();
 		}
 	}
+
+	/**
+	 * @return Whether there are received packets that drainTo has not moved
+	 */
+	protected boolean hasPackets() {
+		return !packetsReceived.isEmpty();
+	}
 	
 	/**
 	 * Close the connection cleanly.
@@ -137,11 +254,18 @@ public class NodeServer implements Runnable {
 	protected void close() {
 		try {
 			Packet fin = Packet.getFinPacket(address);
-			send(fin.pack());
+			send(fin);
+			flush();
 
 			// wait until the router acknowledges our closing attempt
+			long deadline = System.currentTimeMillis() + UDP_FIN_TIMEOUT;
 			while (!gotFIN) {
-				if (socket.isClosed()) {
+				if (udp != null && System.currentTimeMillis() > deadline) {
+					// a datagram was lost; the router keeps queueing for us
+					// until we come back
+					throw new IOException("No FIN back from the router over UDP");
+				}
+				if (udp == null && channel.isClosed()) {
 					// to prevent a race condition:
 					if (!gotFIN) {
 						throw new IOException("Socket closed before we got a FIN back!");
@@ -151,33 +275,29 @@ public class NodeServer implements Runnable {
 			}
 
 			// send back all the in-transit messages
-			synchronized (packetsReceived) {
-				for (Packet pkt : packetsReceived) {
-					send(pkt.pack());
-				}
+			ArrayList<Packet> received = new ArrayList<Packet>();
+			packetsReceived.drainTo(received);
+			for (Packet pkt : received) {
+				send(pkt);
 			}
 			for (Packet pkt : parent.inTransitMsgs) {
-				send(pkt.pack());
+				send(pkt);
 			}
 
 			// send a second fin to finalize the close
-			send(fin.pack());
+			send(fin);
+			flush();
 		} catch (IOException e) {
 			System.err.println("Error while sending back packets.");
 			//e.printStackTrace();
 		}
 
-		packetsReceived.clear();
+		packetsReceived.drainTo(new ArrayList<Packet>());
 		synchronized (parent) {
 			parent = null;
 		}
 		finished = true;
 
-		try {
-			socket.close();
-		} catch (IOException e) {
-			System.err.println("Error while closing socket!");
-			//e.printStackTrace();
-		}
+		closeChannel();
 	}
 }
@@ -0,0 +1,128 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.TreeSet;
+
+/**
+ * <pre>
+ * A timer for a node that can be moved or stopped after it is set, which a
+ * timeout from Node.addTimeout cannot. However often it is moved, only one
+ * timeout is waiting with the manager for it at a time, as long as it is
+ * only moved later: the timeout just finds the deadline has moved when it
+ * fires and sets itself again. Moving it earlier adds one more timeout.
+ * Example:
+ *         NodeTimer timer = new NodeTimer(this, new Callback(method, this, null));
+ *         timer.schedule(3);    // fire in 3 time steps
+ *         timer.schedule(5);    // no, in 5
+ *         timer.cancel();       // or not at all
+ * </pre>
+ */
+public class NodeTimer {
+	private final Node node;
+	private final Callback cb;
+	private final Callback fire;
+
+	// the time step to fire at, or -1 when the timer is not set
+	private long deadline;
+	// when each of the timeouts waiting with the manager fires
+	private final TreeSet<Long> waiting;
+
+	/**
+	 * @param node
+	 *            The node the timer belongs to
+	 * @param cb
+	 *            What to invoke when the timer fires
+	 */
+	public NodeTimer(Node node, Callback cb) {
+		this.node = node;
+		this.cb = cb;
+		deadline = -1;
+		waiting = new TreeSet<Long>();
+		try {
+			Method onFire = Callback.getMethod("onFire", this, new String[0]);
+			fire = new Callback(onFire, this, new Object[0]);
+		} catch (Exception e) {
+			// onFire is public, so this cannot happen
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Set the timer to fire a number of time steps from now, in place of
+	 * whenever it was set to fire before
+	 *
+	 * @param timer
+	 *            The number of time steps, at least 1
+	 */
+	public void schedule(int timer) {
+		long now = node.now();
+		deadline = now + Math.max(timer, 1);
+		if (waiting.isEmpty() || waiting.first() > deadline) {
+			waiting.add(deadline);
+			node.addTimeout(fire, (int) (deadline - now));
+		}
+	}
+
+	/**
+	 * Stop the timer if it is set
+	 */
+	public void cancel() {
+		deadline = -1;
+	}
+
+	/**
+	 * @return true if the timer is set to fire
+	 */
+	public boolean isSet() {
+		return deadline >= 0;
+	}
+
+	/**
+	 * @return The time step the timer fires at, or -1 if it is not set
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Called when one of the timer's timeouts fires. Not to be called
+	 * otherwise; it is public for Callback.
+	 *
+	 * @throws IllegalAccessException
+	 *             If the callback cannot be invoked
+	 * @throws InvocationTargetException
+	 *             If the callback throws a checked exception
+	 */
+	public void onFire() throws IllegalAccessException, InvocationTargetException {
+		long now = node.now();
+		waiting.headSet(now, true).clear();
+		if (deadline < 0) {
+			return;
+		}
+
+		if (now < deadline) {
+			// moved later since this timeout was set
+			if (waiting.isEmpty() || waiting.first() > deadline) {
+				waiting.add(deadline);
+				node.addTimeout(fire, (int) (deadline - now));
+			}
+			return;
+		}
+
+		deadline = -1;
+		try {
+			cb.invoke();
+		} catch (InvocationTargetException e) {
+			// rethrown as is, so that the manager sees a NodeCrashException
+			// thrown by the callback as the node crashing
+			Throwable t = e.getCause();
+			if (t instanceof RuntimeException) {
+				throw (RuntimeException) t;
+			} else if (t instanceof Error) {
+				throw (Error) t;
+			}
+			throw e;
+		}
+	}
+}
@@ -1,11 +1,10 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
 
 /**
  * <pre>   
@@ -14,6 +13,7 @@ import java.io.InputStream;
  */
 public class Packet {
 	public static final int HEADER_SIZE = 8;
+	public static final int EXTENDED_HEADER_SIZE = 16;
 	public static final int MAX_PACKET_SIZE = java.lang.Integer.MAX_VALUE;  // bytes
 	public static final int MAX_PAYLOAD_SIZE = MAX_PACKET_SIZE - HEADER_SIZE;  // bytes
 
@@ -24,9 +24,37 @@ public class Packet {
 	
 	protected static final byte FIN = 1;
 	protected static final byte REPLAY = 2;
+	// Set on the wire only: the packet uses the extended header
+	protected static final int EXTENDED = 0x80;
+
+	// Version of the extended header. Unknown versions are corrupt packets.
+	protected static final int HEADER_VERSION = 1;
+
+	// Largest address that fits in the basic header
+	protected static final int MAX_BASIC_ADDRESS = 0xFF;
+
+	// Sent in place of the address byte of the Router handshake when the
+	// address needs 4 bytes. 0xFF is the broadcast address, which no node
+	// can have.
+	protected static final int EXTENDED_ADDRESS_MARKER = 0xFF;
+
+	// Starts every checked frame; see encodeCheckedHeader(). Its last byte
+	// is where a plain packet has its flags, and no plain packet has those
+	// flag bits set, so a plain packet never looks like a checked frame.
+	protected static final int CHECKED_MARKER = 0xD35AA53C;
+	protected static final int MARKER_SIZE = 4;
+	protected static final int CHECKSUM_SIZE = 4;
+	// marker, header checksum and payload checksum
+	protected static final int CHECKED_OVERHEAD = MARKER_SIZE + 2 * CHECKSUM_SIZE;
 	
 	private byte[] payload;
 
+	// The packet as written on the wire, plain and checked, once
+	// encodeOnce() has built it. Shared by every connection a broadcast goes
+	// out on.
+	private volatile ByteBuffer plainEncoding;
+	private volatile ByteBuffer checkedEncoding;
+
 	static class CorruptPacketException extends IOException {
 		private static final long serialVersionUID = -8471415959243642433L;
 	}
@@ -122,6 +150,16 @@ public class Packet {
 				" contents: " + Utility.byteArrayToString(payload));
 	}
 
+	/**
+	 * @return The header fields and payload length, without the payload
+	 */
+	protected String toHeaderString() {
+		if((flags & FIN) != 0) {
+			return "Packet: " + src + ": FIN";
+		}
+		return "Packet: " + src + "->" + dest + " protocol: " + protocol + " length: " + payload.length;
+	}
+
 	/**
 	 * @return The virtual address of the destination node
 	 */
@@ -157,35 +195,345 @@ public class Packet {
 		return payload;
 	}
 
+	/**
+	 * @return The size of the header this packet is sent with
+	 */
+	protected int headerSize() {
+		return headerSize(dest, src);
+	}
+
+	/**
+	 * @return The size of the header of a packet between two addresses
+	 */
+	protected static int headerSize(int dest, int src) {
+		if (dest > MAX_BASIC_ADDRESS || src > MAX_BASIC_ADDRESS) {
+			return EXTENDED_HEADER_SIZE;
+		}
+		return HEADER_SIZE;
+	}
+
 	/**
 	 * Convert the Packet object into a byte array for sending over the wire.
-	 * Format:
+	 * Format, when both addresses fit in a byte:
 	 *        destination address: 1 byte
 	 *        source address: 1 byte
 	 *        protocol: 1 byte
 	 *        flags: 1 byte
 	 *        payload length: 4 byte
 	 *        payload: <= MAX_PAYLOAD_SIZE bytes
+	 * Otherwise the extended header is used:
+	 *        header version: 1 byte
+	 *        reserved: 1 byte
+	 *        protocol: 1 byte
+	 *        flags, with EXTENDED set: 1 byte
+	 *        destination address: 4 byte
+	 *        source address: 4 byte
+	 *        payload length: 4 byte
+	 *        payload: <= MAX_PAYLOAD_SIZE bytes
 	 * @return A byte[] for transporting over the wire. Null if failed to pack for some reason
 	 */
 	protected byte[] pack() {	
+		byte[] packed = new byte[encodedSize()];
+		encode(ByteBuffer.wrap(packed));
+		return packed;
+	}
+
+	/**
+	 * @return The number of bytes pack() and encode() produce
+	 */
+	protected int encodedSize() {
+		return headerSize() + payload.length;
+	}
+
+	/**
+	 * Writes the header, in the format described at pack(), at the buffer's
+	 * position. Together with the payload this makes a packet, so header and
+	 * payload can be sent with one gathering write.
+	 * 
+	 * @param buf
+	 *            The buffer to write to, with at least headerSize() bytes
+	 *            remaining
+	 */
+	protected void encodeHeader(ByteBuffer buf) {
+		if (headerSize() == EXTENDED_HEADER_SIZE) {
+			buf.put((byte) HEADER_VERSION);
+			buf.put((byte) 0);
+			buf.put((byte) protocol);
+			buf.put((byte) (flags | EXTENDED));
+			buf.putInt(dest);
+			buf.putInt(src);
+		} else {
+			buf.put((byte) dest);
+			buf.put((byte) src);
+			buf.put((byte) protocol);
+			buf.put((byte) flags);
+		}
+		buf.putInt(payload.length);
+	}
+
+	/**
+	 * Writes the whole packet, in the format described at pack(), at the
+	 * buffer's position.
+	 * 
+	 * @param buf
+	 *            The buffer to write to, with at least encodedSize() bytes
+	 *            remaining
+	 */
+	protected void encode(ByteBuffer buf) {
+		encodeHeader(buf);
+		buf.put(payload);
+	}
+
+	/**
+	 * @return The number of bytes encodeChecked() produces
+	 */
+	protected int checkedSize() {
+		return encodedSize() + CHECKED_OVERHEAD;
+	}
+
+	/**
+	 * Writes the start of a checked frame at the buffer's position: the
+	 * marker, the header and the header's checksum. Followed by the payload
+	 * and payloadChecksum() this makes a checked frame.
+	 * 
+	 * Format:
+	 *        marker: 4 bytes, CHECKED_MARKER
+	 *        header: as described at pack()
+	 *        header checksum: 4 bytes, CRC32C of the header
+	 *        payload
+	 *        payload checksum: 4 bytes, CRC32C of the payload
+	 * 
+	 * The header has its own checksum so that a corrupted length is caught
+	 * before the receiver waits for a payload that is not coming.
+	 * 
+	 * @param buf
+	 *            The buffer to write to
+	 */
+	protected void encodeCheckedHeader(ByteBuffer buf) {
+		buf.putInt(CHECKED_MARKER);
+		int header = buf.position();
+		encodeHeader(buf);
+		buf.putInt(checksum(buf, header, buf.position()));
+	}
+
+	/**
+	 * @return The CRC32C of the payload, as written after it in a checked
+	 *         frame
+	 */
+	protected int payloadChecksum() {
+		CRC32C crc = new CRC32C();
+		crc.update(payload, 0, payload.length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Writes the whole packet as a checked frame, in the format described at
+	 * encodeCheckedHeader(), at the buffer's position.
+	 * 
+	 * @param buf
+	 *            The buffer to write to, with at least checkedSize() bytes
+	 *            remaining
+	 */
+	protected void encodeChecked(ByteBuffer buf) {
+		encodeCheckedHeader(buf);
+		buf.put(payload);
+		buf.putInt(payloadChecksum());
+	}
+
+	/**
+	 * Encodes the packet once and keeps the bytes, for a packet that is
+	 * written to many connections. The channels copy the kept bytes instead
+	 * of encoding it again each time.
+	 * 
+	 * @param checked
+	 *            true to keep the checked frame, false for the plain packet
+	 */
+	protected void encodeOnce(boolean checked) {
+		if (getEncoding(checked) != null) {
+			return;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(checked ? checkedSize() : encodedSize());
+		if (checked) {
+			encodeChecked(buf);
+			buf.flip();
+			checkedEncoding = buf;
+		} else {
+			encode(buf);
+			buf.flip();
+			plainEncoding = buf;
+		}
+	}
+
+	/**
+	 * @param checked
+	 *            true for the checked frame, false for the plain packet
+	 * @return The bytes kept by encodeOnce(), as a buffer of their own ready
+	 *         to be read, or null if they were not kept
+	 */
+	protected ByteBuffer getEncoding(boolean checked) {
+		ByteBuffer buf = checked ? checkedEncoding : plainEncoding;
+		return buf == null ? null : buf.duplicate();
+	}
+
+	/**
+	 * Decodes the packet at the buffer's position, straight out of the
+	 * buffer. Both plain packets and checked frames are understood. If the
+	 * buffer does not hold all of the packet yet, nothing is consumed and
+	 * null is returned, so the caller can read more and try again.
+	 * 
+	 * @param buf
+	 *            A buffer ready to be read from
+	 * @return The packet, or null if the buffer holds only part of one
+	 * @throws CorruptPacketException
+	 *             If the bytes cannot be the start of a packet, or a checked
+	 *             frame does not match its checksums. Nothing is consumed.
+	 */
+	protected static Packet decode(ByteBuffer buf) throws CorruptPacketException {
+		if (atMarker(buf)) {
+			return decodeChecked(buf);
+		}
+
+		int start = buf.position();
+		if (buf.remaining() < 4) {
+			return null;
+		}
+		int headerSize = headerSizeAt(buf, start);
+		if (buf.remaining() < headerSize) {
+			return null;
+		}
+		int payloadLength = payloadLengthAt(buf, start, headerSize);
+		if (buf.remaining() - headerSize < payloadLength) {
+			return null;
+		}
+
+		Packet packet = decodeAt(buf, start, headerSize, start + headerSize, payloadLength);
+		buf.position(start + headerSize + payloadLength);
+		return packet;
+	}
+
+	private static Packet decodeChecked(ByteBuffer buf) throws CorruptPacketException {
+		int start = buf.position();
+		int header = start + MARKER_SIZE;
+		if (buf.remaining() < MARKER_SIZE + 4) {
+			return null;
+		}
+		int headerSize = headerSizeAt(buf, header);
+		int payloadStart = header + headerSize + CHECKSUM_SIZE;
+		if (buf.limit() < payloadStart) {
+			return null;
+		}
+		if (checksum(buf, header, header + headerSize) != buf.getInt(header + headerSize)) {
+			throw new CorruptPacketException();
+		}
+		int payloadLength = payloadLengthAt(buf, header, headerSize);
+		if (buf.limit() - payloadStart - CHECKSUM_SIZE < payloadLength) {
+			return null;
+		}
+		int payloadEnd = payloadStart + payloadLength;
+		if (checksum(buf, payloadStart, payloadEnd) != buf.getInt(payloadEnd)) {
+			throw new CorruptPacketException();
+		}
+
+		Packet packet = decodeAt(buf, header, headerSize, payloadStart, payloadLength);
+		buf.position(payloadEnd + CHECKSUM_SIZE);
+		return packet;
+	}
+
+	/**
+	 * @return The size of the header starting at index header
+	 */
+	private static int headerSizeAt(ByteBuffer buf, int header) throws CorruptPacketException {
+		int flags = buf.get(header + 3) & 0xFF;
+		if ((flags & EXTENDED) == 0) {
+			return HEADER_SIZE;
+		}
+		// the address bytes hold the header version and a reserved byte
+		if ((buf.get(header) & 0xFF) != HEADER_VERSION) {
+			throw new CorruptPacketException();
+		}
+		return EXTENDED_HEADER_SIZE;
+	}
+
+	private static int payloadLengthAt(ByteBuffer buf, int header, int headerSize)
+			throws CorruptPacketException {
+		int payloadLength = buf.getInt(header + headerSize - 4);
+		if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_SIZE) {
+			throw new CorruptPacketException();
+		}
+		return payloadLength;
+	}
+
+	private static Packet decodeAt(ByteBuffer buf, int header, int headerSize, int payloadStart,
+			int payloadLength) throws CorruptPacketException {
+		int dest;
+		int src;
+		int protocol = buf.get(header + 2) & 0xFF;
+		int flags = buf.get(header + 3) & 0xFF;
+		if (headerSize == EXTENDED_HEADER_SIZE) {
+			dest = buf.getInt(header + 4);
+			src = buf.getInt(header + 8);
+		} else {
+			dest = buf.get(header) & 0xFF;
+			src = buf.get(header + 1) & 0xFF;
+		}
+
+		byte[] payload = new byte[payloadLength];
+		buf.position(payloadStart);
+		buf.get(payload);
 		try {
-			ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-			DataOutputStream out = new DataOutputStream(byteStream);
-			out.writeByte(dest);
-			out.writeByte(src);
-			out.writeByte(protocol);
-			out.writeByte(flags);
-			out.writeInt(payload.length);
-
-			out.write(payload, 0, payload.length);
-			
-			out.flush();
-			return byteStream.toByteArray();
-		} catch(IOException e) {
-			e.printStackTrace();
+			return new Packet(dest, src, protocol, flags & ~EXTENDED, payload);
+		} catch (IllegalArgumentException e) {
+			throw new CorruptPacketException();
 		}
-		return null;
+	}
+
+	/**
+	 * @return The CRC32C of the bytes of buf from index from up to index to.
+	 *         The buffer's position and limit are left as they were.
+	 */
+	private static int checksum(ByteBuffer buf, int from, int to) {
+		int position = buf.position();
+		int limit = buf.limit();
+		CRC32C crc = new CRC32C();
+		buf.limit(to);
+		buf.position(from);
+		crc.update(buf);
+		buf.limit(limit);
+		buf.position(position);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * @param buf
+	 *            A buffer ready to be read from
+	 * @return true if a checked frame starts at the buffer's position
+	 */
+	protected static boolean atMarker(ByteBuffer buf) {
+		return buf.remaining() >= MARKER_SIZE && buf.getInt(buf.position()) == CHECKED_MARKER;
+	}
+
+	/**
+	 * Moves the buffer's position forward to the next CHECKED_MARKER, to
+	 * realign a stream of checked frames after a corrupt one. If there is no
+	 * marker, the last few bytes, which may be the start of one, are kept.
+	 * 
+	 * @param buf
+	 *            A buffer ready to be read from
+	 * @return The number of bytes skipped
+	 */
+	protected static int skipToMarker(ByteBuffer buf) {
+		int start = buf.position();
+		int limit = buf.limit();
+		int p = start;
+		while (p + MARKER_SIZE <= limit) {
+			if (buf.getInt(p) == CHECKED_MARKER) {
+				buf.position(p);
+				return p - start;
+			}
+			p++;
+		}
+		buf.position(p);
+		return p - start;
 	}
 
 	/**
@@ -199,7 +547,14 @@ public class Packet {
 	 *             If the byte[] representation was corrupted
 	 */
 	protected static Packet unpack(byte[] packedPacket) throws CorruptPacketException{
-		return unpack( new DataInputStream(new ByteArrayInputStream(packedPacket)) );
+		if (packedPacket.length == 0) {
+			return null;
+		}
+		Packet packet = decode(ByteBuffer.wrap(packedPacket));
+		if (packet == null) {
+			throw new CorruptPacketException();
+		}
+		return packet;
 	}
 
 	/**
@@ -213,6 +568,9 @@ public class Packet {
 	 *             If the stream contains a corrupted packet
 	 */
 	protected static Packet unpack(InputStream stream) throws CorruptPacketException {
+		if (stream instanceof DataInputStream) {
+			return unpack((DataInputStream) stream);
+		}
 		return unpack( new DataInputStream(stream) );
 	}
 
@@ -238,6 +596,15 @@ public class Packet {
 			int src = in.read();
 			int protocol = in.read();
 			int flags = in.read();
+			if ((flags & EXTENDED) != 0) {
+				// dest and src held the header version and a reserved byte
+				if (dest != HEADER_VERSION) {
+					throw new CorruptPacketException();
+				}
+				flags &= ~EXTENDED;
+				dest = in.readInt();
+				src = in.readInt();
+			}
 			int payloadLength = in.readInt();
 			
 			byte[] payload = new byte[payloadLength];
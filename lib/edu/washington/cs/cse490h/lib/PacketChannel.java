@@ -0,0 +1,691 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads and writes Packets on a blocking SocketChannel, or an in-process
+ * LoopbackChannel, through pooled direct buffers. Packets are decoded straight out of the read buffer and encoded
+ * straight into the write buffer, so the only array allocated per message is
+ * the payload of a received packet.
+ *
+ * Reads and writes may happen on different threads, but reads must not
+ * happen on more than one thread at a time. The read buffer belongs to the
+ * reading thread and is given back when a read hits the end of the stream or
+ * fails; the write buffer is given back by close().
+ *
+ * A channel is used either blocking, through read() and write() or
+ * enqueue() and flushPending(), or non-blocking from a selector loop,
+ * through fill(), next(), queue() and flush().
+ *
+ * When checksums are on, packets are written as checked frames (see
+ * Packet.encodeCheckedHeader()). Either kind is read. Once the other side
+ * has sent a checked frame, a frame that fails its checksums is dropped and
+ * the stream is realigned on the next frame marker, instead of the
+ * connection being given up.
+ */
+class PacketChannel {
+	// whether packets are written as checked frames
+	private static volatile boolean checksums = false;
+	// whether senders batch their packets into shared writes
+	private static volatile boolean batching = true;
+	// how long a batch waits for more packets before it is written
+	private static volatile long lingerNanos = 0;
+	private static final WriteStats stats = new WriteStats();
+
+	// a SocketChannel or a LoopbackChannel
+	private ByteChannel channel;
+	// kept ready to be read from between calls to read()
+	private ByteBuffer readBuf;
+	private ByteBuffer writeBuf;
+	private ByteBuffer headerBuf;
+	private ByteBuffer trailerBuf;
+
+	// the other side writes checked frames, so corruption can be skipped
+	private boolean peerChecks;
+	// skipping to the next frame marker after a corrupt frame
+	private boolean resyncing;
+	private long dropped;
+
+	// packets enqueued for flushPending(); also the lock for flushing
+	private final ArrayList<Packet> pending;
+	// the packets being written by flushPending()
+	private final ArrayList<Packet> batch;
+	private boolean flushing;
+	// packets queued for flush() that have not gone out yet; volatile for
+	// queuedPackets()
+	private volatile int unwritten;
+
+	/**
+	 * Create a new PacketChannel
+	 *
+	 * @param channel
+	 *            A connected, blocking channel
+	 */
+	PacketChannel(SocketChannel channel) {
+		this((ByteChannel) channel);
+	}
+
+	/**
+	 * Create a new PacketChannel on one end of an in-process connection
+	 *
+	 * @param channel
+	 *            The end of the connection
+	 */
+	PacketChannel(LoopbackChannel channel) {
+		this((ByteChannel) channel);
+	}
+
+	private PacketChannel(ByteChannel channel) {
+		this.channel = channel;
+		readBuf = BufferPool.acquire();
+		readBuf.flip();
+		writeBuf = BufferPool.acquire();
+		headerBuf = ByteBuffer.allocate(Packet.EXTENDED_HEADER_SIZE + Packet.MARKER_SIZE
+				+ Packet.CHECKSUM_SIZE);
+		trailerBuf = ByteBuffer.allocate(Packet.CHECKSUM_SIZE);
+		peerChecks = false;
+		resyncing = false;
+		dropped = 0;
+		pending = new ArrayList<Packet>();
+		batch = new ArrayList<Packet>();
+		flushing = false;
+		unwritten = 0;
+	}
+
+	/**
+	 * Turn checked frames on or off for the packets written by every channel
+	 * in this process.
+	 *
+	 * @param on
+	 *            true to write checked frames
+	 */
+	static void setChecksums(boolean on) {
+		checksums = on;
+	}
+
+	/**
+	 * Turn write batching on or off for every channel in this process. With
+	 * batching off, senders write each packet as soon as it is sent, which
+	 * gives the lowest latency; with it on, packets sent close together
+	 * share writes.
+	 *
+	 * @param on
+	 *            true to batch writes
+	 */
+	static void setBatching(boolean on) {
+		batching = on;
+	}
+
+	/**
+	 * @return true if senders should batch their writes
+	 */
+	static boolean isBatching() {
+		return batching;
+	}
+
+	/**
+	 * @return true if packets are written as checked frames
+	 */
+	static boolean usesChecksums() {
+		return checksums;
+	}
+
+	/**
+	 * Set how long a batch waits for more packets before it is written. Only
+	 * used with batching on.
+	 *
+	 * @param micros
+	 *            The wait in microseconds, 0 to write at once
+	 */
+	static void setLingerMicros(long micros) {
+		lingerNanos = micros * 1000;
+	}
+
+	/**
+	 * @return The batch sizes of every write in this process
+	 */
+	static WriteStats getWriteStats() {
+		return stats;
+	}
+
+	/**
+	 * Read the next packet, blocking until all of it has arrived.
+	 *
+	 * @return The packet, or null if the other side closed the connection
+	 *         between packets
+	 * @throws Packet.CorruptPacketException
+	 *             If the bytes read are not a packet, or the connection was
+	 *             closed in the middle of one
+	 * @throws IOException
+	 *             If the read fails
+	 */
+	Packet read() throws IOException {
+		try {
+			Packet packet = readPacket();
+			if (packet == null) {
+				releaseReadBuffer();
+			}
+			return packet;
+		} catch (IOException e) {
+			releaseReadBuffer();
+			throw e;
+		}
+	}
+
+	private Packet readPacket() throws IOException {
+		while (true) {
+			Packet packet = nextPacket();
+			if (packet != null) {
+				return packet;
+			}
+			if (fill() == -1) {
+				if (hasPartialPacket()) {
+					throw new Packet.CorruptPacketException();
+				}
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Read whatever the channel has into the read buffer. Blocks only if the
+	 * channel is blocking.
+	 *
+	 * @return The number of bytes read, or -1 at the end of the stream
+	 * @throws IOException
+	 *             If the read fails
+	 */
+	int fill() throws IOException {
+		readBuf.compact();
+		if (!readBuf.hasRemaining()) {
+			// a packet bigger than the buffer; only happens with large
+			// payloads, so grow this connection's buffer for good
+			ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(readBuf.capacity() * 2, BufferPool.BUFFER_SIZE));
+			readBuf.flip();
+			bigger.put(readBuf);
+			BufferPool.release(readBuf);
+			readBuf = bigger;
+		}
+		int n = channel.read(readBuf);
+		readBuf.flip();
+		return n;
+	}
+
+	/**
+	 * Decode the next packet out of what fill() has read, without reading.
+	 *
+	 * @return The packet, or null if more bytes are needed
+	 * @throws Packet.CorruptPacketException
+	 *             If the bytes read are not a packet
+	 */
+	Packet next() throws Packet.CorruptPacketException {
+		return nextPacket();
+	}
+
+	/**
+	 * @return true if the read buffer holds part of a packet, which is lost
+	 *         if the stream ends here
+	 */
+	boolean hasPartialPacket() {
+		return readBuf.hasRemaining() && !resyncing;
+	}
+
+	/**
+	 * Read the address handshake (see writeAddress()) out of what fill() has
+	 * read, without reading.
+	 *
+	 * @return The address, or -1 if more bytes are needed
+	 */
+	int nextAddress() {
+		if (!readBuf.hasRemaining()) {
+			return -1;
+		}
+		int addr = readBuf.get(readBuf.position()) & 0xFF;
+		if (addr != Packet.EXTENDED_ADDRESS_MARKER) {
+			readBuf.get();
+			return addr;
+		}
+		if (readBuf.remaining() < 5) {
+			return -1;
+		}
+		readBuf.get();
+		return readBuf.getInt();
+	}
+
+	/**
+	 * Decode the next packet in the read buffer, skipping corrupt checked
+	 * frames.
+	 *
+	 * @return The packet, or null if more bytes are needed
+	 * @throws Packet.CorruptPacketException
+	 *             If the other side does not write checked frames and the
+	 *             bytes are not a packet
+	 */
+	private Packet nextPacket() throws Packet.CorruptPacketException {
+		while (true) {
+			if (resyncing) {
+				Packet.skipToMarker(readBuf);
+				if (!Packet.atMarker(readBuf)) {
+					return null;
+				}
+				resyncing = false;
+			}
+
+			try {
+				if (Packet.atMarker(readBuf)) {
+					peerChecks = true;
+				} else if (peerChecks && readBuf.remaining() >= Packet.MARKER_SIZE) {
+					// a frame whose marker was corrupted
+					throw new Packet.CorruptPacketException();
+				}
+				return Packet.decode(readBuf);
+			} catch (Packet.CorruptPacketException e) {
+				if (!peerChecks) {
+					throw e;
+				}
+				dropped++;
+				// step off the bad frame's marker and look for the next one
+				readBuf.position(readBuf.position() + 1);
+				resyncing = true;
+				if (Console.isEnabled(Console.INFO)) {
+					Console.println(Console.INFO, "Dropped a corrupt packet from "
+							+ getPeer() + ", skipping to the next one");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The number of corrupt frames dropped so far
+	 */
+	long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Write a packet, blocking until all of it is written. Packets that fit
+	 * in the write buffer are written with a single copy; bigger ones are
+	 * written as the header and the payload array in one gathering write.
+	 *
+	 * @param packet
+	 *            The packet to write
+	 * @throws IOException
+	 *             If the write fails
+	 */
+	synchronized void write(Packet packet) throws IOException {
+		boolean checked = checksums;
+		int size = checked ? packet.checkedSize() : packet.encodedSize();
+		if (size <= writeBuf.capacity()) {
+			writeBuf.clear();
+			encode(packet, checked);
+			writeOut(1);
+		} else {
+			writeLarge(packet, checked, size);
+		}
+	}
+
+	/**
+	 * Add a packet to the packets waiting to be written by flushPending().
+	 * For blocking channels.
+	 *
+	 * @param packet
+	 *            The packet to write
+	 */
+	void enqueue(Packet packet) {
+		synchronized (pending) {
+			pending.add(packet);
+		}
+	}
+
+	/**
+	 * Write every packet enqueued so far, as few writes as the write buffer
+	 * allows. If another thread is already writing, it takes the packets
+	 * along and this returns at once, so threads sending to the same
+	 * connection at the same time share writes instead of queueing up on
+	 * the socket.
+	 *
+	 * @throws IOException
+	 *             If the write fails. The packets not yet written are lost.
+	 */
+	void flushPending() throws IOException {
+		synchronized (pending) {
+			if (flushing || pending.isEmpty()) {
+				return;
+			}
+			flushing = true;
+		}
+
+		boolean done = false;
+		try {
+			if (lingerNanos > 0) {
+				// let more packets join the batch
+				LockSupport.parkNanos(lingerNanos);
+			}
+			while (true) {
+				synchronized (pending) {
+					if (pending.isEmpty()) {
+						done = true;
+						flushing = false;
+						pending.notifyAll();
+						return;
+					}
+					batch.addAll(pending);
+					pending.clear();
+				}
+				writeBatch(batch);
+				batch.clear();
+			}
+		} finally {
+			if (!done) {
+				batch.clear();
+				synchronized (pending) {
+					pending.clear();
+					flushing = false;
+					pending.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Like flushPending(), but also waits for another thread's write to
+	 * finish, so everything enqueued before the call has been written when
+	 * it returns.
+	 *
+	 * @throws IOException
+	 *             If the write fails
+	 */
+	void drain() throws IOException {
+		while (true) {
+			synchronized (pending) {
+				while (flushing) {
+					try {
+						pending.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				if (pending.isEmpty()) {
+					return;
+				}
+			}
+			flushPending();
+		}
+	}
+
+	private synchronized void writeBatch(ArrayList<Packet> packets) throws IOException {
+		boolean checked = checksums;
+		writeBuf.clear();
+		int buffered = 0;
+		for (Packet packet : packets) {
+			int size = checked ? packet.checkedSize() : packet.encodedSize();
+			if (size > writeBuf.remaining()) {
+				writeOut(buffered);
+				buffered = 0;
+			}
+			if (size > writeBuf.capacity()) {
+				writeLarge(packet, checked, size);
+			} else {
+				encode(packet, checked);
+				buffered++;
+			}
+		}
+		writeOut(buffered);
+	}
+
+	private void encode(Packet packet, boolean checked) {
+		ByteBuffer shared = packet.getEncoding(checked);
+		if (shared != null) {
+			writeBuf.put(shared);
+		} else if (checked) {
+			packet.encodeChecked(writeBuf);
+		} else {
+			packet.encode(writeBuf);
+		}
+	}
+
+	/**
+	 * Write the packets encoded into the write buffer and clear it
+	 */
+	private void writeOut(int packets) throws IOException {
+		if (packets == 0) {
+			return;
+		}
+		writeBuf.flip();
+		int size = writeBuf.remaining();
+		while (writeBuf.hasRemaining()) {
+			channel.write(writeBuf);
+		}
+		writeBuf.clear();
+		stats.record(packets, size);
+	}
+
+	/**
+	 * Write a packet too big for the write buffer as one gathering write of
+	 * its header, its payload and, if checked, its trailer
+	 */
+	private void writeLarge(Packet packet, boolean checked, int size) throws IOException {
+		ByteBuffer shared = packet.getEncoding(checked);
+		if (shared != null) {
+			while (shared.hasRemaining()) {
+				channel.write(shared);
+			}
+			stats.record(1, size);
+			return;
+		}
+
+		headerBuf.clear();
+		trailerBuf.clear();
+		if (checked) {
+			packet.encodeCheckedHeader(headerBuf);
+			trailerBuf.putInt(packet.payloadChecksum());
+		} else {
+			packet.encodeHeader(headerBuf);
+		}
+		headerBuf.flip();
+		trailerBuf.flip();
+		ByteBuffer[] bufs = { headerBuf, ByteBuffer.wrap(packet.getPayload()), trailerBuf };
+		while (bufs[1].hasRemaining() || trailerBuf.hasRemaining()) {
+			((GatheringByteChannel) channel).write(bufs);
+		}
+		stats.record(1, size);
+	}
+
+	/**
+	 * Add a packet to the write buffer, to be written by flush(). For
+	 * non-blocking channels; the buffer grows to hold whatever has not been
+	 * written yet.
+	 *
+	 * @param packet
+	 *            The packet to write
+	 */
+	synchronized void queue(Packet packet) {
+		boolean checked = checksums;
+		int size = checked ? packet.checkedSize() : packet.encodedSize();
+		if (writeBuf.remaining() < size) {
+			ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(writeBuf.capacity() * 2,
+					writeBuf.position() + size));
+			writeBuf.flip();
+			bigger.put(writeBuf);
+			BufferPool.release(writeBuf);
+			writeBuf = bigger;
+		}
+		encode(packet, checked);
+		unwritten++;
+	}
+
+	/**
+	 * Write as much of what queue() has buffered as the channel takes
+	 * without blocking.
+	 *
+	 * @return true if everything buffered has been written
+	 * @throws IOException
+	 *             If the write fails
+	 */
+	synchronized boolean flush() throws IOException {
+		if (writeBuf.position() == 0) {
+			return true;
+		}
+		writeBuf.flip();
+		try {
+			int n = channel.write(writeBuf);
+			if (n > 0) {
+				stats.record(unwritten, n);
+				unwritten = 0;
+			}
+			return !writeBuf.hasRemaining();
+		} finally {
+			writeBuf.compact();
+		}
+	}
+
+	/**
+	 * @return About how many packets have been enqueued or queued and not
+	 *         written yet. Does not wait for a write in progress.
+	 */
+	int queuedPackets() {
+		int n;
+		synchronized (pending) {
+			n = pending.size();
+		}
+		return n + unwritten;
+	}
+
+	/**
+	 * Stop writing. The other side sees the end of the stream once it has
+	 * read everything already written.
+	 *
+	 * @throws IOException
+	 *             If the shutdown fails
+	 */
+	void shutdownOutput() throws IOException {
+		if (channel instanceof SocketChannel) {
+			((SocketChannel) channel).socket().shutdownOutput();
+		} else {
+			((LoopbackChannel) channel).shutdownOutput();
+		}
+	}
+
+	/**
+	 * @return true if the channel has been closed
+	 */
+	boolean isClosed() {
+		return !channel.isOpen();
+	}
+
+	/**
+	 * @return true if reading has been shut down on this side of a socket
+	 */
+	boolean isInputShutdown() {
+		return channel instanceof SocketChannel && ((SocketChannel) channel).socket().isInputShutdown();
+	}
+
+	/**
+	 * @return true if this is an in-process connection
+	 */
+	boolean isLoopback() {
+		return channel instanceof LoopbackChannel;
+	}
+
+	/**
+	 * @return The socket being read and written, or null for an in-process
+	 *         connection
+	 */
+	SocketChannel getChannel() {
+		return channel instanceof SocketChannel ? (SocketChannel) channel : null;
+	}
+
+	/**
+	 * @return The address of the other side, for messages
+	 */
+	private Object getPeer() {
+		SocketChannel socket = getChannel();
+		return socket == null ? "loopback" : socket.socket().getRemoteSocketAddress();
+	}
+
+	/**
+	 * Close the channel and give back the write buffer. A thread blocked in
+	 * read() wakes up with an exception and gives back the read buffer.
+	 */
+	synchronized void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		BufferPool.release(writeBuf);
+		writeBuf = ByteBuffer.allocate(0);
+	}
+
+	private void releaseReadBuffer() {
+		BufferPool.release(readBuf);
+		readBuf = ByteBuffer.allocate(0);
+	}
+
+	/**
+	 * Write the handshake a node sends to the router: its address, as one
+	 * byte, or as EXTENDED_ADDRESS_MARKER and a four byte int if it does not
+	 * fit in one. Negative values, which routers send to each other, always
+	 * take the long form.
+	 *
+	 * @param channel
+	 *            The channel to the router
+	 * @param addr
+	 *            The address of the node
+	 * @throws IOException
+	 *             If the write fails
+	 */
+	static void writeAddress(WritableByteChannel channel, int addr) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(5);
+		if (addr >= 0 && addr < Packet.EXTENDED_ADDRESS_MARKER) {
+			buf.put((byte) addr);
+		} else {
+			buf.put((byte) Packet.EXTENDED_ADDRESS_MARKER);
+			buf.putInt(addr);
+		}
+		buf.flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+
+	/**
+	 * Read the handshake written by writeAddress. Reads exactly the handshake
+	 * bytes, so nothing that follows is consumed.
+	 *
+	 * @param channel
+	 *            The channel from the node
+	 * @return The address of the node
+	 * @throws IOException
+	 *             If the read fails or the channel closes first
+	 */
+	static int readAddress(ReadableByteChannel channel) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(4);
+		buf.limit(1);
+		readFully(channel, buf);
+		int addr = buf.get(0) & 0xFF;
+		if (addr != Packet.EXTENDED_ADDRESS_MARKER) {
+			return addr;
+		}
+		buf.clear();
+		readFully(channel, buf);
+		return buf.getInt(0);
+	}
+
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (channel.read(buf) == -1) {
+				throw new EOFException();
+			}
+		}
+	}
+}
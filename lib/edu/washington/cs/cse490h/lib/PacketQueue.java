@@ -0,0 +1,76 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free queue of received packets with any number of producers and a
+ * single consumer that takes everything at once. Producers push onto a
+ * linked stack with compare-and-set; drainTo() detaches the whole stack with
+ * one atomic swap and hands the packets over in the order they were added.
+ */
+class PacketQueue {
+	private static class Link {
+		final Packet packet;
+		Link next;
+
+		Link(Packet packet) {
+			this.packet = packet;
+		}
+	}
+
+	// the packet added last, linked back to the first
+	private final AtomicReference<Link> top = new AtomicReference<Link>();
+
+	/**
+	 * Add a packet. Never blocks.
+	 *
+	 * @param packet
+	 *            The packet to add
+	 */
+	void add(Packet packet) {
+		Link link = new Link(packet);
+		Link old;
+		do {
+			old = top.get();
+			link.next = old;
+		} while (!top.compareAndSet(old, link));
+	}
+
+	/**
+	 * Move every packet added so far to a collection, oldest first
+	 *
+	 * @param into
+	 *            The collection to add the packets to
+	 * @return The number of packets moved
+	 */
+	int drainTo(Collection<? super Packet> into) {
+		Link link = top.getAndSet(null);
+		if (link == null) {
+			return 0;
+		}
+
+		// reverse the stack into arrival order
+		Link first = null;
+		while (link != null) {
+			Link next = link.next;
+			link.next = first;
+			first = link;
+			link = next;
+		}
+
+		int n = 0;
+		for (Link l = first; l != null; l = l.next) {
+			into.add(l.packet);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return true if no packet has been added since the last drain
+	 */
+	boolean isEmpty() {
+		return top.get() == null;
+	}
+}
@@ -0,0 +1,181 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The link from a Router to another Router in the same federation, which
+ * owns a range of addresses. Packets for those addresses are queued here and
+ * written by a thread of the link's own, so a slow or missing peer never
+ * holds up the nodes. While the peer cannot be reached they wait in a
+ * DownQueue, spilling to disk like a failed node's, and go out in order
+ * once it can.
+ *
+ * Links carry packets one way: each Router dials every peer and sends on
+ * that connection, and reads what its peers send on the connections they
+ * dialed.
+ */
+class PeerLink {
+	/**
+	 * The address a Router sends in the handshake to say it is a peer and
+	 * not a node
+	 */
+	static final int HANDSHAKE = -2;
+
+	// how long to wait before dialing a peer again
+	private static final long RETRY_MILLIS = 1000;
+	// packets written to the peer at a time
+	private static final int BATCH = 64;
+
+	private final String host;
+	private final int port;
+	private final int low;
+	private final int high;
+	// guarded by this
+	private final DownQueue queue;
+	private volatile boolean connected;
+	private volatile long sent;
+
+	/**
+	 * @param host
+	 *            The peer's host
+	 * @param port
+	 *            The peer's port
+	 * @param low
+	 *            The lowest address the peer owns
+	 * @param high
+	 *            The highest address the peer owns
+	 */
+	PeerLink(String host, int port, int low, int high) {
+		this.host = host;
+		this.port = port;
+		this.low = low;
+		this.high = high;
+		queue = new DownQueue("peer-" + port);
+		connected = false;
+		sent = 0;
+	}
+
+	int getLow() {
+		return low;
+	}
+
+	int getHigh() {
+		return high;
+	}
+
+	/**
+	 * @return true if the peer owns the address
+	 */
+	boolean owns(int addr) {
+		return addr >= low && addr <= high;
+	}
+
+	/**
+	 * @return true if the peer owns any address in the range
+	 */
+	boolean overlaps(int low, int high) {
+		return low <= this.high && high >= this.low;
+	}
+
+	/**
+	 * Queue a packet for the peer. Never blocks on the network.
+	 *
+	 * @param p
+	 *            The packet
+	 */
+	synchronized void send(Packet p) {
+		queue.add(p);
+		if (queue.packets() == 1) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Start the thread that dials the peer and writes to it
+	 */
+	void start() {
+		Thread t = new Thread("Peer " + this.host + ":" + this.port) {
+			@Override
+			public void run() {
+				while (true) {
+					PacketChannel channel = connect();
+					try {
+						writeQueued(channel);
+					} catch (IOException e) {
+						// what was being written is lost, as it would be
+						// on a node's connection
+						Console.println(Console.INFO, "Lost the link to peer " + host + ":" + port + ": " + e);
+					}
+					connected = false;
+					channel.close();
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Dial the peer until it answers
+	 */
+	private PacketChannel connect() {
+		boolean reported = false;
+		while (true) {
+			try {
+				SocketChannel socket = SocketChannel.open(new InetSocketAddress(host, port));
+				socket.socket().setTcpNoDelay(true);
+				PacketChannel.writeAddress(socket, HANDSHAKE);
+				connected = true;
+				Console.println(Console.INFO, "Linked to peer " + host + ":" + port
+						+ " for addresses " + low + "-" + high);
+				return new PacketChannel(socket);
+			} catch (IOException e) {
+				if (!reported) {
+					Console.println(Console.INFO, "Cannot reach peer " + host + ":" + port
+							+ ", queueing its packets: " + e);
+					reported = true;
+				}
+			}
+			try {
+				Thread.sleep(RETRY_MILLIS);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	private void writeQueued(PacketChannel channel) throws IOException {
+		while (true) {
+			int n = 0;
+			synchronized (this) {
+				while (queue.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+					}
+				}
+				Packet p;
+				while (n < BATCH && (p = queue.poll()) != null) {
+					channel.enqueue(p);
+					n++;
+				}
+			}
+			channel.flushPending();
+			sent += n;
+		}
+	}
+
+	/**
+	 * @return One line, e.g.
+	 *         "Peer localhost:8001 (1000-1999): linked, 500 sent, 0 queued"
+	 */
+	public String toString() {
+		long queued;
+		synchronized (this) {
+			queued = queue.packets();
+		}
+		return "Peer " + host + ":" + port + " (" + low + "-" + high + "): "
+				+ (connected ? "linked" : "not linked") + ", " + sent + " sent, " + queued + " queued";
+	}
+}
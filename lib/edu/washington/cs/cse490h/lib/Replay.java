@@ -189,7 +189,9 @@ public class Replay {
 				throw new Replay.ReplayException("Expected user input, got: " + line.toString());
 			}
 
-			System.out.println("Replaying user input: '" + input + "'");
+			if (Console.isEnabled(Console.TRACE)) {
+				Console.println(Console.TRACE, "Replaying user input: '" + input + "'");
+			}
 		} else {
 			// get a line from the keyboard
 			input = keyboard.readLine();
@@ -1,16 +1,39 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.ConnectException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.Integer;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 import plume.Option;
 import plume.OptionGroup;
 import plume.Options;
@@ -21,7 +44,12 @@ import plume.Options;
  * Simply routes packets in the network and stores queued packets to failed
  * nodes. It works by listening for new TCP connections. The Router sends the
  * address that the emulated node should use and forks off a new thread to deal
- * with the connection.
+ * with the connection. In selector mode (-S) a single thread deals with every
+ * connection instead, without blocking on any of them. A Router started with
+ * startLoopback() has no socket: nodes in the same JVM connect to it through
+ * in-memory channels, with routerHostname "loopback". Routers can also be
+ * federated: each owns a range of addresses, and packets for the others go
+ * to the peer Router that owns them (see PeerLink).
  *
  * Usage: java Router [options]
  *
@@ -31,14 +59,57 @@ import plume.Options;
  *
  * Execution Options:
  *   -p --localPort=<int>   - Local UDP port [default -1]
+ *   -q --headless=<boolean> - Do not print every packet routed [default false]
+ *   -k --checksums=<boolean> - Send packets to nodes with CRC32C checksums [default false]
+ *   -S --selector=<boolean> - Route every node from one thread with a Selector [default false]
+ *   -b --batchWrites=<boolean> - Batch packets sent close together into one write [default true]
+ *   --lingerMicros=<int>    - How long a batch waits for more packets, in microseconds [default 0]
+ *   --faultConfig=<string>  - File of drop, latency, bandwidth and partition rules for the links [default ]
+ *   --downQueueMemory=<long> - Bytes queued in memory for each failed node before spilling to disk [default 4194304]
+ *   --spillDir=<string>     - Directory for down-queues spilled to disk [default router-spill]
+ *   --replayRate=<int>      - Packets per second replayed to a restarted node, 0 for no limit [default 0]
+ *   --statsPort=<int>       - Serve per-link stats as JSON on this localhost port [default -1]
+ *   --statsFile=<string>    - File to write per-link stats to as JSON [default ]
+ *   --statsInterval=<int>   - Seconds between writes of the stats file [default 5]
+ *   -u --udp=<boolean>      - Also take nodes over UDP, on the same port [default false]
+ *   --mtu=<int>             - The largest packet sent over UDP, in bytes [default 65507]
+ *   --addressRange=<string> - The addresses this router's nodes use, as low-high, in a federation [default ]
+ *   --peers=<string>        - The other routers in the federation, as host:port:low-high,... [default ]
  *
  * </pre>
  */
 public class Router {
+	/**
+	 * The router name that makes a NodeServer connect to an in-process
+	 * Router instead of over TCP
+	 */
+	public static final String LOOPBACK = "loopback";
+
 	private static Router router = null;
-	private ServerSocket socket;
+	// in-process routers, by the port they stand in for
+	private static final Map<Integer, Router> loopbackRouters = new HashMap<Integer, Router>();
+	// stands in for the port of each loopback connection, above any real port
+	private static final AtomicInteger loopbackPorts = new AtomicInteger(65536);
+
+	private ServerSocketChannel socket;
 	// emulatedNodes is also used as a lock
 	protected Map<Integer, NodeContainer> emulatedNodes;
+	// selector mode: nodes with packets queued in this pass of the loop
+	private ArrayList<EmulatedNode> toFlush = new ArrayList<EmulatedNode>();
+	// drops and delays packets on their links, null to forward everything
+	// straight away
+	private FaultInjector faults;
+	// packets held back by faults until they are due
+	private final DelayQueue<DelayedPacket> delayed = new DelayQueue<DelayedPacket>();
+	// packets, bytes and latency on each (src, dest, protocol)
+	private final RouterStats stats = new RouterStats();
+	// the addresses this Router's nodes use; the rest belong to its peers
+	private int rangeLow = 0;
+	private int rangeHigh = Manager.MAX_ADDRESS;
+	// the other Routers in the federation
+	private final ArrayList<PeerLink> peerLinks = new ArrayList<PeerLink>();
+	// selector mode: restarted nodes whose down-queues are being replayed
+	private ArrayList<NodeContainer> replaying = new ArrayList<NodeContainer>();
 
 	/**
 	 * Construct a new Router
@@ -49,40 +120,136 @@ public class Router {
 	 *             If there is an error creating the socket server
 	 */
 	private Router(int port) throws IOException {
-		socket = new ServerSocket(port);
+		socket = ServerSocketChannel.open();
+		socket.socket().bind(new InetSocketAddress(port));
 		emulatedNodes = Collections.synchronizedMap( new HashMap<Integer, NodeContainer>() ) ;
 	}
 
+	/**
+	 * Construct a Router that only takes in-process connections
+	 */
+	private Router() {
+		socket = null;
+		emulatedNodes = Collections.synchronizedMap( new HashMap<Integer, NodeContainer>() ) ;
+	}
+
+	/**
+	 * Start an in-process Router. It has no socket and no thread of its own;
+	 * nodes in this JVM connect to it with routerHostname "loopback" and
+	 * this port, and each gets a threaded EmulatedNode as it would over TCP.
+	 *
+	 * @param port
+	 *            The port that stands for this router
+	 * @return The router, or the one already started for that port
+	 */
+	public static Router startLoopback(int port) {
+		synchronized (loopbackRouters) {
+			Router loopback = loopbackRouters.get(port);
+			if (loopback == null) {
+				loopback = new Router();
+				loopbackRouters.put(port, loopback);
+				Console.println(Console.INFO, "Loopback router awaiting nodes on port " + port);
+			}
+			return loopback;
+		}
+	}
+
+	/**
+	 * Connect to an in-process Router. The handshake and everything after it
+	 * go over the same framing as a TCP connection.
+	 *
+	 * @param port
+	 *            The port the router was started with
+	 * @param address
+	 *            The address of the connecting node
+	 * @return The node's end of the connection
+	 * @throws IOException
+	 *             If no loopback router was started for the port
+	 */
+	static LoopbackChannel connectLoopback(int port, final int address) throws IOException {
+		final Router loopback;
+		synchronized (loopbackRouters) {
+			loopback = loopbackRouters.get(port);
+		}
+		if (loopback == null) {
+			throw new ConnectException("No loopback router on port " + port);
+		}
+
+		LoopbackChannel[] ends = LoopbackChannel.pair();
+		PacketChannel.writeAddress(ends[0], address);
+
+		// accept on another thread, like the TCP accept loop, so a down-queue
+		// bigger than the channel does not block the node before it reads
+		final LoopbackChannel routerEnd = ends[1];
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					loopback.acceptLoopback(routerEnd);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}.start();
+		return ends[0];
+	}
+
+	/**
+	 * Read the address of an in-process connection and make it an
+	 * EmulatedNode
+	 */
+	private void acceptLoopback(LoopbackChannel channel) throws IOException {
+		int address = PacketChannel.readAddress(channel);
+		InetAddress ipAddress = InetAddress.getLoopbackAddress();
+		int port = loopbackPorts.getAndIncrement();
+
+		Console.println(Console.INFO, "Connecting to loopback:" + port + " with addr: " + address);
+
+		EmulatedNode newNode = new EmulatedNode(this, new PacketChannel(channel), address, ipAddress, port);
+		// connections are accepted on more than one thread
+		synchronized (emulatedNodes) {
+			nodeJoin(address, newNode);
+		}
+	}
+
 	/**
 	 * Start up the Router. It sits and listens for new connections, and spawns
 	 * a new thread for each one.
 	 */
 	protected void start() {
-		System.out.println("Router awaiting nodes...");
+		if (selector) {
+			startSelector();
+			return;
+		}
+		Console.println(Console.INFO, "Router awaiting nodes...");
 
 		while(true) {
 			try {
-				Socket nodeSocket = socket.accept();
+				SocketChannel nodeSocket = socket.accept();
 
-				InetAddress ipAddress = nodeSocket.getInetAddress();
-				int port = nodeSocket.getPort();
+				InetAddress ipAddress = nodeSocket.socket().getInetAddress();
+				int port = nodeSocket.socket().getPort();
 
 				if (port < 1024) {
 					System.err.println("Router: Shouldn't happen! Illegal port: " + port);
 					nodeSocket.close();
 				} else {
+					// find a virtual address to assign to the new node
+					int address = PacketChannel.readAddress(nodeSocket);
+					if (address == PeerLink.HANDSHAKE) {
+						readPeer(new PacketChannel(nodeSocket), ipAddress + ":" + port);
+						continue;
+					}
+
 					NodeContainer old = portConflict(ipAddress, port);
 					if (old != null) {
 						old.quit(null);
 					}
-
-					// find a virtual address to assign to the new node
-					int address = nodeSocket.getInputStream().read();
 					
 					// Disable Nagle
-					nodeSocket.setTcpNoDelay(true);
+					nodeSocket.socket().setTcpNoDelay(true);
 
-					System.out.println("Connecting to " + ipAddress + ":" + port + " with addr: " + address);
+					Console.println(Console.INFO, "Connecting to " + ipAddress + ":" + port + " with addr: " + address);
 
 					EmulatedNode newNode = new EmulatedNode(this, nodeSocket, address, ipAddress, port);
 					nodeJoin(address, newNode);
@@ -93,11 +260,658 @@ public class Router {
 		}
 	}
 
+	/**
+	 * Start up the Router in selector mode. One thread accepts every
+	 * connection, and reads, routes and writes every packet. Reads and writes
+	 * never block, so a slow node cannot hold up the others.
+	 */
+	private void startSelector() {
+		Console.println(Console.INFO, "Router awaiting nodes...");
+
+		Selector selector;
+		try {
+			selector = Selector.open();
+			socket.configureBlocking(false);
+			socket.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+
+		long replayWait = -1;
+		while(true) {
+			try {
+				long wait = replayWait < 0 ? Long.MAX_VALUE : replayWait;
+				DelayedPacket next = delayed.peek();
+				if (next != null) {
+					wait = Math.min(wait, Math.max(0, next.getDelay(TimeUnit.NANOSECONDS)));
+				}
+				if (wait == Long.MAX_VALUE) {
+					selector.select();
+				} else if (wait >= 1000000) {
+					selector.select(wait / 1000000);
+				} else {
+					selector.selectNow();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				try {
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept(selector);
+					} else if (key.attachment() instanceof PeerConnection) {
+						readPeer(key);
+					} else if (key.attachment() instanceof EmulatedNode) {
+						EmulatedNode node = (EmulatedNode) key.attachment();
+						if (key.isWritable()) {
+							node.handleWrite();
+						}
+						if (key.isValid() && key.isReadable()) {
+							node.handleRead();
+						}
+					} else {
+						handshake(key);
+					}
+				} catch (CancelledKeyException e) {
+					// the connection was closed while we were handling it
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+
+			deliverDelayed();
+			replayWait = replayDownQueues();
+
+			// one write per node for everything routed to it in this pass
+			for (EmulatedNode node : toFlush) {
+				try {
+					node.flushQueued();
+				} catch (CancelledKeyException e) {
+					// the connection was closed after the packets were queued
+				}
+			}
+			toFlush.clear();
+		}
+	}
+
+	/**
+	 * Read a fault config file and apply it to every packet routed from now
+	 * on. See FaultInjector for the format.
+	 *
+	 * @param configFile
+	 *            The config file
+	 * @throws IOException
+	 *             If the file cannot be read
+	 * @throws IllegalArgumentException
+	 *             If the file has an invalid rule
+	 */
+	public void injectFaults(String configFile) throws IOException, IllegalArgumentException {
+		FaultInjector injector = new FaultInjector(configFile);
+		Console.println(Console.INFO, "Injecting faults from " + configFile + " with seed " + injector.getSeed());
+
+		if (!selector || socket == null) {
+			// without a selector loop to hand them back to, delayed packets
+			// are sent by a thread of their own
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							deliver(delayed.take());
+						} catch (InterruptedException e) {
+						}
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+		faults = injector;
+	}
+
+	/**
+	 * Called by an emulated node for each destination of a packet. Hands the
+	 * packet to the destination now, later, or never, as the fault config
+	 * says.
+	 *
+	 * @param src
+	 *            The address of the sending node
+	 * @param destAddr
+	 *            The address of the destination
+	 * @param dest
+	 *            The destination
+	 * @param packet
+	 *            The packet
+	 * @param received
+	 *            When the Router read the packet, in System.nanoTime() terms
+	 */
+	void forward(int src, int destAddr, NodeContainer dest, Packet packet, long received) {
+		if (faults == null) {
+			dest.send(packet);
+			stats.forwarded(src, destAddr, packet.getProtocol(), packet.encodedSize(),
+					System.nanoTime() - received);
+			return;
+		}
+
+		long now = System.nanoTime();
+		long due = faults.schedule(src, destAddr, packet.encodedSize(), now);
+		if (due < 0) {
+			stats.dropped(src, destAddr, packet.getProtocol());
+			if (Console.isEnabled(Console.TRACE)) {
+				Console.println(Console.TRACE, "Fault injection dropping: " + packet.toHeaderString());
+			}
+		} else if (due <= now) {
+			dest.send(packet);
+			stats.forwarded(src, destAddr, packet.getProtocol(), packet.encodedSize(),
+					System.nanoTime() - received);
+		} else {
+			delayed.add(new DelayedPacket(due, destAddr, dest, packet, received));
+		}
+	}
+
+	/**
+	 * Send a delayed packet that is due
+	 */
+	private void deliver(DelayedPacket pkt) {
+		pkt.dest.send(pkt.packet);
+		stats.forwarded(pkt.packet.getSrc(), pkt.destAddr, pkt.packet.getProtocol(),
+				pkt.packet.encodedSize(), System.nanoTime() - pkt.received);
+	}
+
+	/**
+	 * Selector mode: send the delayed packets that are due
+	 */
+	private void deliverDelayed() {
+		DelayedPacket pkt;
+		while ((pkt = delayed.poll()) != null) {
+			try {
+				deliver(pkt);
+			} catch (CancelledKeyException e) {
+				// the connection was closed while the packet was delayed
+			}
+		}
+	}
+
+	/**
+	 * Selector mode: replay the next batch of each restarted node's
+	 * down-queue. A node whose channel has not taken the last batch gets no
+	 * more until it has.
+	 * 
+	 * @return How long until a replay can go on, in nanoseconds: 0 for
+	 *         straight away, Long.MAX_VALUE to wait for a channel, or -1 if
+	 *         nothing is being replayed
+	 */
+	private long replayDownQueues() {
+		long wait = -1;
+		Iterator<NodeContainer> iter = replaying.iterator();
+		while (iter.hasNext()) {
+			long w;
+			try {
+				w = iter.next().replayBatch();
+			} catch (CancelledKeyException e) {
+				// the connection was closed during the replay
+				w = -1;
+			}
+			if (w < 0) {
+				iter.remove();
+			} else {
+				wait = wait < 0 ? w : Math.min(wait, w);
+			}
+		}
+		return wait;
+	}
+
+	/**
+	 * Threaded mode: replay a restarted node's down-queue from a thread of
+	 * its own, so neither the accept loop nor the senders to the node wait
+	 * for it.
+	 */
+	private void startReplay(final int address, final NodeContainer container) {
+		Thread t = new Thread("Replay " + address) {
+			@Override
+			public void run() {
+				long wait;
+				while ((wait = container.replayBatch()) >= 0) {
+					if (wait > 0) {
+						LockSupport.parkNanos(wait);
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @return One line for each node with packets waiting for it or that has
+	 *         spilled to disk, e.g. "Down-queue 5: 120 packets, 48000 bytes,
+	 *         100 on disk, 300 ever spilled", or "" if there are none
+	 */
+	String downQueueStats() {
+		StringBuilder sb = new StringBuilder();
+		synchronized (emulatedNodes) {
+			for (Map.Entry<Integer, NodeContainer> e : emulatedNodes.entrySet()) {
+				NodeContainer c = e.getValue();
+				long packets = c.getQueuedPackets();
+				long everSpilled = c.getEverSpilled();
+				if (packets == 0 && everSpilled == 0) {
+					continue;
+				}
+				if (sb.length() > 0) {
+					sb.append('\n');
+				}
+				sb.append("Down-queue " + e.getKey() + ": " + packets + " packets, " + c.getQueuedBytes()
+						+ " bytes, " + c.getSpilledPackets() + " on disk, " + everSpilled + " ever spilled");
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return The counters for every (src, dest, protocol) and what is queued
+	 *         for every node, as JSON. See RouterStats.
+	 */
+	public String statsJson() {
+		return stats.toJson(emulatedNodes);
+	}
+
+	/**
+	 * Serve statsJson() over HTTP on localhost, at any path
+	 *
+	 * @param port
+	 *            The port to listen on
+	 * @throws IOException
+	 *             If the port cannot be bound
+	 */
+	public void serveStats(int port) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = statsJson().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		// the server's own thread answers every request
+		server.setExecutor(null);
+		server.start();
+		Console.println(Console.INFO, "Serving router stats on http://localhost:" + port + "/");
+	}
+
+	/**
+	 * Write statsJson() to a file every interval, from a thread of its own.
+	 * Each snapshot replaces the last one whole, so a reader never sees half
+	 * of one.
+	 *
+	 * @param filename
+	 *            The file to write
+	 * @param intervalMillis
+	 *            How often to write it
+	 */
+	public void writeStatsEvery(final String filename, final long intervalMillis) {
+		Thread t = new Thread("Router stats") {
+			@Override
+			public void run() {
+				File file = new File(filename);
+				File tmp = new File(filename + ".tmp");
+				while (true) {
+					try {
+						Thread.sleep(intervalMillis);
+					} catch (InterruptedException e) {
+						return;
+					}
+					try {
+						FileOutputStream out = new FileOutputStream(tmp);
+						try {
+							out.write(statsJson().getBytes("UTF-8"));
+						} finally {
+							out.close();
+						}
+						if (!tmp.renameTo(file)) {
+							// Windows does not rename over an existing file
+							file.delete();
+							tmp.renameTo(file);
+						}
+					} catch (IOException e) {
+						System.err.println("Could not write router stats to " + filename + ": " + e);
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Selector mode: called by a node the first time a packet is queued to it
+	 * in a pass of the loop. Its packets are written at the end of the pass.
+	 * 
+	 * @param node
+	 *            The node with packets queued
+	 */
+	void flushLater(EmulatedNode node) {
+		toFlush.add(node);
+	}
+
+	/**
+	 * Selector mode: accept a new connection and wait for its address.
+	 */
+	private void accept(Selector selector) throws IOException {
+		SocketChannel nodeSocket = socket.accept();
+		if (nodeSocket == null) {
+			return;
+		}
+
+		int port = nodeSocket.socket().getPort();
+		if (port < 1024) {
+			System.err.println("Router: Shouldn't happen! Illegal port: " + port);
+			nodeSocket.close();
+			return;
+		}
+
+		nodeSocket.configureBlocking(false);
+		// Disable Nagle
+		nodeSocket.socket().setTcpNoDelay(true);
+		nodeSocket.register(selector, SelectionKey.OP_READ, new PacketChannel(nodeSocket));
+	}
+
+	/**
+	 * Selector mode: read the address of a new connection. Once all of it
+	 * has arrived, the connection becomes an EmulatedNode.
+	 */
+	private void handshake(SelectionKey key) throws IOException {
+		PacketChannel channel = (PacketChannel) key.attachment();
+		if (channel.fill() == -1) {
+			key.cancel();
+			channel.close();
+			return;
+		}
+
+		int address = channel.nextAddress();
+		if (address == -1) {
+			return;
+		}
+
+		SocketChannel nodeSocket = channel.getChannel();
+		InetAddress ipAddress = nodeSocket.socket().getInetAddress();
+		int port = nodeSocket.socket().getPort();
+
+		if (address == PeerLink.HANDSHAKE) {
+			Console.println(Console.INFO, "Peer router linked from " + ipAddress + ":" + port);
+			key.attach(new PeerConnection(channel, ipAddress + ":" + port));
+			// route anything that came in along with the handshake
+			readPeer(key);
+			return;
+		}
+
+		NodeContainer old = portConflict(ipAddress, port);
+		if (old != null) {
+			old.quit(null);
+		}
+
+		Console.println(Console.INFO, "Connecting to " + ipAddress + ":" + port + " with addr: " + address);
+
+		EmulatedNode newNode = new EmulatedNode(this, channel, address, ipAddress, port, key);
+		nodeJoin(address, newNode);
+		// route anything that came in along with the address
+		newNode.handleRead();
+	}
+
+	/**
+	 * Take nodes over UDP as well as TCP, on the same port number. Every
+	 * datagram holds one packet (see DatagramFraming); one thread receives
+	 * and routes them all. Must not be used with selector mode, whose nodes
+	 * may only be sent to from the selector loop.
+	 * 
+	 * @throws IOException
+	 *             If the port cannot be bound
+	 */
+	public void receiveDatagrams() throws IOException {
+		final DatagramChannel udp = DatagramFraming.open();
+		udp.socket().bind(new InetSocketAddress(socket.socket().getLocalPort()));
+		Console.println(Console.INFO, "Router awaiting datagrams on port " + socket.socket().getLocalPort()
+				+ ", MTU " + DatagramFraming.getMtu());
+
+		Thread t = new Thread("Router datagrams") {
+			@Override
+			public void run() {
+				// node socket address -> node
+				HashMap<SocketAddress, EmulatedNode> nodes = new HashMap<SocketAddress, EmulatedNode>();
+				ByteBuffer buf = ByteBuffer.allocateDirect(DatagramFraming.MAX_DATAGRAM);
+				while (true) {
+					try {
+						buf.clear();
+						InetSocketAddress from = (InetSocketAddress) udp.receive(buf);
+						buf.flip();
+
+						Packet packet;
+						try {
+							packet = DatagramFraming.decode(buf);
+						} catch (Packet.CorruptPacketException e) {
+							Console.println(Console.INFO, "Dropping a corrupt datagram from " + from);
+							continue;
+						}
+
+						EmulatedNode node = nodes.get(from);
+						if (node == null || packet == null) {
+							// a handshake, or the first packet from a node
+							// whose handshake was lost
+							int address = packet == null ? DatagramFraming.handshakeAddress(buf) : packet.getSrc();
+							if (node != null && node.getAddr() == address) {
+								continue;
+							}
+							Console.println(Console.INFO, "Connecting to " + from + " over UDP with addr: "
+									+ address);
+							node = new EmulatedNode(Router.this, udp, from, address);
+							// forget the socket the address used before
+							Iterator<EmulatedNode> iter = nodes.values().iterator();
+							while (iter.hasNext()) {
+								if (iter.next().getAddr() == address) {
+									iter.remove();
+								}
+							}
+							nodes.put(from, node);
+							synchronized (emulatedNodes) {
+								nodeJoin(address, node);
+							}
+						}
+						if (packet != null) {
+							node.handleDatagram(packet);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Threaded mode: read the packets a peer router sends, from a thread of
+	 * their own
+	 */
+	private void readPeer(final PacketChannel channel, final String name) {
+		Console.println(Console.INFO, "Peer router linked from " + name);
+		Thread t = new Thread("Peer " + name) {
+			@Override
+			public void run() {
+				try {
+					Packet packet;
+					while ((packet = channel.read()) != null) {
+						route(-1, packet);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				channel.close();
+				Console.println(Console.INFO, "Peer router link from " + name + " closed");
+			}
+		};
+		t.start();
+	}
+
+	/**
+	 * Selector mode: route the packets a peer router has sent
+	 */
+	private void readPeer(SelectionKey key) {
+		PeerConnection peer = (PeerConnection) key.attachment();
+		try {
+			int n = peer.channel.fill();
+			Packet packet;
+			while ((packet = peer.channel.next()) != null) {
+				route(-1, packet);
+			}
+			if (n != -1) {
+				return;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		key.cancel();
+		peer.channel.close();
+		Console.println(Console.INFO, "Peer router link from " + peer.name + " closed");
+	}
+
+	/**
+	 * Forward a packet to its destination, or to every node if it is a
+	 * broadcast. Packets for addresses this Router does not have go to the
+	 * peer that owns them, and broadcasts go to every peer once; packets
+	 * from a peer are only delivered here, so none goes round in circles.
+	 * 
+	 * @param from
+	 *            The address of the node that sent the packet, which a
+	 *            broadcast skips, or -1 if it came from a peer
+	 * @param packet
+	 *            The packet to forward
+	 */
+	void route(int from, Packet packet) {
+		long received = System.nanoTime();
+		if(packet.getDest() == Manager.BROADCAST_ADDRESS) {
+			if (Console.isEnabled(Console.TRACE)) {
+				Console.println(Console.TRACE, "Broadcasting: " + packet.toHeaderString());
+			}
+
+			// only hold the map while copying the destinations out of it;
+			// the writes happen under each destination's own lock
+			ArrayList<NodeContainer> dests = new ArrayList<NodeContainer>();
+			ArrayList<Integer> destAddrs = new ArrayList<Integer>();
+			synchronized(emulatedNodes) {
+				for(Map.Entry<Integer, NodeContainer> entry: emulatedNodes.entrySet()) {
+					if(entry.getKey() != from) {
+						dests.add(entry.getValue());
+						destAddrs.add(entry.getKey());
+					}
+				}
+			}
+
+			// every destination gets the same bytes
+			packet.encodeOnce(PacketChannel.usesChecksums());
+			for(int i = 0; i < dests.size(); i++) {
+				forward(packet.getSrc(), destAddrs.get(i), dests.get(i), packet, received);
+			}
+			if (from != -1) {
+				for (PeerLink peer : peerLinks) {
+					peer.send(packet);
+				}
+			}
+		} else {
+			NodeContainer dest = emulatedNodes.get(packet.getDest());
+			if(dest != null) {
+				forward(packet.getSrc(), packet.getDest(), dest, packet, received);
+				return;
+			}
+			if (from != -1) {
+				for (PeerLink peer : peerLinks) {
+					if (peer.owns(packet.getDest())) {
+						peer.send(packet);
+						return;
+					}
+				}
+			}
+			// nothing has ever connected with that address
+			Console.println(Console.INFO, "No node with address " + packet.getDest() + ", dropping: "
+					+ packet.toHeaderString());
+		}
+	}
+
+	/**
+	 * Set the addresses this Router's nodes use. Only needed in a
+	 * federation, where the other addresses belong to its peers.
+	 * 
+	 * @param low
+	 *            The lowest address
+	 * @param high
+	 *            The highest address
+	 * @throws IllegalArgumentException
+	 *             If the range is empty or overlaps a peer's
+	 */
+	public void setAddressRange(int low, int high) throws IllegalArgumentException {
+		if (low < 0 || low > high) {
+			throw new IllegalArgumentException("Invalid address range " + low + "-" + high);
+		}
+		for (PeerLink peer : peerLinks) {
+			if (peer.overlaps(low, high)) {
+				throw new IllegalArgumentException("Address range " + low + "-" + high + " overlaps " + peer);
+			}
+		}
+		rangeLow = low;
+		rangeHigh = high;
+	}
+
+	/**
+	 * Join another Router into a federation with this one. Packets for the
+	 * peer's addresses are sent to it, as are broadcasts; it should be
+	 * given this Router as a peer in turn. Must be called before start().
+	 * 
+	 * @param host
+	 *            The peer's host
+	 * @param port
+	 *            The port the peer listens on
+	 * @param low
+	 *            The lowest address the peer owns
+	 * @param high
+	 *            The highest address the peer owns
+	 * @throws IllegalArgumentException
+	 *             If the range is empty or overlaps this Router's or another
+	 *             peer's
+	 */
+	public void addPeer(String host, int port, int low, int high) throws IllegalArgumentException {
+		PeerLink peer = new PeerLink(host, port, low, high);
+		if (low < 0 || low > high) {
+			throw new IllegalArgumentException("Invalid address range " + low + "-" + high);
+		}
+		if (peer.overlaps(rangeLow, rangeHigh)) {
+			throw new IllegalArgumentException(peer + " overlaps this router's addresses " + rangeLow + "-"
+					+ rangeHigh);
+		}
+		for (PeerLink other : peerLinks) {
+			if (peer.overlaps(other.getLow(), other.getHigh())) {
+				throw new IllegalArgumentException(peer + " overlaps " + other);
+			}
+		}
+		peerLinks.add(peer);
+		peer.start();
+	}
+
 	/**
 	 * Stop the Router
 	 */
 	protected void exit() {
-		System.out.println("Router exiting...");
+		Console.println(Console.INFO, "Router exiting...");
 		System.exit(0);
 	}
 
@@ -123,10 +937,19 @@ public class Router {
 	 *            The new emulated node object
 	 */
 	private void nodeJoin(int address, EmulatedNode newNode) {
-		if (emulatedNodes.containsKey(address)) {
-			emulatedNodes.get(address).restart(newNode);
-		} else {
-			emulatedNodes.put(address, new NodeContainer(newNode));
+		if (address < rangeLow || address > rangeHigh) {
+			printWarning("Node " + address + " is outside this router's addresses " + rangeLow + "-"
+					+ rangeHigh + "; its peers will not send to it");
+		}
+		NodeContainer container = emulatedNodes.get(address);
+		if (container == null) {
+			emulatedNodes.put(address, new NodeContainer(address, newNode));
+		} else if (container.restart(newNode)) {
+			if (selector && socket != null) {
+				replaying.add(container);
+			} else {
+				startReplay(address, container);
+			}
 		}
 	}
 
@@ -180,6 +1003,102 @@ public class Router {
 	@Option(value="-p Local port", aliases={"-local-port"})
 	// TODO: specify a sane default
 	public static int localPort = -1;
+
+	/**
+	 * Headless mode
+	 */
+	@Option(value="-q Do not print every packet routed", aliases={"-headless"})
+	public static boolean headless = false;
+
+	/**
+	 * Checked frames to the nodes
+	 */
+	@Option(value="-k Send packets to nodes with CRC32C checksums", aliases={"-checksums"})
+	public static boolean checksums = false;
+
+	/**
+	 * Selector mode
+	 */
+	@Option(value="-S Route every node from one thread with a Selector", aliases={"-selector"})
+	public static boolean selector = false;
+
+	/**
+	 * Write batching
+	 */
+	@Option(value="-b Batch packets sent close together into one write", aliases={"-batch-writes"})
+	public static boolean batchWrites = true;
+
+	/**
+	 * How long a batch waits for more packets
+	 */
+	@Option(value="How long a batch waits for more packets, in microseconds", aliases={"-linger-micros"})
+	public static int lingerMicros = 0;
+
+	/**
+	 * Fault injection config
+	 */
+	@Option(value="File of drop, latency, bandwidth and partition rules for the links", aliases={"-fault-config"})
+	public static String faultConfig = "";
+
+	/**
+	 * Down-queue memory limit
+	 */
+	@Option(value="Bytes queued in memory for each failed node before spilling to disk", aliases={"-down-queue-memory"})
+	public static long downQueueMemory = 4 * 1024 * 1024;
+
+	/**
+	 * Down-queue spill directory
+	 */
+	@Option(value="Directory for down-queues spilled to disk", aliases={"-spill-dir"})
+	public static String spillDir = "router-spill";
+
+	/**
+	 * Down-queue replay rate
+	 */
+	@Option(value="Packets per second replayed to a restarted node, 0 for no limit", aliases={"-replay-rate"})
+	public static int replayRate = 0;
+
+	/**
+	 * Stats endpoint
+	 */
+	@Option(value="Serve per-link stats as JSON on this localhost port", aliases={"-stats-port"})
+	public static int statsPort = -1;
+
+	/**
+	 * Stats snapshot file
+	 */
+	@Option(value="File to write per-link stats to as JSON", aliases={"-stats-file"})
+	public static String statsFile = "";
+
+	/**
+	 * Stats snapshot interval
+	 */
+	@Option(value="Seconds between writes of the stats file", aliases={"-stats-interval"})
+	public static int statsInterval = 5;
+
+	/**
+	 * UDP transport
+	 */
+	@Option(value="-u Also take nodes over UDP, on the same port", aliases={"-udp"})
+	public static boolean udp = false;
+
+	/**
+	 * UDP MTU
+	 */
+	@Option(value="The largest packet sent over UDP, in bytes", aliases={"-mtu"})
+	public static int mtu = DatagramFraming.MAX_DATAGRAM;
+
+	/**
+	 * This router's addresses in a federation
+	 */
+	@Option(value="The addresses this router's nodes use, as low-high, in a federation", aliases={"-address-range"})
+	public static String addressRange = "";
+
+	/**
+	 * The other routers in the federation
+	 */
+	@Option(value="The other routers in the federation, as host:port:low-high,...", aliases={"-peers"})
+	public static String peers = "";
 	// end option group "Execution Options"
 
 
@@ -207,6 +1126,46 @@ public class Router {
 		System.err.println("Error: " + msg);
 	}
 
+	/**
+	 * Apply --addressRange and --peers to a router
+	 */
+	private static void federate(Router router) throws IllegalArgumentException {
+		try {
+			if (!addressRange.equals("")) {
+				int[] range = parseRange(addressRange);
+				router.setAddressRange(range[0], range[1]);
+			}
+			if (peers.equals("")) {
+				return;
+			}
+			if (addressRange.equals("")) {
+				throw new IllegalArgumentException("--peers needs --addressRange");
+			}
+			for (String spec : peers.split(",")) {
+				String[] parts = spec.trim().split(":");
+				if (parts.length != 3) {
+					throw new IllegalArgumentException("Expected host:port:low-high, got " + spec);
+				}
+				int[] range = parseRange(parts[2]);
+				router.addPeer(parts[0], Integer.parseInt(parts[1]), range[0], range[1]);
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+	}
+
+	/**
+	 * @return {low, high} from "low-high"
+	 */
+	private static int[] parseRange(String range) throws NumberFormatException {
+		int dash = range.indexOf('-');
+		if (dash == -1) {
+			throw new IllegalArgumentException("Expected low-high, got " + range);
+		}
+		return new int[] { Integer.parseInt(range.substring(0, dash).trim()),
+				Integer.parseInt(range.substring(dash + 1).trim()) };
+	}
+
 	/**
 	 * Entry point to start Router
 	 */
@@ -227,6 +1186,40 @@ public class Router {
 			return;
 		}
 
+		if (headless) {
+			Console.setLevel(Console.INFO);
+		}
+
+		PacketChannel.setChecksums(checksums);
+		PacketChannel.setBatching(batchWrites);
+		PacketChannel.setLingerMicros(lingerMicros);
+		DownQueue.setMemoryLimit(downQueueMemory);
+		DownQueue.setSpillDir(spillDir);
+		NodeContainer.setReplayRate(replayRate);
+		// the router only stops when it is killed
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				Console.println(Console.INFO, PacketChannel.getWriteStats().toString());
+				if (router != null && router.faults != null) {
+					Console.println(Console.INFO, router.faults.toString());
+				}
+				if (udp && DatagramFraming.getOversized() > 0) {
+					Console.println(Console.INFO, "UDP: " + DatagramFraming.getOversized()
+							+ " packets over the MTU dropped");
+				}
+				if (router != null) {
+					for (PeerLink peer : router.peerLinks) {
+						Console.println(Console.INFO, peer.toString());
+					}
+					String queues = router.downQueueStats();
+					if (!queues.equals("")) {
+						Console.println(Console.INFO, queues);
+					}
+				}
+			}
+		});
+
 		if (localPort == -1) {
 			System.out.println("you must specify a port with -p.");
 			return;
@@ -234,6 +1227,43 @@ public class Router {
 
 		try {
 			router = new Router(localPort);
+			if (!faultConfig.equals("")) {
+				try {
+					router.injectFaults(faultConfig);
+				} catch (IllegalArgumentException e) {
+					printError("Invalid fault config. " + e.getMessage());
+					return;
+				}
+			}
+			try {
+				federate(router);
+			} catch (IllegalArgumentException e) {
+				printError("Invalid federation. " + e.getMessage());
+				return;
+			}
+			if (udp) {
+				if (selector) {
+					printError("UDP cannot be used with selector mode.");
+					return;
+				}
+				try {
+					DatagramFraming.setMtu(mtu);
+				} catch (IllegalArgumentException e) {
+					printError(e.getMessage());
+					return;
+				}
+				router.receiveDatagrams();
+			}
+			if (statsPort != -1) {
+				router.serveStats(statsPort);
+			}
+			if (!statsFile.equals("")) {
+				if (statsInterval <= 0) {
+					printError("The stats interval must be positive.");
+					return;
+				}
+				router.writeStatsEvery(statsFile, statsInterval * 1000L);
+			}
 			router.start();
 		}catch(IOException e) {
 			System.err.println("Invalid port given to Router. Exception: " + e);
@@ -244,65 +1274,51 @@ public class Router {
 }
 
 /**
- * A container that represents an address. It either wraps an emulated node, or
- * a queue of messages to a failed node.
+ * Selector mode: the attachment of a peer router's connection
  */
-class NodeContainer {
-	private boolean up;
-	private EmulatedNode node;
-	private List<Packet> downQueue;
+class PeerConnection {
+	final PacketChannel channel;
+	final String name;
 
-	NodeContainer(EmulatedNode node) {
-		up = true;
-		this.node = node;
-		downQueue = new LinkedList<Packet>();
-	}
-
-	synchronized void quit(LinkedList<Packet> queue) {
-		if(node != null) {
-			node.finish();
-		}
-		up = false;
-		node = null;
-
-		if(queue != null) {
-			downQueue.addAll(queue);
-		}
+	PeerConnection(PacketChannel channel, String name) {
+		this.channel = channel;
+		this.name = name;
 	}
+}
 
-	synchronized void restart(EmulatedNode node) {
-		if(this.node != null) {
-			this.node.finish();
-		}
-		up = true;
-		this.node = node;
+/**
+ * A packet held back by fault injection until it is due
+ */
+class DelayedPacket implements Delayed {
+	private static final AtomicLong sequence = new AtomicLong();
 
-		for (Packet pkt : downQueue) {
-			send(pkt);
-		}
-	}
+	final long due;
+	final int destAddr;
+	final NodeContainer dest;
+	final Packet packet;
+	// when the Router read the packet
+	final long received;
+	// keeps packets due at the same time in the order they were routed
+	private final long seq;
 
-	synchronized boolean isUp() {
-		return up;
+	DelayedPacket(long due, int destAddr, NodeContainer dest, Packet packet, long received) {
+		this.due = due;
+		this.destAddr = destAddr;
+		this.dest = dest;
+		this.packet = packet;
+		this.received = received;
+		seq = sequence.getAndIncrement();
 	}
 
-	synchronized boolean hasConflict(InetAddress ipAddress, int port) {
-		if (up == false) {
-			return false;
-		}
-		return ipAddress.equals(node.getIPAddress()) && port == node.getPort();
+	public long getDelay(TimeUnit unit) {
+		return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
 	}
 
-	synchronized void send(Packet p) {
-		if (up) {
-			System.out.println("Sending: " + p);
-			if (!node.send(p)) {
-				System.out.println("Failed to send because node is going down.  Queueing: " + p);
-				downQueue.add(p);
-			}
-		} else {
-			System.out.println("Queueing to failed node: " + p);
-			downQueue.add(p);
+	public int compareTo(Delayed o) {
+		DelayedPacket other = (DelayedPacket) o;
+		if (due != other.due) {
+			return due < other.due ? -1 : 1;
 		}
+		return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
 	}
 }
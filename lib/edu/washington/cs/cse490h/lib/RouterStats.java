@@ -0,0 +1,158 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counts the packets the Router forwards on each (src, dest, protocol), and
+ * writes them out as JSON along with how much is queued for each node.
+ * Counting a packet is a map lookup and a few atomic adds; nothing is
+ * formatted until a snapshot is asked for.
+ */
+class RouterStats {
+	private static final int PROTOCOLS = 256;
+
+	/**
+	 * The counters for one protocol on one link
+	 */
+	private static class Counters {
+		private final AtomicLong packets = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong dropped = new AtomicLong();
+		// from when the Router read the packet to when it was handed to the
+		// destination's connection or down-queue
+		private final AtomicLong latencyNanos = new AtomicLong();
+		private final AtomicLong maxLatencyNanos = new AtomicLong();
+	}
+
+	// (src, dest) -> the counters for each protocol, created when first used
+	private final ConcurrentHashMap<Long, AtomicReferenceArray<Counters>> links =
+		new ConcurrentHashMap<Long, AtomicReferenceArray<Counters>>();
+	private final long start = System.currentTimeMillis();
+
+	private Counters counters(int src, int dest, int protocol) {
+		Long k = ((long) src << 32) | (dest & 0xFFFFFFFFL);
+		AtomicReferenceArray<Counters> link = links.get(k);
+		if (link == null) {
+			link = new AtomicReferenceArray<Counters>(PROTOCOLS);
+			AtomicReferenceArray<Counters> raced = links.putIfAbsent(k, link);
+			if (raced != null) {
+				link = raced;
+			}
+		}
+
+		int i = protocol & (PROTOCOLS - 1);
+		Counters c = link.get(i);
+		if (c == null) {
+			link.compareAndSet(i, null, new Counters());
+			c = link.get(i);
+		}
+		return c;
+	}
+
+	/**
+	 * Count a packet handed to its destination
+	 *
+	 * @param src
+	 *            The sending node
+	 * @param dest
+	 *            The destination; for a broadcast, the node it went to
+	 * @param protocol
+	 *            The packet's protocol
+	 * @param size
+	 *            The size of the packet on the wire
+	 * @param latency
+	 *            How long the Router held the packet, in nanoseconds
+	 */
+	void forwarded(int src, int dest, int protocol, int size, long latency) {
+		Counters c = counters(src, dest, protocol);
+		c.packets.incrementAndGet();
+		c.bytes.addAndGet(size);
+		c.latencyNanos.addAndGet(latency);
+		long max = c.maxLatencyNanos.get();
+		while (latency > max && !c.maxLatencyNanos.compareAndSet(max, latency)) {
+			max = c.maxLatencyNanos.get();
+		}
+	}
+
+	/**
+	 * Count a packet dropped by fault injection
+	 */
+	void dropped(int src, int dest, int protocol) {
+		counters(src, dest, protocol).dropped.incrementAndGet();
+	}
+
+	/**
+	 * @param nodes
+	 *            The Router's nodes, for what is queued for each
+	 * @return Everything counted so far, e.g.
+	 *
+	 *         <pre>
+	 * {"uptimeMillis":5000,
+	 *  "links":[{"src":1,"dest":2,"protocol":7,"packets":10,"bytes":400,"dropped":0,
+	 *            "avgLatencyMicros":12.5,"maxLatencyMicros":40.0}],
+	 *  "nodes":[{"addr":2,"up":true,"queueDepth":0,"downQueuePackets":0,
+	 *            "downQueueBytes":0,"spilledPackets":0}]}
+	 * </pre>
+	 */
+	String toJson(Map<Integer, NodeContainer> nodes) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"uptimeMillis\":").append(System.currentTimeMillis() - start);
+
+		sb.append(",\n \"links\":[");
+		// sorted by src, then dest
+		TreeMap<Long, AtomicReferenceArray<Counters>> sorted =
+			new TreeMap<Long, AtomicReferenceArray<Counters>>(links);
+		boolean first = true;
+		for (Map.Entry<Long, AtomicReferenceArray<Counters>> e : sorted.entrySet()) {
+			long k = e.getKey();
+			for (int i = 0; i < PROTOCOLS; i++) {
+				Counters c = e.getValue().get(i);
+				if (c == null) {
+					continue;
+				}
+				long packets = c.packets.get();
+				sb.append(first ? "\n  " : ",\n  ");
+				first = false;
+				sb.append("{\"src\":").append((int) (k >> 32));
+				sb.append(",\"dest\":").append((int) k);
+				sb.append(",\"protocol\":").append(i);
+				sb.append(",\"packets\":").append(packets);
+				sb.append(",\"bytes\":").append(c.bytes.get());
+				sb.append(",\"dropped\":").append(c.dropped.get());
+				sb.append(",\"avgLatencyMicros\":").append(String.format(Locale.ROOT, "%.1f",
+						packets == 0 ? 0.0 : c.latencyNanos.get() / 1e3 / packets));
+				sb.append(",\"maxLatencyMicros\":").append(String.format(Locale.ROOT, "%.1f",
+						c.maxLatencyNanos.get() / 1e3));
+				sb.append('}');
+			}
+		}
+		sb.append("],\n \"nodes\":[");
+
+		ArrayList<Map.Entry<Integer, NodeContainer>> entries;
+		synchronized (nodes) {
+			entries = new ArrayList<Map.Entry<Integer, NodeContainer>>(
+					new TreeMap<Integer, NodeContainer>(nodes).entrySet());
+		}
+		first = true;
+		for (Map.Entry<Integer, NodeContainer> e : entries) {
+			NodeContainer c = e.getValue();
+			sb.append(first ? "\n  " : ",\n  ");
+			first = false;
+			sb.append("{\"addr\":").append(e.getKey());
+			sb.append(",\"up\":").append(c.isUp());
+			sb.append(",\"queueDepth\":").append(c.getQueueDepth());
+			sb.append(",\"downQueuePackets\":").append(c.getQueuedPackets());
+			sb.append(",\"downQueueBytes\":").append(c.getQueuedBytes());
+			sb.append(",\"spilledPackets\":").append(c.getSpilledPackets());
+			sb.append('}');
+		}
+		sb.append("]}\n");
+		return sb.toString();
+	}
+}
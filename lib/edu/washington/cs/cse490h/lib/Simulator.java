@@ -36,6 +36,11 @@ public class Simulator extends Manager {
     private final SynopticLogger synTotalOrderLogger = new SynopticLogger();
 
     private HashSet<Timeout> currentTimeouts;
+
+    // set by runEmbedded(), where an EXIT command ends the run rather than
+    // the process
+    private boolean embedded = false;
+    private boolean exited = false;
     
     protected static byte serverKey[];
 
@@ -80,7 +85,8 @@ public class Simulator extends Manager {
 
         setParser(new SimulationCommandsParser());
 
-        System.out.println("Starting simulation with seed: " + this.seed);
+        Console.println(Console.INFO, "Starting simulation with seed: "
+                + this.seed);
         Utility.randNumGen = new Random(this.seed);
 
         nodes = new HashMap<Integer, Node>();
@@ -165,28 +171,8 @@ public class Simulator extends Manager {
                 .start(MessageLayer.synopticPartialOrderLogFilename);
 
         if (cmdInputType == InputType.FILE) {
-            while (!inTransitMsgs.isEmpty() || !sortedEvents.isEmpty()
-                    || !waitingTOs.isEmpty()) {
-                System.out.println("\nTime: " + now());
-
-                ArrayList<Event> currentRoundEvents = new ArrayList<Event>();
-
-                boolean advance = false;
-                do {
-                    if (sortedEvents.isEmpty()) {
-                        advance = true;
-                    } else {
-                        Event ev = sortedEvents.remove(0);
-                        if (ev.t == Event.EventType.TIME) {
-                            advance = true;
-                        } else {
-                            currentRoundEvents.add(ev);
-                        }
-                    }
-                } while (!advance);
-
-                doTimestep(currentRoundEvents);
-
+            while (hasPendingWork()) {
+                doFileTimestep();
             }
         } else if (cmdInputType == InputType.USER) {
             while (true) {
@@ -236,6 +222,73 @@ public class Simulator extends Manager {
         stop();
     }
 
+    /**
+     * Runs a command file simulation from inside another program, such as a
+     * benchmark harness. The run ends when there is no more work, when an
+     * EXIT command is handled, or after maxSteps time steps, whichever comes
+     * first. Unlike start(), this never exits the JVM.
+     * 
+     * @param maxSteps
+     *            The most time steps to simulate
+     * @return true if the simulation finished on its own, false if it was cut
+     *         off at maxSteps
+     */
+    public boolean runEmbedded(long maxSteps) {
+        if (cmdInputType != InputType.FILE) {
+            throw new IllegalStateException(
+                    "Only command file simulations can be embedded");
+        }
+
+        embedded = true;
+        synTotalOrderLogger.start(MessageLayer.synopticTotalOrderLogFilename);
+        synPartialOrderLogger
+                .start(MessageLayer.synopticPartialOrderLogFilename);
+
+        while (!exited && hasPendingWork() && now() < maxSteps) {
+            doFileTimestep();
+        }
+
+        synTotalOrderLogger.stop();
+        synPartialOrderLogger.stop();
+        return exited || !hasPendingWork();
+    }
+
+    /**
+     * @return true if there are commands, packets or timeouts left to process
+     */
+    private boolean hasPendingWork() {
+        return !inTransitMsgs.isEmpty() || !sortedEvents.isEmpty()
+                || !waitingTOs.isEmpty();
+    }
+
+    /**
+     * Gather the events up to the next TIME command in the command file and
+     * run them as one time step
+     */
+    private void doFileTimestep() {
+        if (Console.isEnabled(Console.TRACE)) {
+            Console.println(Console.TRACE, "\nTime: " + now());
+        }
+
+        ArrayList<Event> currentRoundEvents = new ArrayList<Event>();
+
+        boolean advance = false;
+        do {
+            if (sortedEvents.isEmpty()) {
+                advance = true;
+            } else {
+                Event ev = sortedEvents.remove(0);
+                if (ev.t == Event.EventType.TIME) {
+                    advance = true;
+                } else {
+                    currentRoundEvents.add(ev);
+                }
+            }
+        } while (!advance);
+
+        doTimestep(currentRoundEvents);
+    }
+
     /**
      * Perform a single simulator time step with a set of events as argument
      * 
@@ -251,20 +304,29 @@ public class Simulator extends Manager {
 
         executeEvents(currentRoundEvents);
 
+        endTimestep();
+
         setTime(now() + 1);
         logSimulatorEvent("TIMESTEP time:" + now());
     }
 
     @Override
     protected void stop() {
-        System.out.println(stopString());
+        boolean info = Console.isEnabled(Console.INFO);
+        if (info) {
+            Console.println(Console.INFO, stopString());
+        }
         for (Integer i : nodes.keySet()) {
-            System.out.println(i + ": " + nodes.get(i).toString());
+            if (info) {
+                Console.println(Console.INFO, i + ": " + nodes.get(i).toString());
+            }
             logEventWithNodeField(nodes.get(i), "STOPPED");
         }
 
-        for (Integer i : crashedNodes) {
-            System.out.println(i + ": failed");
+        if (info) {
+            for (Integer i : crashedNodes) {
+                Console.println(Console.INFO, i + ": failed");
+            }
         }
 
         // stop the synoptic logger
@@ -273,6 +335,21 @@ public class Simulator extends Manager {
         System.exit(0);
     }
 
+    /**
+     * Let every node that is up finish the time step
+     */
+    private void endTimestep() {
+        // make a copy so we don't have concurrent modification exceptions
+        Integer[] addrCopy = nodes.keySet().toArray(new Integer[0]);
+        for (Integer i : addrCopy) {
+            try {
+                nodes.get(i).onTimestepEnd();
+            } catch (NodeCrashException e) {
+                failNode(i);
+            }
+        }
+    }
+
     /******************* Methods to fail or restart a node *******************/
 
     /**
@@ -307,7 +384,7 @@ public class Simulator extends Manager {
         nodes.put(node, newNode);
 
         newNode.init(this, node);
-        vtimes.put(node, new VectorTime(MAX_ADDRESS));
+        vtimes.put(node, new VectorTime(INITIAL_VECTOR_LENGTH));
         logEventWithNodeField(newNode, "START");
 
         try {
@@ -367,7 +444,10 @@ public class Simulator extends Manager {
     protected void checkWriteCrash(Node n, String description) {
         if (userControl.compareTo(FailureLvl.CRASH) < 0) {
             if (Utility.getRNG().nextDouble() < failureRate) {
-                System.out.println("Randomly failing before write: " + n.addr);
+                if (Console.isEnabled(Console.TRACE)) {
+                    Console.println(Console.TRACE,
+                            "Randomly failing before write: " + n.addr);
+                }
                 NodeCrashException e = failNode(n.addr);
 
                 throw e;
@@ -405,6 +485,9 @@ public class Simulator extends Manager {
      * Logs an in transit event -- a DROP or a DELAY event.
      */
     private void logInTransit(Packet p, String netEvent) {
+        if (!isLogging()) {
+            return;
+        }
         Node destNode = nodes.get(p.getDest());
         if (destNode == null) {
             // Node failed while the packet was in transit.
@@ -437,7 +520,10 @@ public class Simulator extends Manager {
                 Packet p = iter.next();
                 double rand = Utility.getRNG().nextDouble();
                 if (rand < dropRate) {
-                    System.out.println("Randomly dropping: " + p.toString());
+                    if (Console.isEnabled(Console.TRACE)) {
+                        Console.println(Console.TRACE, "Randomly dropping: "
+                                + p.toString());
+                    }
                     logInTransit(p, "DROP");
                     iter.remove();
                 }
@@ -510,7 +596,10 @@ public class Simulator extends Manager {
                 // gets through
                 double adjustedDelay = delayRate / (1 - dropRate);
                 if (rand < adjustedDelay) {
-                    System.out.println("Randomly Delaying: " + p.toString());
+                    if (Console.isEnabled(Console.TRACE)) {
+                        Console.println(Console.TRACE, "Randomly Delaying: "
+                                + p.toString());
+                    }
                     iter.remove();
                     inTransitMsgs.add(p);
                     logInTransit(p, "DELAY");
@@ -664,9 +753,14 @@ public class Simulator extends Manager {
             } while (doAgain);
         } else {
             Collections.shuffle(currentRoundEvents, Utility.getRNG());
-            System.out.println("Executing with order: ");
+            boolean trace = Console.isEnabled(Console.TRACE);
+            if (trace) {
+                Console.println(Console.TRACE, "Executing with order: ");
+            }
             for (Event ev : currentRoundEvents) {
-                System.out.println(ev.toString());
+                if (trace) {
+                    Console.println(Console.TRACE, ev.toString());
+                }
                 handleEvent(ev);
             }
         }
@@ -682,13 +776,17 @@ public class Simulator extends Manager {
 
         switch (ev.t) {
         case FAILURE:
-        	System.out.println("interesting case 0");
+        	Console.println(Console.TRACE, "interesting case 0");
             break;
         case START:
             startNode(ev.node);
             break;
         case EXIT:
-            stop();
+            if (embedded) {
+                exited = true;
+            } else {
+                stop();
+            }
             break;
         case COMMAND:
             sendNodeCmd(ev.node, ev.command);
@@ -764,20 +862,27 @@ public class Simulator extends Manager {
             for (Integer i : nodes.keySet()) {
                 if (i != from) {
                     Packet newPacket = new Packet(i, from, protocol, payload);
-                    logEvent(fromNode,
-                            "SEND " + newPacket.toSynopticString(fromNode));
+                    if (isLogging()) {
+                        logEvent(fromNode,
+                                "SEND " + newPacket.toSynopticString(fromNode));
+                    }
                     inTransitMsgs.add(newPacket);
                 }
             }
             for (Integer i : crashedNodes) {
                 Packet newPacket = new Packet(i, from, protocol, payload);
-                logEvent(fromNode,
-                        "SEND " + newPacket.toSynopticString(fromNode));
+                if (isLogging()) {
+                    logEvent(fromNode,
+                            "SEND " + newPacket.toSynopticString(fromNode));
+                }
                 inTransitMsgs.add(newPacket);
             }
         } else {
             Packet newPacket = new Packet(to, from, protocol, payload);
-            logEvent(fromNode, "SEND " + newPacket.toSynopticString(fromNode));
+            if (isLogging()) {
+                logEvent(fromNode,
+                        "SEND " + newPacket.toSynopticString(fromNode));
+            }
             inTransitMsgs.add(newPacket);
         }
     }
@@ -802,9 +907,13 @@ public class Simulator extends Manager {
         }
 
         Node destNode = nodes.get(destAddr);
-        vtimes.get(destAddr).updateTo(vtimes.get(srcAddr));
-
-        logEvent(destNode, "RECVD " + pkt.toSynopticString(destNode));
+        if (isLogging()) {
+            VectorTime srcTime = vtimes.get(srcAddr);
+            if (srcTime != null) {
+                vtimes.get(destAddr).updateTo(srcTime);
+            }
+            logEvent(destNode, "RECVD " + pkt.toSynopticString(destNode));
+        }
 
         try {
             destNode.onReceive(srcAddr, pkt.getProtocol(), pkt.getPayload());
@@ -845,7 +954,8 @@ public class Simulator extends Manager {
      * @return true if the address is valid, false otherwise
      */
     protected static boolean validNodeAddress(int addr) {
-        return (addr <= MAX_NODES_TO_SIMULATE && addr >= 0);
+        return (addr <= MAX_NODES_TO_SIMULATE && addr >= 0
+                && addr != BROADCAST_ADDRESS);
     }
 
     /**
@@ -865,7 +975,7 @@ public class Simulator extends Manager {
 
         // node is crashed but addr is still valid
         if (crashedNodes.contains(nodeAddr)) {
-        	System.out.println("node not valid");
+        	Console.println(Console.TRACE, "node not valid");
             return false;
         }
 
@@ -905,6 +1015,11 @@ public class Simulator extends Manager {
         }
     }
 
+    @Override
+    protected boolean isLogging() {
+        return super.isLogging() || synTotalOrderLogger.isEnabled();
+    }
+
     /**
      * Log the event in the synoptic log using the simulator's global logical
      * ordering with a node field.
@@ -915,6 +1030,9 @@ public class Simulator extends Manager {
      *            the event string description of the event
      */
     public void logEventWithNodeField(Node node, String eventStr) {
+        if (!isLogging()) {
+            return;
+        }
         // The Simulator implicitly totally orders events (because it is single
         // threaded) so we also output a globally total order (in addition to
         // the partial order that is implemented in super).
@@ -935,6 +1053,9 @@ public class Simulator extends Manager {
      */
     @Override
     public void logEvent(Node node, String eventStr) {
+        if (!isLogging()) {
+            return;
+        }
         // The Simulator implicitly totally orders events (because it is single
         // threaded) so we also output a globally total order (in addition to
         // the partial order that is implemented in super).
@@ -951,6 +1072,9 @@ public class Simulator extends Manager {
      *            the event string description of the event
      */
     public void logSimulatorEvent(String eventStr) {
+        if (!isLogging()) {
+            return;
+        }
         for (Node node : nodes.values()) {
             logEventWithNodeField(node, eventStr);
         }
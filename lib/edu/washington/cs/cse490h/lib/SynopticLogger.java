@@ -17,7 +17,8 @@ public class SynopticLogger {
 	 * Opens the log file and sets up logging state.
 	 */
 	public void start(String filename) {
-		if (filename == null) {
+		// no filename means no log; MessageLayer defaults to ""
+		if (filename == null || filename.equals("")) {
 			return;
 		}
 
@@ -44,6 +45,13 @@ public class SynopticLogger {
 
 
 
+	/**
+	 * @return true if events are being written somewhere
+	 */
+	public boolean isEnabled() {
+		return this.writer != null;
+	}
+
 	/**
 	 * Closes the log file and tears down logging state.
 	 */
@@ -54,6 +62,7 @@ public class SynopticLogger {
 
 		try {
 			this.writer.close();
+			this.writer = null;
 		} catch (IOException e) {
 			System.out.println("Warning: unable to close logfile '" + this.filename + "'.");
 			e.printStackTrace();
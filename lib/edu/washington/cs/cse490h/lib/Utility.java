@@ -8,7 +8,6 @@ import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
 import java.util.Random;
 
 import javax.crypto.BadPaddingException;
@@ -16,7 +15,6 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.Cipher;
-import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
@@ -26,9 +24,26 @@ public class Utility {
 
     private static final String CHARSET = "US-ASCII";
     static Random randNumGen;
+    // set on the step loop of each emulator an EmulatorHost runs, so that
+    // every hosted node draws from its own generator
+    private static final ThreadLocal<Random> threadRNG = new ThreadLocal<Random>();
+
+    // directory under which every node gets its own storage folder
+    private static String storageRoot = "storage";
 
     public static Random getRNG() {
-        return randNumGen;
+        Random rng = threadRNG.get();
+        return rng == null ? randNumGen : rng;
+    }
+
+    /**
+     * Give the calling thread its own random number generator
+     *
+     * @param rng
+     *            What getRNG returns on this thread from now on
+     */
+    static void setThreadRNG(Random rng) {
+        threadRNG.set(rng);
     }
 
     /**
@@ -101,7 +116,25 @@ public class Utility {
     }
 
     static String realFilename(int nodeAddr, String filename) {
-        return "storage/" + nodeAddr + "/" + filename;
+        return storageRoot + "/" + nodeAddr + "/" + filename;
+    }
+
+    /**
+     * Changes the directory that holds the per-node storage folders. This
+     * should be called before any node is started.
+     * 
+     * @param root
+     *            The new storage root, without a trailing slash
+     */
+    public static void setStorageRoot(String root) {
+        storageRoot = root;
+    }
+
+    /**
+     * @return The directory that holds the per-node storage folders
+     */
+    public static String getStorageRoot() {
+        return storageRoot;
     }
     
     /**
@@ -133,8 +166,8 @@ public class Utility {
     public static byte[] AESEncrypt(byte[] input, byte[] key){
     	try{
 	    	Cipher c = Cipher.getInstance("AES/ECB/PKCS5Padding");
-	    	SecretKeyFactory keyFactory = SecretKeyFactory.getInstance("AES");
-	    	c.init(Cipher.ENCRYPT_MODE, keyFactory.generateSecret(new SecretKeySpec(key,"AES")));
+	    	// SecretKeySpec is already a SecretKey; the JCE has no AES SecretKeyFactory
+	    	c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key,"AES"));
 	    	
 	    	return c.doFinal(input);
     	} catch (NoSuchAlgorithmException e) {
@@ -146,9 +179,6 @@ public class Utility {
 		} catch (InvalidKeyException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
-		} catch (InvalidKeySpecException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		} catch (IllegalBlockSizeException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -163,8 +193,7 @@ public class Utility {
     public static byte[] AESDecrypt(byte[] input, byte[] key){
     	try{
 	    	Cipher c = Cipher.getInstance("AES/ECB/PKCS5Padding");
-	    	SecretKeyFactory keyFactory = SecretKeyFactory.getInstance("AES");
-	    	c.init(Cipher.DECRYPT_MODE, keyFactory.generateSecret(new SecretKeySpec(key,"AES")));
+	    	c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key,"AES"));
 	    	
 	    	return c.doFinal(input);
     	} catch (NoSuchAlgorithmException e) {
@@ -176,9 +205,6 @@ public class Utility {
 		} catch (InvalidKeyException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
-		} catch (InvalidKeySpecException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		} catch (IllegalBlockSizeException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -192,7 +218,7 @@ public class Utility {
     }
 
     static void mkdirs(int nodeAddr) {
-        File f = new File("storage/" + nodeAddr + "");
+        File f = new File(storageRoot + "/" + nodeAddr + "");
         if (!f.exists()) {
             f.mkdirs();
         }
@@ -1,36 +1,41 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
+/**
+ * A vector clock. Only the non-zero entries are stored, sorted by index, so
+ * the cost of an update depends on how many nodes a node has heard from
+ * rather than on how many addresses exist.
+ */
 public class VectorTime {
-	private ArrayList<Integer> vector = null;
+	private int[] indices = new int[4];
+	private int[] values = new int[4];
+	private int nonZero = 0;
 	public int vecLength = 0;
 
 	/**
 	 * Builds a blank VectorTime
-	 * @param maxNodes the max vector length
+	 * @param maxNodes the initial vector length. The vector grows to cover any
+	 *        larger index that is stepped or merged in.
 	 */
 	public VectorTime(int maxNodes) {
-		this.vector = new ArrayList<Integer>(maxNodes);
-		for (int i = 0; i < maxNodes; i++) {
-			this.vector.add(0);
-		}
 		vecLength = maxNodes;
 	}
-	
+
 	/**
 	 * @return length of the vector time
 	 */
 	public int length() {
 		return vecLength;
 	}
-	
-	
+
+
 	/**
 	 * Returns the clock value at an index
 	 */
 	public int get(int index) {
-		return this.vector.get(index);
+		int pos = Arrays.binarySearch(indices, 0, nonZero, index);
+		return pos < 0 ? 0 : values[pos];
 	}
 
 	/**
@@ -39,12 +44,25 @@ public class VectorTime {
 	 * @return
 	 */
 	public boolean lessThan(VectorTime t) {
-		assert(t.vecLength == this.vecLength);
 		boolean foundStrictlyLess = false;
-		for (int i = 0; i < vecLength; ++i) {
-			if (vector.get(i) < t.get(i))
+		int i = 0;
+		int j = 0;
+		while (i < nonZero || j < t.nonZero) {
+			int mine;
+			int theirs;
+			if (j >= t.nonZero || (i < nonZero && indices[i] < t.indices[j])) {
+				mine = values[i++];
+				theirs = 0;
+			} else if (i >= nonZero || t.indices[j] < indices[i]) {
+				mine = 0;
+				theirs = t.values[j++];
+			} else {
+				mine = values[i++];
+				theirs = t.values[j++];
+			}
+			if (mine < theirs)
 				foundStrictlyLess = true;
-			else if (vector.get(i) > t.get(i))
+			else if (mine > theirs)
 				return false;
 		}
 		return foundStrictlyLess;
@@ -54,16 +72,9 @@ public class VectorTime {
 	 * @return Whether or not this is a unit vector
 	 */
 	public boolean isOneTime() {
-		boolean sawOne = false;
-		for (int i = 0; i < vecLength; ++i) {
-			if (sawOne && vector.get(i) == 1)
-				return false;
-			if (vector.get(i) == 1)
-				sawOne = true;
-			if (vector.get(i) > 0)
-				return false;
-		}
-		return true;
+		// a stored entry is always positive, which the dense version
+		// rejected as soon as it saw one
+		return nonZero == 0;
 	}
 
 	/**
@@ -72,15 +83,32 @@ public class VectorTime {
 	public boolean isSingular() {
 		return vecLength == 1;
 	}
-	
+
 	/**
 	 * Increments vtime at an index
 	 * @param index
 	 */
 	public void step(int index) {
-		vector.set(index, vector.get(index) + 1);
+		int pos = Arrays.binarySearch(indices, 0, nonZero, index);
+		if (pos >= 0) {
+			values[pos]++;
+			return;
+		}
+		pos = -(pos + 1);
+		if (nonZero == indices.length) {
+			indices = Arrays.copyOf(indices, nonZero * 2);
+			values = Arrays.copyOf(values, nonZero * 2);
+		}
+		System.arraycopy(indices, pos, indices, pos + 1, nonZero - pos);
+		System.arraycopy(values, pos, values, pos + 1, nonZero - pos);
+		indices[pos] = index;
+		values[pos] = 1;
+		nonZero++;
+		if (index >= vecLength) {
+			vecLength = index + 1;
+		}
 	}
-	
+
 	/**
 	 * Updates to be at least as large as another vtime. Used during message passing
 	 * and other communication between nodes. Usually you would need to call this.step()
@@ -88,36 +116,60 @@ public class VectorTime {
 	 * @param t the other vtime
 	 */
 	public void updateTo(VectorTime t) {
-		assert(t.vecLength == this.vecLength);
-		for (int i = 0; i < vecLength; ++i) {
-			if (vector.get(i) < t.get(i))
-				vector.set(i, t.get(i));
+		int[] mergedIndices = new int[nonZero + t.nonZero];
+		int[] mergedValues = new int[nonZero + t.nonZero];
+		int n = 0;
+		int i = 0;
+		int j = 0;
+		while (i < nonZero || j < t.nonZero) {
+			if (j >= t.nonZero || (i < nonZero && indices[i] < t.indices[j])) {
+				mergedIndices[n] = indices[i];
+				mergedValues[n] = values[i++];
+			} else if (i >= nonZero || t.indices[j] < indices[i]) {
+				mergedIndices[n] = t.indices[j];
+				mergedValues[n] = t.values[j++];
+			} else {
+				mergedIndices[n] = indices[i];
+				mergedValues[n] = Math.max(values[i++], t.values[j++]);
+			}
+			n++;
 		}
+		if (n > 0) {
+			indices = mergedIndices;
+			values = mergedValues;
+		}
+		nonZero = n;
+		vecLength = Math.max(vecLength, t.vecLength);
 	}
-	
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + ((vector == null) ? 0 : vector.hashCode());
-		for (int i = 0; i < vecLength; ++i) {
-			result += prime*result + vector.get(i).hashCode();
+		for (int i = 0; i < nonZero; ++i) {
+			result = prime * result + indices[i];
+			result = prime * result + values[i];
 		}
 		return result;
 	}
-	
+
 	/**
 	 * Returns a Synoptic-string representation for this vector, which
 	 * looks like "1,2,3"
 	 */
 	public String toString() {
-		String ret = "";
+		StringBuilder ret = new StringBuilder(vecLength * 2);
+		int next = 0;
 		for (int i = 0; i < vecLength; i++) {
 			if (i != 0) {
-				ret += ",";
+				ret.append(',');
+			}
+			if (next < nonZero && indices[next] == i) {
+				ret.append(values[next++]);
+			} else {
+				ret.append('0');
 			}
-			ret += vector.get(i).toString();
 		}
-		return ret;
+		return ret.toString();
 	}
 }
@@ -0,0 +1,91 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how many packets go out in each socket write, so the effect of
+ * write batching can be seen. Batch sizes are kept in a histogram with one
+ * bucket per power of two.
+ */
+class WriteStats {
+	private static final int BUCKETS = 16;
+
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong packets = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong maxBatch = new AtomicLong();
+	// bucket i counts batches of 2^i up to 2^(i+1)-1 packets
+	private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Record one write
+	 *
+	 * @param batch
+	 *            The number of packets in the write
+	 * @param size
+	 *            The number of bytes written
+	 */
+	void record(int batch, long size) {
+		if (batch <= 0) {
+			return;
+		}
+		writes.incrementAndGet();
+		packets.addAndGet(batch);
+		bytes.addAndGet(size);
+		histogram.incrementAndGet(Math.min(31 - Integer.numberOfLeadingZeros(batch), BUCKETS - 1));
+
+		long max = maxBatch.get();
+		while (batch > max && !maxBatch.compareAndSet(max, batch)) {
+			max = maxBatch.get();
+		}
+	}
+
+	long getWrites() {
+		return writes.get();
+	}
+
+	long getPackets() {
+		return packets.get();
+	}
+
+	long getBytes() {
+		return bytes.get();
+	}
+
+	long getMaxBatch() {
+		return maxBatch.get();
+	}
+
+	/**
+	 * @return One line, e.g.
+	 *         "Writes: 120 packets in 40 writes (3.00 per write, max 9); batch sizes 1:10 2-3:20 4-7:8 8-15:2"
+	 */
+	public String toString() {
+		long w = writes.get();
+		long p = packets.get();
+		StringBuilder sb = new StringBuilder();
+		sb.append("Writes: ").append(p).append(" packets in ").append(w).append(" writes (");
+		sb.append(String.format("%.2f", w == 0 ? 0.0 : (double) p / w));
+		sb.append(" per write, max ").append(maxBatch.get()).append(")");
+		if (w > 0) {
+			sb.append("; batch sizes");
+			for (int i = 0; i < BUCKETS; i++) {
+				long n = histogram.get(i);
+				if (n == 0) {
+					continue;
+				}
+				int low = 1 << i;
+				int high = (1 << (i + 1)) - 1;
+				sb.append(' ').append(low);
+				if (i == BUCKETS - 1) {
+					sb.append('+');
+				} else if (high != low) {
+					sb.append('-').append(high);
+				}
+				sb.append(':').append(n);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,358 @@
+package edu.washington.cs.cse490h.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.lib.Node;
+import edu.washington.cs.cse490h.lib.Utility;
+
+/**
+ * Checks that MsgLogger's write-ahead log comes back the same from disk. Each
+ * test runs in the onCommand of a node in the simulator, which gives the
+ * logger storage and timeouts. MsgLogger is in the default package, so it is
+ * reached through reflection.
+ */
+public class MsgLoggerTests {
+    private static final int SEND = 0;
+    private static final int RECV = 1;
+    private static final String SEGMENT_PREFIX = "$msglog.";
+
+    /**
+     * A test, run by LogNode.
+     */
+    interface Check {
+        void run(Node node) throws Exception;
+    }
+
+    /**
+     * Runs the check it is given when it gets a command.
+     */
+    public static class LogNode extends Node {
+        public static double getFailureRate() { return 0/100.0; }
+        public static double getDropRate() { return 0/100.0; }
+        public static double getDelayRate() { return 0/100.0; }
+
+        static Check check;
+        static Throwable failure;
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void onReceive(Integer from, int protocol, byte[] msg) {
+        }
+
+        @Override
+        public void onCommand(String command) {
+            try {
+                check.run(this);
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+    }
+
+    /**
+     * A MsgLogger, called through reflection.
+     */
+    static class Logger {
+        private final Object logger;
+
+        Logger(Node node) throws Exception {
+            logger = Class.forName("MsgLogger").getConstructor(Node.class)
+                    .newInstance(node);
+        }
+
+        boolean logMsg(int addr, byte[] msg, int seqNum, int sendRecv)
+                throws Exception {
+            return (Boolean) call("logMsg", addr, msg, seqNum, sendRecv);
+        }
+
+        void deleteLog(int addr, int seqNum, int sendRecv) throws Exception {
+            call("deleteLog", addr, seqNum, sendRecv);
+        }
+
+        void markDone(int addr, int seqNum, int id, int sendRecv)
+                throws Exception {
+            call("markDone", addr, seqNum, id, sendRecv);
+        }
+
+        void logSeq(int addr, int seqNum, int sendRecv) throws Exception {
+            call("logSeq", addr, seqNum, sendRecv);
+        }
+
+        void sync() throws Exception {
+            call("sync");
+        }
+
+        /**
+         * @return The live logs as "addr:seqNum:msg:done", sorted
+         */
+        List<String> logs(int sendRecv) throws Exception {
+            List<String> logs = new ArrayList<String>();
+            for (Object e : (Iterable<?>) call("getLogs", sendRecv)) {
+                Class<?> c = e.getClass();
+                logs.add(c.getMethod("addr").invoke(e) + ":"
+                        + c.getMethod("seqNum").invoke(e) + ":"
+                        + Arrays.toString((byte[]) c.getMethod("msg").invoke(e)) + ":"
+                        + new TreeSet<Object>((Set<?>) c.getMethod("done").invoke(e)));
+            }
+            Collections.sort(logs);
+            return logs;
+        }
+
+        /**
+         * @return The last sequence numbers as "addr:seqNum", sorted
+         */
+        List<String> seqs(int sendRecv) throws Exception {
+            Object entries = call("getSeqLog");
+            String list = (sendRecv == SEND) ? "seq_send" : "seq_recv";
+            List<String> seqs = new ArrayList<String>();
+            for (Object p : (Iterable<?>) entries.getClass().getMethod(list).invoke(entries)) {
+                Class<?> c = p.getClass();
+                seqs.add(c.getMethod("addr").invoke(p) + ":" + c.getMethod("seq").invoke(p));
+            }
+            Collections.sort(seqs);
+            return seqs;
+        }
+
+        private Object call(String name, Object... args) throws Exception {
+            for (Method m : logger.getClass().getMethods()) {
+                if (m.getName().equals(name)
+                        && m.getParameterTypes().length == args.length) {
+                    return m.invoke(logger, args);
+                }
+            }
+            throw new NoSuchMethodException(name);
+        }
+    }
+
+    private Simulations sims;
+    private Field segmentBytes;
+    private Field maxSegments;
+    private int defaultSegmentBytes;
+    private int defaultMaxSegments;
+
+    @Before
+    public void setUp() throws Exception {
+        sims = new Simulations("msglogger");
+        Class<?> c = Class.forName("MsgLogger");
+        segmentBytes = c.getField("SEGMENT_BYTES");
+        maxSegments = c.getField("MAX_SEGMENTS");
+        defaultSegmentBytes = segmentBytes.getInt(null);
+        defaultMaxSegments = maxSegments.getInt(null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sims.close();
+        segmentBytes.setInt(null, defaultSegmentBytes);
+        maxSegments.setInt(null, defaultMaxSegments);
+    }
+
+    /**
+     * Random logs, marks, deletes and sequence numbers, with small segments so
+     * that many roll over and old ones have their live records moved forward,
+     * match a model of the live logs and sequence numbers, both in the logger
+     * that wrote them and in one rebuilt from disk.
+     */
+    @Test
+    public void replayTest() throws Throwable {
+        segmentBytes.setInt(null, 2000);
+        maxSegments.setInt(null, 2);
+        inNode(new Check() {
+            public void run(Node node) throws Exception {
+                Logger logger = new Logger(node);
+                // the message and the ids marked done of each live log
+                List<Map<String, String>> msgs = new ArrayList<Map<String, String>>();
+                List<Map<String, TreeSet<Integer>>> marks = new ArrayList<Map<String, TreeSet<Integer>>>();
+                // the last sequence number of each channel
+                List<Map<Integer, Integer>> seqs = new ArrayList<Map<Integer, Integer>>();
+                for (int sendRecv = SEND; sendRecv <= RECV; sendRecv++) {
+                    msgs.add(new HashMap<String, String>());
+                    marks.add(new HashMap<String, TreeSet<Integer>>());
+                    seqs.add(new HashMap<Integer, Integer>());
+                }
+
+                Random r = new Random(1);
+                for (int i = 0; i < 3000; i++) {
+                    int sendRecv = r.nextInt(2);
+                    int addr = r.nextInt(4);
+                    int seqNum = r.nextInt(300);
+                    String key = addr + ":" + seqNum;
+                    boolean logged = msgs.get(sendRecv).containsKey(key);
+                    int op = r.nextInt(7);
+                    if (op == 6) {
+                        logger.logSeq(addr, seqNum, sendRecv);
+                        seqs.get(sendRecv).put(addr, seqNum);
+                    } else if (op < 2) {
+                        logger.deleteLog(addr, seqNum, sendRecv);
+                        msgs.get(sendRecv).remove(key);
+                        marks.get(sendRecv).remove(key);
+                    } else if (op < 4 && logged) {
+                        // the same id can be marked twice
+                        int id = r.nextInt(5);
+                        logger.markDone(addr, seqNum, id, sendRecv);
+                        marks.get(sendRecv).get(key).add(id);
+                    } else {
+                        byte[] msg = new byte[r.nextInt(60)];
+                        r.nextBytes(msg);
+                        assertEquals(logged, logger.logMsg(addr, msg, seqNum, sendRecv));
+                        if (!logged) {
+                            msgs.get(sendRecv).put(key, key + ":" + Arrays.toString(msg));
+                            marks.get(sendRecv).put(key, new TreeSet<Integer>());
+                        }
+                    }
+                    if (r.nextInt(10) == 0) {
+                        logger.sync();
+                    }
+                }
+                logger.sync();
+
+                for (int sendRecv = SEND; sendRecv <= RECV; sendRecv++) {
+                    List<String> expected = new ArrayList<String>();
+                    for (Map.Entry<String, String> e : msgs.get(sendRecv).entrySet()) {
+                        expected.add(e.getValue() + ":" + marks.get(sendRecv).get(e.getKey()));
+                    }
+                    Collections.sort(expected);
+                    assertEquals(expected, logger.logs(sendRecv));
+                    assertEquals(expected, new Logger(node).logs(sendRecv));
+
+                    List<String> expectedSeqs = new ArrayList<String>();
+                    for (Map.Entry<Integer, Integer> e : seqs.get(sendRecv).entrySet()) {
+                        expectedSeqs.add(e.getKey() + ":" + e.getValue());
+                    }
+                    Collections.sort(expectedSeqs);
+                    assertEquals(expectedSeqs, logger.seqs(sendRecv));
+                    assertEquals(expectedSeqs, new Logger(node).seqs(sendRecv));
+                }
+
+                // the active segment and no more than MAX_SEGMENTS before it
+                List<Integer> segments = segments(node);
+                assertTrue("segments " + segments, segments.size() <= 3);
+                assertTrue("segments " + segments, segments.get(segments.size() - 1) > 10);
+            }
+        });
+    }
+
+    /**
+     * A record at the end of the last segment that fails its checksum, as
+     * one cut short by a crash would, is left out, and logs written after it
+     * come back too.
+     */
+    @Test
+    public void tornTailTest() throws Throwable {
+        inNode(new Check() {
+            public void run(Node node) throws Exception {
+                Logger logger = new Logger(node);
+                logger.logMsg(9, new byte[] { 1, 2, 3 }, 1, SEND);
+                logger.sync();
+                List<String> logs = logger.logs(SEND);
+
+                List<Integer> segments = segments(node);
+                String last = SEGMENT_PREFIX + segments.get(segments.size() - 1);
+                // a whole record, but for its checksum: op, sendRecv, addr,
+                // seqNum, length, msg and a CRC32 of 0
+                ByteBuffer torn = ByteBuffer.allocate(20);
+                torn.put((byte) 1).put((byte) SEND).putInt(9).putInt(2).putInt(2);
+                torn.put((byte) 7).put((byte) 7).putInt(0);
+                FileOutputStream out = new FileOutputStream(
+                        Utility.getFileHandle(node.addr, last), true);
+                out.write(torn.array());
+                out.close();
+
+                logger = new Logger(node);
+                assertEquals(logs, logger.logs(SEND));
+                assertEquals(0, logger.logs(RECV).size());
+
+                logger.logMsg(9, new byte[] { 4 }, 2, RECV);
+                logger.sync();
+                Logger rebuilt = new Logger(node);
+                assertEquals(logs, rebuilt.logs(SEND));
+                assertEquals(logger.logs(RECV), rebuilt.logs(RECV));
+                assertEquals(1, rebuilt.logs(RECV).size());
+            }
+        });
+    }
+
+    /**
+     * A log file of the earlier one-file-per-message format, and the sequence
+     * number files that went with them, are taken into the log once, and
+     * deleted.
+     */
+    @Test
+    public void legacyImportTest() throws Throwable {
+        inNode(new Check() {
+            public void run(Node node) throws Exception {
+                File legacy = Utility.getFileHandle(node.addr, "%7%42.log");
+                legacy.getParentFile().mkdirs();
+                PrintWriter w = new PrintWriter(legacy);
+                w.print(Utility.bytesToHexString(new byte[] { 5, 6, 7 }));
+                w.close();
+                File legacyRecv = Utility.getFileHandle(node.addr, "#7#41.log");
+                legacyRecv.createNewFile();
+                File legacySend = Utility.getFileHandle(node.addr, "##7#3.log");
+                legacySend.createNewFile();
+
+                List<String> expected = Collections.singletonList("7:42:[5, 6, 7]:[]");
+                Logger logger = new Logger(node);
+                assertEquals(expected, logger.logs(RECV));
+                assertEquals(Collections.singletonList("7:41"), logger.seqs(RECV));
+                assertEquals(Collections.singletonList("7:3"), logger.seqs(SEND));
+                assertFalse(legacy.exists());
+                assertFalse(legacyRecv.exists());
+                assertFalse(legacySend.exists());
+
+                logger = new Logger(node);
+                assertEquals(expected, logger.logs(RECV));
+                assertEquals(Collections.singletonList("7:41"), logger.seqs(RECV));
+                assertEquals(Collections.singletonList("7:3"), logger.seqs(SEND));
+            }
+        });
+    }
+
+    /**
+     * @return The numbers of the node's segment files, in order
+     */
+    private static List<Integer> segments(Node node) {
+        List<Integer> segments = new ArrayList<Integer>();
+        for (String f : Utility.getFileHandle(node.addr, ".").list()) {
+            if (f.startsWith(SEGMENT_PREFIX)) {
+                segments.add(Integer.parseInt(f.substring(SEGMENT_PREFIX.length())));
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private void inNode(Check check) throws Throwable {
+        LogNode.check = check;
+        LogNode.failure = null;
+        sims.run(LogNode.class, new String[] { "start 0", "time", "0 check" }, 50);
+        if (LogNode.failure != null) {
+            throw LogNode.failure;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package edu.washington.cs.cse490h.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs RIOCrashTester in the simulator, crashing one of its nodes before
+ * each of its storage writes in turn, and checks that no request is lost,
+ * stalled or served out of order. The node classes are in the default
+ * package, so they are reached through reflection.
+ */
+public class RIOCrashTests {
+    private static final long MAX_STEPS = 1000;
+
+    private Class<?> tester;
+    private Class<?> layer;
+    private Simulations sims;
+
+    @Before
+    public void setUp() throws Exception {
+        tester = Class.forName("RIOCrashTester");
+        layer = Class.forName("ReliableInOrderMsgLayer");
+        sims = new Simulations("riocrash");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sims.close();
+        setLayer("WINDOWED", false);
+        setLayer("WINDOW", 64);
+        setLayer("DELAYED_ACKS", false);
+        setLayer("COALESCE", false);
+        tester.getField("REQUESTS_PER_STEP").setInt(null, 1);
+    }
+
+    /**
+     * One packet in flight on each channel, each ACKed on its own.
+     */
+    @Test
+    public void stopAndWaitTest() throws Exception {
+        crashEachWrite(0, 1);
+    }
+
+    /**
+     * Packets past the window wait on the sender, logged and numbered but not
+     * sent.
+     */
+    @Test
+    public void windowedTest() throws Exception {
+        setLayer("WINDOWED", true);
+        setLayer("WINDOW", 2);
+        tester.getField("REQUESTS_PER_STEP").setInt(null, 3);
+        crashEachWrite(0, 1);
+    }
+
+    /**
+     * Packets that arrive in order are delivered before they are ACKed.
+     */
+    @Test
+    public void delayedAcksTest() throws Exception {
+        setLayer("WINDOWED", true);
+        setLayer("DELAYED_ACKS", true);
+        crashEachWrite(0, 1);
+    }
+
+    /**
+     * Requests sent in the same time step go in one packet, and node 1 answers
+     * them one at a time, so a crash can come between the answers to a batch.
+     * A batch is logged and committed with the rest of its time step, so
+     * node 0 can crash too.
+     */
+    @Test
+    public void coalesceTest() throws Exception {
+        setLayer("COALESCE", true);
+        tester.getField("REQUESTS_PER_STEP").setInt(null, 3);
+        crashEachWrite(0, 1);
+    }
+
+    /**
+     * Without crashes, each node writes its logs and sequence numbers to
+     * storage no more than once a time step, as windowing, delayed ACKs and
+     * coalescing are turned on in turn.
+     */
+    @Test
+    public void groupCommitTest() throws Exception {
+        for (String mode : new String[] { "", "WINDOWED", "DELAYED_ACKS", "COALESCE" }) {
+            if (!mode.isEmpty()) {
+                setLayer(mode, true);
+            }
+            for (int addr = 0; addr < 2; addr++) {
+                assertFalse(run(addr, Integer.MAX_VALUE));
+                assertEquals(mode + " node " + addr + " writes in a time step", 1,
+                        tester.getField("mostWritesInAStep").getInt(null));
+            }
+        }
+    }
+
+    /**
+     * Crash each of the given nodes in turn before every one of its storage writes, until a
+     * run ends with fewer writes, and check each run.
+     */
+    private void crashEachWrite(int... crashAddrs) throws Exception {
+        for (int crashAddr : crashAddrs) {
+            int crashWrite = 1;
+            while (run(crashAddr, crashWrite)) {
+                crashWrite++;
+            }
+            assertTrue("node " + crashAddr + " never crashed", crashWrite > 1);
+        }
+    }
+
+    /**
+     * @return Whether the node crashed
+     */
+    @SuppressWarnings("unchecked")
+    private boolean run(int crashAddr, int crashWrite) throws Exception {
+        String name = "node " + crashAddr + " crashed at write " + crashWrite + ": ";
+        tester.getMethod("reset").invoke(null);
+        tester.getField("CRASH_ADDR").setInt(null, crashAddr);
+        tester.getField("CRASH_WRITE").setInt(null, crashWrite);
+
+        // the last time steps keep the simulation going until a crashed node
+        // is restarted, even if nothing else is waiting
+        String[] commands = { "start 0", "start 1", "time", "0 begin", "time",
+                "time" };
+        assertTrue(name + "did not finish", sims.run(tester, commands, MAX_STEPS));
+
+        List<String> errors = (List<String>) tester.getField("errors").get(null);
+        assertEquals(name + errors, 0, errors.size());
+        int numRequests = tester.getField("NUM_REQUESTS").getInt(null);
+        int requestsSent = tester.getField("requestsSent").getInt(null);
+        assertEquals(name + "not all requests sent", numRequests, requestsSent);
+        assertEquals(name + "not all requests answered", numRequests - 1,
+                tester.getField("lastAnswered").getInt(null));
+        return tester.getField("crashed").getBoolean(null);
+    }
+
+    private void setLayer(String field, Object value) throws Exception {
+        Field f = layer.getField(field);
+        if (value instanceof Boolean) {
+            f.setBoolean(null, (Boolean) value);
+        } else {
+            f.setInt(null, (Integer) value);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package edu.washington.cs.cse490h.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+
+import edu.washington.cs.cse490h.lib.Console;
+import edu.washington.cs.cse490h.lib.Simulator;
+import edu.washington.cs.cse490h.lib.Utility;
+
+/**
+ * Runs command files in an embedded simulator, with node storage in a
+ * temporary directory and the nodes' output discarded.
+ */
+class Simulations {
+    private final File root;
+    private final PrintStream out;
+
+    Simulations(String name) throws IOException {
+        root = File.createTempFile(name, "");
+        root.delete();
+        root.mkdirs();
+        Utility.setStorageRoot(storage().getPath());
+        Console.setLevel(Console.QUIET);
+
+        // the simulator prints every node's output
+        out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+    }
+
+    /**
+     * @return The directory that holds the storage of every node
+     */
+    File storage() {
+        return new File(root, "storage");
+    }
+
+    /**
+     * Run a command file from the start, with empty storage.
+     *
+     * @param nodeImpl
+     *            The node class
+     * @param commands
+     *            The commands, one per line
+     * @param maxSteps
+     *            How many time steps to run at most
+     * @return Whether the simulation finished within maxSteps
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    boolean run(Class<?> nodeImpl, String[] commands, long maxSteps)
+            throws Exception {
+        delete(storage());
+        File file = new File(root, "commands");
+        PrintStream w = new PrintStream(file);
+        for (String c : commands) {
+            w.println(c);
+        }
+        w.close();
+
+        // the constructors take a Manager.FailureLvl, which is only visible
+        // to the lib package
+        Class lvl = Class.forName("edu.washington.cs.cse490h.lib.Manager$FailureLvl");
+        Constructor<Simulator> c = Simulator.class.getConstructor(Class.class,
+                lvl, Long.class, String.class, String.class, String.class);
+        Simulator sim = c.newInstance(nodeImpl, Enum.valueOf(lvl, "NOTHING"),
+                null, "", "", file.getPath());
+        return sim.runEmbedded(maxSteps);
+    }
+
+    /**
+     * Put the output back and delete the storage.
+     */
+    void close() {
+        System.setOut(out);
+        delete(root);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
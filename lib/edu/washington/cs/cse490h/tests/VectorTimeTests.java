@@ -0,0 +1,70 @@
+package edu.washington.cs.cse490h.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.lib.VectorTime;
+
+public class VectorTimeTests {
+    /**
+     * A blank vector prints as all zeros, and steps show up at their index.
+     */
+    @Test
+    public void toStringTest() {
+        VectorTime t = new VectorTime(4);
+        assertEquals("0,0,0,0", t.toString());
+
+        t.step(2);
+        t.step(2);
+        t.step(0);
+        assertEquals("1,0,2,0", t.toString());
+        assertEquals(2, t.get(2));
+        assertEquals(0, t.get(3));
+    }
+
+    /**
+     * Stepping an address past the end of the vector grows it, so addresses
+     * above 255 can be tracked.
+     */
+    @Test
+    public void growTest() {
+        VectorTime t = new VectorTime(255);
+        t.step(1000);
+        assertEquals(1001, t.length());
+        assertEquals(1, t.get(1000));
+
+        VectorTime u = new VectorTime(255);
+        u.updateTo(t);
+        assertEquals(1001, u.length());
+        assertEquals(1, u.get(1000));
+    }
+
+    /**
+     * updateTo takes the larger entry from either vector, and lessThan
+     * orders vectors that differ in which entries are set.
+     */
+    @Test
+    public void updateToAndLessThanTest() {
+        VectorTime a = new VectorTime(8);
+        VectorTime b = new VectorTime(8);
+        assertTrue(a.isOneTime());
+
+        a.step(1);
+        b.step(1);
+        b.step(5);
+        assertTrue(a.lessThan(b));
+        assertFalse(b.lessThan(a));
+
+        a.step(3);
+        assertFalse(a.lessThan(b));
+        assertFalse(b.lessThan(a));
+
+        a.updateTo(b);
+        assertEquals("0,1,0,1,0,1,0,0", a.toString());
+        assertFalse(a.isOneTime());
+        assertTrue(b.lessThan(a));
+    }
+}
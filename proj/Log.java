@@ -1,23 +1,36 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This is a simple debug message class that implements
+ * filtering based on log level.  It's modeled after android.util.Log.
+ * <p>
+ * You choose a level at which to produce a message by calling, say,
+ * Log.d("some tag", "my message").  You can set the class to filter
+ * all messages below a client-specified level, either for every tag or
+ * for one tag at a time.
+ * <p>
+ * Messages can be given as a format string and its arguments, e.g.
+ * Log.d(TAG, "From node %d, received %s", from, msg).  The message is only
+ * formatted, and the arguments' toString() only called, if the level is
+ * enabled for the tag.
+ * <p>
+ * Logging can be turned off for the whole run with -Dlog.off=true.  The
+ * check is a static final, so the JIT drops the calls altogether.  With
+ * -Dlog.async=true (or setAsync(true)) messages are handed to a bounded
+ * ring buffer and written by a background thread instead of by the caller.
+ *
+ * @author zahorjan
+ *
+ */
 public class Log {
-	static private int mLevel = 2;
-	static private boolean mShowLog = true;
-	
-	/**
-	 * This is a simple debug message class that implements
-	 * filtering based on log level.  It's modeled after android.util.Log.
-	 * <p>
-	 * You choose a level at which to produce a message by calling, say,
-	 * Log.d("some tag", "my message").  You can set the class to filter
-	 * all messages below a client-specified level.
-	 * 
-	 * @author zahorjan
-	 *
-	 */
 	public static enum DebugLevel {
-		VERBOSE(2, "VERBOSE"), 
-		DEBUG(3, "DEBUG"), 
-		INFO(4, "INFO"), 
-		WARN(5, "WARN"), 
+		VERBOSE(2, "VERBOSE"),
+		DEBUG(3, "DEBUG"),
+		INFO(4, "INFO"),
+		WARN(5, "WARN"),
 		ERROR(6, "ERROR"),
 		ASSERT(7, "ASSERT");
 		private final int mInt;
@@ -25,36 +38,264 @@ public class Log {
 		private DebugLevel(int level, String s) { mInt = level; mString = s;}
 		public int toInt() { return mInt; }
 		@Override
-		public String toString() { return mString; }  
+		public String toString() { return mString; }
 	};
-	
+
+	static private final boolean LOG_OFF = Boolean.getBoolean("log.off");
+	static private final int RING_SIZE = 8192;
+
+	static private volatile int mLevel = DebugLevel.INFO.toInt();
+	static private volatile boolean mShowLog = true;
+	static private final ConcurrentHashMap<String, Integer> mTagLevels = new ConcurrentHashMap<String, Integer>();
+	// the lowest of mLevel and the tag levels; anything below it is dropped
+	// without looking at the tag
+	static private volatile int mMinLevel = mLevel;
+
+	static private volatile AsyncAppender mAppender = null;
+
+	static {
+		// Simulator.stop() ends with System.exit; write out whatever the
+		// appender still has buffered
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				setAsync(false);
+			}
+		});
+		if (Boolean.getBoolean("log.async")) {
+			setAsync(true);
+		}
+	}
+
+	/**
+	 * Returns whether a message at the given level and tag would be shown.
+	 * Use it to guard work that is only needed for logging.
+	 */
+	static public boolean isLoggable(String tag, DebugLevel level) {
+		if (LOG_OFF) {
+			return false;
+		}
+		if (level == DebugLevel.ASSERT) {
+			return true;
+		}
+		int l = level.toInt();
+		if (!mShowLog || l < mMinLevel) {
+			return false;
+		}
+		Integer tagLevel = mTagLevels.get(tag);
+		return l >= (tagLevel == null ? mLevel : tagLevel);
+	}
+
 	// Note that this implementation always returns 0, unlike the android version
 	// (which returns the number of characters printed) -- Java printf doesn't
 	// provide any useful information about number of characters in formatted string.
 	static private int _show(DebugLevel level, String tag, String msg) {
-		if (  (mShowLog && level.toInt() >= mLevel) || level==DebugLevel.ASSERT) {
-			System.out.printf("%7s  %s  %s\n", level, tag, msg);			
+		if (isLoggable(tag, level)) {
+			_write(level, tag, msg);
 		}
 		return 0;
 	}
-	
+
+	static private int _show(DebugLevel level, String tag, String format, Object... args) {
+		if (isLoggable(tag, level)) {
+			// format on the caller's thread: the arguments are live node
+			// state and may change once we return
+			_write(level, tag, String.format(format, args));
+		}
+		return 0;
+	}
+
+	static private void _write(DebugLevel level, String tag, String msg) {
+		String line = String.format("%7s  %s  %s\n", level, tag, msg);
+		AsyncAppender appender = mAppender;
+		if (appender == null || !appender.offer(line)) {
+			System.out.print(line);
+		}
+	}
+
 	static public int setLevel(int level) {
 		int old = mLevel;
 		mLevel = level;
+		updateMinLevel();
 		return old;
 	}
-	
+
+	/**
+	 * Sets the level for a single tag, overriding the global level.
+	 *
+	 * @return the tag's previous level, or -1 if it used the global level
+	 */
+	static public int setLevel(String tag, int level) {
+		Integer old = mTagLevels.put(tag, level);
+		updateMinLevel();
+		return old == null ? -1 : old;
+	}
+
+	/**
+	 * Makes a tag follow the global level again.
+	 */
+	static public void clearLevel(String tag) {
+		mTagLevels.remove(tag);
+		updateMinLevel();
+	}
+
+	static private synchronized void updateMinLevel() {
+		int min = mLevel;
+		for (int l : mTagLevels.values()) {
+			min = Math.min(min, l);
+		}
+		mMinLevel = min;
+	}
+
 	static public boolean setShowLog(boolean b) {
 		boolean old = mShowLog;
 		mShowLog = b;
 		return old;
 	}
-	
+
+	/**
+	 * Turns the background appender on or off.  Turning it off writes out
+	 * whatever is still buffered.
+	 */
+	static public synchronized void setAsync(boolean async) {
+		if (async && mAppender == null) {
+			mAppender = new AsyncAppender(RING_SIZE);
+			mAppender.start();
+		} else if (!async && mAppender != null) {
+			AsyncAppender appender = mAppender;
+			mAppender = null;
+			appender.close();
+		}
+	}
+
+	/**
+	 * Waits until everything handed to the background appender is written.
+	 */
+	static public void flush() {
+		AsyncAppender appender = mAppender;
+		if (appender != null) {
+			appender.flush();
+		}
+	}
+
 	static public int v(String tag, String msg) { return _show(DebugLevel.VERBOSE, tag, msg); }
 	static public int d(String tag, String msg) { return _show(DebugLevel.DEBUG, tag, msg); }
 	static public int i(String tag, String msg) { return _show(DebugLevel.INFO, tag, msg); }
 	static public int w(String tag, String msg) { return _show(DebugLevel.WARN, tag, msg); }
 	static public int e(String tag, String msg) { return _show(DebugLevel.ERROR, tag, msg); }
 	static public int wtf(String tag, String msg) { return _show(DebugLevel.ASSERT, tag, msg); }
-}
 
+	static public int v(String tag, String format, Object... args) { return _show(DebugLevel.VERBOSE, tag, format, args); }
+	static public int d(String tag, String format, Object... args) { return _show(DebugLevel.DEBUG, tag, format, args); }
+	static public int i(String tag, String format, Object... args) { return _show(DebugLevel.INFO, tag, format, args); }
+	static public int w(String tag, String format, Object... args) { return _show(DebugLevel.WARN, tag, format, args); }
+	static public int e(String tag, String format, Object... args) { return _show(DebugLevel.ERROR, tag, format, args); }
+	static public int wtf(String tag, String format, Object... args) { return _show(DebugLevel.ASSERT, tag, format, args); }
+
+	/**
+	 * Writes log lines from a bounded ring buffer on a daemon thread, so the
+	 * caller does not wait on System.out.  If the ring is full the caller
+	 * waits for room, so that lines are never dropped or written out of
+	 * order.
+	 */
+	static private class AsyncAppender extends Thread {
+		private final ArrayBlockingQueue<String> ring;
+		private volatile boolean closed = false;
+		private long written = 0;
+		private long offered = 0;
+
+		AsyncAppender(int size) {
+			super("Log appender");
+			setDaemon(true);
+			ring = new ArrayBlockingQueue<String>(size);
+		}
+
+		/**
+		 * @return false if the appender is closed, and the caller has to
+		 *         write the line itself
+		 */
+		synchronized boolean offer(String line) {
+			boolean interrupted = false;
+			try {
+				while (!closed) {
+					if (ring.offer(line)) {
+						offered++;
+						return true;
+					}
+					// full: wait for the writer to take a batch
+					try {
+						wait(100);
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				return false;
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			ArrayList<String> batch = new ArrayList<String>();
+			while (!closed) {
+				try {
+					String first = ring.take();
+					batch.add(first);
+				} catch (InterruptedException e) {
+					continue;
+				}
+				ring.drainTo(batch);
+				write(batch);
+			}
+		}
+
+		private void write(ArrayList<String> batch) {
+			if (batch.isEmpty()) {
+				return;
+			}
+			PrintStream out = System.out;
+			StringBuilder sb = new StringBuilder();
+			for (String line : batch) {
+				sb.append(line);
+			}
+			out.print(sb);
+			out.flush();
+			synchronized (this) {
+				written += batch.size();
+				notifyAll();
+			}
+			batch.clear();
+		}
+
+		synchronized void flush() {
+			while (written < offered && isAlive()) {
+				try {
+					wait(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		void close() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+			}
+			interrupt();
+			try {
+				join();
+			} catch (InterruptedException e) {
+				// fall through and write out what is left
+			}
+			ArrayList<String> rest = new ArrayList<String>();
+			ring.drainTo(rest);
+			write(rest);
+		}
+	}
+}
@@ -1,3 +1,4 @@
+import edu.washington.cs.cse490h.lib.Console;
 import edu.washington.cs.cse490h.lib.ServerList;
 import edu.washington.cs.cse490h.lib.Utility;
 
@@ -96,7 +97,7 @@ public abstract class MCCNode extends PaxosNode {
       throw new IllegalStateException("Metafile format corrupted");
     }
 
-    Log.i(TAG, String.format("read in METAFILE with contents %s", fileVersions));
+    Log.i(TAG, "read in METAFILE with contents %s", fileVersions);
     
     
     //load user security credentials file
@@ -186,10 +187,10 @@ public abstract class MCCNode extends PaxosNode {
    * @return true if successful
    */
   private boolean commitTransaction(NFSTransaction transaction) {
-    Log.i(TAG, String.format("Commit attempt for %s", transaction));
+    Log.i(TAG, "Commit attempt for %s", transaction);
     // break early if transaction has already been committed
     if(committedTids.contains(transaction.tid)) {
-      Log.i(TAG, String.format("Transaction %d already committed", transaction.tid));
+      Log.i(TAG, "Transaction %d already committed", transaction.tid);
       return true;
     }
     boolean success = false;
@@ -198,7 +199,9 @@ public abstract class MCCNode extends PaxosNode {
       for(NFSTransaction.NFSOperation op : transaction.ops) {
         String filename = op.filename;
         String oldVersionedFile = getVersionedFilename(filename);
-        System.out.println("oldVersionedFile: " + oldVersionedFile);
+        if (Console.isEnabled(Console.TRACE)) {
+          Console.println(Console.TRACE, "oldVersionedFile: " + oldVersionedFile);
+        }
         String newVersionedFile;
         int version;
         Pair<Integer, Boolean> versionAndDeleted;
@@ -269,12 +272,16 @@ public abstract class MCCNode extends PaxosNode {
               // make sure we don't overwrite the blank 0-version file
           		version = Math.max(versionAndDeleted.a, 0) + 1;
             }
-            System.out.println("Version: " + version);
+            if (Console.isEnabled(Console.TRACE)) {
+              Console.println(Console.TRACE, "Version: " + version);
+            }
             fileVersions.put(filename, new Pair<Integer,Boolean>(version, false)); // If we're appending, assume it will exist.
             newVersionedFile = getVersionedFilename(filename);
-            System.out.println("oldVersionedFile: " + oldVersionedFile);
-            System.out.println("newVersionedFile: " + newVersionedFile);
-            System.out.println("Op: " + op);
+            if (Console.isEnabled(Console.TRACE)) {
+              Console.println(Console.TRACE, "oldVersionedFile: " + oldVersionedFile);
+              Console.println(Console.TRACE, "newVersionedFile: " + newVersionedFile);
+              Console.println(Console.TRACE, "Op: " + op);
+            }
             if (version > 0) { // only do this for appends to existing files
               runningSuccess = runningSuccess && nfsService.copy(oldVersionedFile, newVersionedFile);
             }
@@ -313,7 +320,7 @@ public abstract class MCCNode extends PaxosNode {
       }
 
       if(runningSuccess==false){
-        System.out.println("Commit failed; check what happened.");
+        Console.println(Console.INFO, "Commit failed; check what happened.");
       }
       else{
         writeMetafile();  // atomically commit this transaction
@@ -329,8 +336,8 @@ public abstract class MCCNode extends PaxosNode {
     if(success) {
       committedTids.add(transaction.tid);
     }
-    Log.i(TAG, String.format("Commit %d actually committed? %s",
-          transaction.tid, success));
+    Log.i(TAG, "Commit %d actually committed? %s",
+          transaction.tid, success);
     return success;
 
   }
@@ -357,9 +364,9 @@ public abstract class MCCNode extends PaxosNode {
    */
   private List<MCCFileData> checkVersions(List<MCCFileData> filedataCheck,
                                           NFSTransaction transaction) {
-    Log.i(TAG, String.format("Check versions for transaction %d", transaction.tid));
-    Log.i(TAG, String.format("Versions submitted? %s", filedataCheck));
-    Log.i(TAG, String.format("Current versions? %s", fileVersions));
+    Log.i(TAG, "Check versions for transaction %d", transaction.tid);
+    Log.i(TAG, "Versions submitted? %s", filedataCheck);
+    Log.i(TAG, "Current versions? %s", fileVersions);
     Set<MCCFileData> updates = new HashSet<MCCFileData>();
     
     // map of checked file versions
@@ -496,7 +503,7 @@ public abstract class MCCNode extends PaxosNode {
    * file contents.
    */
   private void updateVersions(List<MCCFileData> filedataUpdate) {
-    Log.i(TAG, String.format("Updating versions to %s", filedataUpdate));
+    Log.i(TAG, "Updating versions to %s", filedataUpdate);
     try {
       for(MCCFileData fileData : filedataUpdate) {
         if(fileData.versionNum == -1) {
@@ -561,8 +568,8 @@ public abstract class MCCNode extends PaxosNode {
    */
   public void submitTransaction(NFSTransaction transaction) {
     int destAddr = addr == 0 ? 1 : 2; // for DEMO PURPOSES // ServerList.getAServerAddr();
-    Log.i(TAG, String.format("Commit submission to %d for %s",
-                            destAddr, transaction));
+    Log.i(TAG, "Commit submission to %d for %s",
+                            destAddr, transaction);
     List<MCCFileData> filedataCheck = getCurrentVersions();
     MCCMsg msg = new MCCMsg(filedataCheck, transaction);
 
@@ -585,7 +592,7 @@ public abstract class MCCNode extends PaxosNode {
   @Override
   public void onCommitRequest(Integer from, RPCMsg message) {
     MCCMsg msg = (MCCMsg)message;
-    Log.i(TAG, String.format("From node %d, received request %s", from, msg));
+    Log.i(TAG, "From node %d, received request %s", from, msg);
     onMCCRequest(from, msg);
   }
 
@@ -594,8 +601,8 @@ public abstract class MCCNode extends PaxosNode {
     MCCMsg msg = (MCCMsg)message;
     Log.i(TAG, "\n======================================== COMMIT RESPONSE"+
                "=========================================\n");
-    Log.i(TAG, String.format("From node %d, for %s", from, msg.transaction));
-    Log.v(TAG, String.format("Response of %s", msg));
+    Log.i(TAG, "From node %d, for %s", from, msg.transaction);
+    Log.v(TAG, "Response of %s", msg);
 
     boolean success = msg.success;
     Pair<Boolean,byte[]> securityResponse = 
@@ -638,9 +645,9 @@ public abstract class MCCNode extends PaxosNode {
   public void onMCCRequest(Integer from, MCCMsg msg) {
     Log.i(TAG, "\n======================================== COMMIT REQUEST"+
                "=========================================\n");
-    Log.i(TAG, String.format("MCC Request from %d for transaction %s", 
-                              from, msg.transaction));
-    Log.v(TAG, String.format("Request to commit %s", msg));
+    Log.i(TAG, "MCC Request from %d for transaction %s", 
+                              from, msg.transaction);
+    Log.v(TAG, "Request to commit %s", msg);
 
     List<MCCFileData> filedataCheck = 
                       new ArrayList<MCCFileData>(Arrays.asList(msg.filearray));
@@ -656,8 +663,8 @@ public abstract class MCCNode extends PaxosNode {
       // verify that the filedataCheck is up-to-version
       List<MCCFileData> filedataUpdate = checkVersions(filedataCheck, transaction);
       Pair<Boolean,byte[]> securityResponse = checkSecurity(transaction, from, filedataUpdate.isEmpty());
-      Log.v(TAG, String.format("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAH %s",
-      securityResponse));
+      Log.v(TAG, "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAH %s",
+      securityResponse);
 
       if(filedataUpdate.isEmpty() && securityResponse.a) {
         // UP-TO-VERSION!  COMMIT THAT SUCKA
@@ -704,7 +711,7 @@ public abstract class MCCNode extends PaxosNode {
 			//now we hash the password|salt and make sure it matches our store
 			byte[] computedHash = Utility.hashBytes(loginPair[1],userCredential.a);
 			if(Arrays.equals(computedHash,userCredential.b)){
-				System.out.println("Server says:_________________login credentials good.");
+				Console.println(Console.TRACE, "Server says:_________________login credentials good.");
 				
 				//now we generate a new token
 				String clearToken = Integer.toString(from) + CREDENTIAL_DELIMITER + loginPair[0];
@@ -722,7 +729,7 @@ public abstract class MCCNode extends PaxosNode {
 				return new Pair<Boolean,byte[]>(true,newToken);
 			}
 			else{
-				System.out.println("Server says:_________________login credentials bad.");
+				Console.println(Console.TRACE, "Server says:_________________login credentials bad.");
 				return new Pair<Boolean,byte[]>(false,null);
 			}
 		}
@@ -743,7 +750,7 @@ public abstract class MCCNode extends PaxosNode {
 					
 					//the MAC did not match the MAC in the token
 					if(!Arrays.equals(computedMAC, includedMAC)){
-						System.out.println("Server says:_________________bad MAC on authentication token.");
+						Console.println(Console.TRACE, "Server says:_________________bad MAC on authentication token.");
 						return new Pair<Boolean,byte[]>(false,null);
 					}
 					
@@ -758,7 +765,7 @@ public abstract class MCCNode extends PaxosNode {
 					
 					//bad token contents / not formatted or corrupted
 					if(decryptedToken==null || decryptedToken.length!=2){
-						System.out.println("Server says:_________________credential misformatted.");
+						Console.println(Console.TRACE, "Server says:_________________credential misformatted.");
 						return new Pair<Boolean,byte[]>(false,null);
 					}
 					
@@ -768,12 +775,12 @@ public abstract class MCCNode extends PaxosNode {
 					
 					//from the wrong node; probably a break-in attempt with stolen token from some other node!
 					if(tokenAddress != from){
-						System.out.println("Server says:_________________credential from wrong node.");
+						Console.println(Console.TRACE, "Server says:_________________credential from wrong node.");
 						return new Pair<Boolean,byte[]>(false,null);
 					}
 					
 				} catch (RuntimeException e){
-					System.out.println("Server says:_________________bad authentication token.");
+					Console.println(Console.TRACE, "Server says:_________________bad authentication token.");
 					return new Pair<Boolean,byte[]>(false,null);
 				}
 				
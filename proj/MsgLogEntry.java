@@ -1,9 +1,13 @@
 
-/* Store a msg sequence number, destination/source, as well as its contents */
+import java.util.HashSet;
+
+/* Store a msg sequence number, destination/source, as well as its contents, and which
+ * messages of a batch are done with */
 public class MsgLogEntry implements Comparable<MsgLogEntry> {
 	private final int seqNum;
 	private final byte[] msg;
 	private final int addr;
+	private final HashSet<Integer> done;
 	
 	/* Public constructor
 	 * msg - message contents
@@ -14,6 +18,7 @@ public class MsgLogEntry implements Comparable<MsgLogEntry> {
 		this.seqNum = seqNum;
 		this.msg = msg;
 		this.addr = addr;
+		this.done = new HashSet<Integer>();
 	}
 	
 	/* Accessors for private fields
@@ -29,6 +34,11 @@ public class MsgLogEntry implements Comparable<MsgLogEntry> {
 	public int addr(){
 		return this.addr;
 	}
+	
+	/* The ids of the messages in a batch that were marked done */
+	public HashSet<Integer> done(){
+		return this.done;
+	}
 
 	/* Gives a total ordering of logs by sequence number.
 	 * Precondition: mle != NULL
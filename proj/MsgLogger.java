@@ -1,46 +1,162 @@
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import edu.washington.cs.cse490h.lib.Node;
+import edu.washington.cs.cse490h.lib.PersistentStorageInputStream;
+import edu.washington.cs.cse490h.lib.PersistentStorageOutputStream;
 import edu.washington.cs.cse490h.lib.Utility;
 
 /* This class is used to log messages in a persistent way so we can recover them upon node failures.
+ *
+ * The logs are kept in a write-ahead log: numbered segment files that are only ever appended to.
+ * Logging a message appends a record holding it, and deleting a log appends a tombstone for it.
+ * When one message of a logged batch is done with, a mark holding its id is appended for the log.
+ * The last sequence number of each channel is kept in the same log, as a record appended each
+ * time it moves. Records are buffered and go to disk together in one write and fsync when sync()
+ * is called, which the RIO layer does once at the end of each timestep. Records are written in
+ * the order they were added, so whatever a crash leaves of them is a prefix.
+ * The live logs and sequence numbers are also kept in memory, so reading them never touches the
+ * disk.
+ *
+ * Each record is:
+ * 		op = 1 byte, APPEND, TOMBSTONE, DONE or SEQ
+ * 		sendRecv = 1 byte
+ * 		addr = 4 bytes
+ * 		seqNum = 4 bytes, the channel's last sequence number for SEQ
+ * 		length = 4 bytes, 0 for a tombstone or sequence number and 4 for a mark
+ * 		msg = length bytes, the id for a mark
+ * 		CRC32 of all of the above = 4 bytes
+ * On restart the segments are read in order, each up to its first record that is cut short or
+ * fails its checksum, and new records go to a new segment.
  */
 
 public class MsgLogger {
 	/* Tells us if the current log is for a message just received, or about to be sent. */
 	public static final int SEND = 0;
 	public static final int RECV = 1;
-	
-	/* These are used to mark files so we know they are logs. */
+
+	/* Once the active segment is this big, a new one is started */
+	public static int SEGMENT_BYTES = 64 * 1024;
+	/* How many full segments may hold live logs before the oldest has them moved forward */
+	public static int MAX_SEGMENTS = 4;
+
+	/* These mark the one-file-per-message logs of earlier versions, which are read in once. */
 	private static final String delim_send = "@";
 	private static final String delim_recv = "%";
-	
+	/* This marks the sequence number files of earlier versions, named <delim><addr><delim><seq>.log
+	 * for in channels and with the delim doubled at the front for out channels. They are read in
+	 * once too.
+	 */
+	private static final String delim_seq = "#";
+
+	/* Segment files are named <segment_prefix><number> */
+	private static final String segment_prefix = "$msglog.";
+
+	private static final byte APPEND = 1;
+	private static final byte TOMBSTONE = 2;
+	private static final byte DONE = 3;
+	private static final byte SEQ = 4;
+	/* everything in a record but the msg */
+	private static final int RECORD_OVERHEAD = 18;
+
+	/* A live log, the segment its record is in, and the segment of each of its marks by id */
+	private static class LiveLog {
+		final MsgLogEntry entry;
+		int segment;
+		final HashMap<Integer, Integer> marks;
+
+		LiveLog(MsgLogEntry entry, int segment){
+			this.entry = entry;
+			this.segment = segment;
+			this.marks = new HashMap<Integer, Integer>();
+		}
+	}
+
+	/* A channel's last sequence number, and the segment its record is in */
+	private static class LiveSeq {
+		final int seqNum;
+		final int segment;
+
+		LiveSeq(int seqNum, int segment){
+			this.seqNum = seqNum;
+			this.segment = segment;
+		}
+	}
+
 	/* Used to make a file system */
 	private Node node;
-	
+
 	/* The file system */
 	private NFSService nfs;
-	
+
+	/* The live logs, keyed by address and sequence number */
+	private HashMap<Long, LiveLog> sendLogs;
+	private HashMap<Long, LiveLog> recvLogs;
+
+	/* The last sequence number of each channel, keyed by address */
+	private HashMap<Integer, LiveSeq> sendSeqs;
+	private HashMap<Integer, LiveSeq> recvSeqs;
+
+	/* The number of live logs in each segment on disk, the active one included */
+	private TreeMap<Integer, Integer> liveCounts;
+	private int activeSegment;
+	private long activeBytes;
+
+	/* Records not yet written */
+	private ByteArrayOutputStream buffer;
+
 	public MsgLogger(Node node){
 		this.node = node;
 		nfs = new NFSService(node);
+		sendLogs = new HashMap<Long, LiveLog>();
+		recvLogs = new HashMap<Long, LiveLog>();
+		sendSeqs = new HashMap<Integer, LiveSeq>();
+		recvSeqs = new HashMap<Integer, LiveSeq>();
+		liveCounts = new TreeMap<Integer, Integer>();
+		buffer = new ByteArrayOutputStream();
+		recover();
 	}
-	
+
 	/* switches on a send/recv to give us the correct delimeter */
 	private String getDelim(int sendRecv){
 		return (sendRecv == SEND)?delim_send:delim_recv;
 	}
-	
+
+	/* switches on a send/recv to give us the correct logs */
+	private HashMap<Long, LiveLog> getLiveLogs(int sendRecv){
+		return (sendRecv == SEND)?sendLogs:recvLogs;
+	}
+
+	/* switches on a send/recv to give us the correct sequence numbers */
+	private HashMap<Integer, LiveSeq> getLiveSeqs(int sendRecv){
+		return (sendRecv == SEND)?sendSeqs:recvSeqs;
+	}
+
+	private static long key(int addr, int seqNum){
+		return ((long) addr << 32) | (seqNum & 0xFFFFFFFFL);
+	}
+
+	private static String segmentName(int segment){
+		return segment_prefix + segment;
+	}
+
 	/* Since files have newlines and we need to have a single string, this handles
 	 * concatenating the whole file's contents into a single string.
 	 */
 	private String loadFile(String filename){
 		String contents = "";
 		try {
-			
+
 			List<String> strings = nfs.read(filename);
 			if(strings != null) {
 				for(String s: strings){
@@ -51,126 +167,381 @@ public class MsgLogger {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		
+
 		return contents.substring(0, contents.length()-1);
 	}
-	
-	/* Constructs a file name from the information passed in. Output will have
-	 * the form:
-	 * 		<delim><addr><delim><seqNum>.log
-	 * The delimeter switched on the send/recv variable.
-	 */
-	private String getFilename(int seqNum, int addr, int sendRecv){
-		String delim = getDelim(sendRecv);
-		String filename = delim;
-		filename = filename.concat(Integer.toString(addr));
-		filename = filename.concat(delim);
-		filename = filename.concat(Integer.toString(seqNum));
-		filename = filename.concat(".log");
-		
-		return filename;
-	}
-	
-	/* Logs a message.  If we already have a log by this name, we return and do nothing.
-	 * Otherwise we create the log and write msg to it.
+
+	/* Logs a message.  If we already have a log for it, we return and do nothing.
+	 * Otherwise we add the log; it is on disk after the next sync.
 	 * msg - the message
 	 * addr - the node address to which the message will be sent, or has been received
 	 * seqNum - same as message number
 	 * sendRecv - a member of {SEND,RECV}
 	 */
 	public boolean logMsg(int addr, byte[] msg, int seqNum, int sendRecv) {
-		String filename = getFilename(seqNum, addr, sendRecv);
+		HashMap<Long, LiveLog> logs = getLiveLogs(sendRecv);
+		long k = key(addr, seqNum);
+		if(logs.containsKey(k)) return true;
+
+		logs.put(k, new LiveLog(new MsgLogEntry(msg, seqNum, addr), activeSegment));
+		addLive(activeSegment, 1);
+		appendRecord(APPEND, sendRecv, addr, seqNum, msg);
+		return false;
+	}
 
-		boolean alreadyLogged = false;
-		try {
-      // can we make this atomic instead?  Is that possible?
-      alreadyLogged = nfs.exists(filename);
-      if(!alreadyLogged){			
-		String s = Utility.bytesToHexString(msg);			
-        nfs.write(filename,s);
-      }
-    } catch(IOException e) {
-      e.printStackTrace();
-      throw new RuntimeException("Error with NFS file system");
-    }
-		return alreadyLogged;		
-	}
-	
 	/* Removes a log, if it exists.
 	 * addr - the node address to which the message will be sent, or has been received
 	 * seqNum - same as message number
 	 * sendRecv - a member of {SEND,RECV}
 	 */
 	public void deleteLog(int addr, int seqNum, int sendRecv){
-		String filename = getFilename(seqNum, addr, sendRecv);
-    try {
-    	if (nfs == null) {
-    		System.out.println("MSG LOGGER NFS NULL");
-    	}
-      nfs.delete(filename);
-    } catch(IOException e) {
-      e.printStackTrace();
-      throw new RuntimeException("Error with NFS file system");
-    }
-	}
-	
-	
-	
-	
-	/* Get a list of all logs in the directory, either send or recv, 
+		LiveLog log = getLiveLogs(sendRecv).remove(key(addr, seqNum));
+		if(log == null) return;
+
+		dropLive(log);
+		appendRecord(TOMBSTONE, sendRecv, addr, seqNum, null);
+	}
+
+	/* Marks one message of a logged batch as done with, if the log exists. Like a deletion, it is
+	 * on disk after the next sync. The marks are in MsgLogEntry.done() after a restart.
+	 * addr - the node address to which the batch will be sent, or from which it was received
+	 * seqNum - same as message number
+	 * id - the id of the message in the batch
+	 * sendRecv - a member of {SEND,RECV}
+	 */
+	public void markDone(int addr, int seqNum, int id, int sendRecv){
+		LiveLog log = getLiveLogs(sendRecv).get(key(addr, seqNum));
+		if(log == null || log.marks.containsKey(id)) return;
+
+		log.marks.put(id, activeSegment);
+		log.entry.done().add(id);
+		addLive(activeSegment, 1);
+		appendRecord(DONE, sendRecv, addr, seqNum, ByteBuffer.allocate(4).putInt(id).array());
+	}
+
+	/* Removes the logs for a batch of messages on one channel, e.g. all those
+	 * covered by one cumulative ACK.
+	 * addr - the node address to which the messages were sent, or from which they were received
+	 * seqNums - the message numbers
+	 * sendRecv - a member of {SEND,RECV}
+	 */
+	public void deleteLogs(int addr, List<Integer> seqNums, int sendRecv){
+		for(int seqNum: seqNums){
+			deleteLog(addr, seqNum, sendRecv);
+		}
+	}
+
+	/* Records the last sequence number of a channel; it is on disk after the next sync.
+	 * addr - the node address at the other end of the channel
+	 * seqNum - the last sequence number sent, or delivered
+	 * sendRecv - a member of {SEND,RECV}
+	 */
+	public void logSeq(int addr, int seqNum, int sendRecv){
+		HashMap<Integer, LiveSeq> seqs = getLiveSeqs(sendRecv);
+		LiveSeq old = seqs.get(addr);
+		if(old != null && old.seqNum == seqNum) return;
+
+		if(old != null) addLive(old.segment, -1);
+		seqs.put(addr, new LiveSeq(seqNum, activeSegment));
+		addLive(activeSegment, 1);
+		appendRecord(SEQ, sendRecv, addr, seqNum, null);
+	}
+
+	/* Gets the last sequence numbers of all in and out channels. */
+	public SeqLogEntries getSeqLog(){
+		List<SeqLogEntries.AddrSeqPair> seq_sends = new LinkedList<SeqLogEntries.AddrSeqPair>();
+		List<SeqLogEntries.AddrSeqPair> seq_recvs = new LinkedList<SeqLogEntries.AddrSeqPair>();
+		for(Map.Entry<Integer, LiveSeq> e: sendSeqs.entrySet()){
+			seq_sends.add(new SeqLogEntries.AddrSeqPair(e.getKey(), e.getValue().seqNum));
+		}
+		for(Map.Entry<Integer, LiveSeq> e: recvSeqs.entrySet()){
+			seq_recvs.add(new SeqLogEntries.AddrSeqPair(e.getKey(), e.getValue().seqNum));
+		}
+		return new SeqLogEntries(seq_sends, seq_recvs);
+	}
+
+	/* Writes everything logged since the last sync to disk in one write and fsync, starts a new
+	 * segment if the active one is full, and drops the segments that are no longer needed.
+	 */
+	public void sync(){
+		write();
+		if(activeBytes >= SEGMENT_BYTES){
+			activeSegment++;
+			activeBytes = 0;
+			liveCounts.put(activeSegment, 0);
+		}
+		compact();
+	}
+
+	/* Get a list of all logs, either send or recv,
 	 * ordered by increasing seqNum.
 	 */
 	public PriorityQueue<MsgLogEntry> getLogs(int sendRecv){
 		PriorityQueue<MsgLogEntry> logs = new PriorityQueue<MsgLogEntry>();
-	    try {
-	      List<String> fileNames = nfs.getFileList();
-	      char delim = getDelim(sendRecv).charAt(0);
-	      
-	      
-	      // iterate all files in directory prefixed with delim_recv and load them as files
-	      for(String s : fileNames){
-	        if(s.charAt(0) == delim){
-	          String msg = loadFile(s);
-	          
-	          byte[] msgBytes = Utility.hexStringToByteArray(msg);
-	          
-	          
-	          int addr = Integer.parseInt(s.substring(1, s.indexOf(delim,1)));
-	          int seqNum = Integer.parseInt(s.substring(s.indexOf(delim,1)+1,s.length()-4));
-	          
-	          logs.add(new MsgLogEntry(msgBytes, seqNum, addr));
-	        }
-	      }
-	    } catch(IOException e) {
-	      e.printStackTrace();
-	      throw new RuntimeException("Error with NFS file system");
-	    }
+		for(LiveLog log: getLiveLogs(sendRecv).values()){
+			logs.add(log.entry);
+		}
 		return logs;
 	}
-	
-	/* Get a list of all logs in the directory for the given send/recv indicator and
+
+	/* Get a list of all logs for the given send/recv indicator and
 	 * given node address.
 	 */
 	public PriorityQueue<MsgLogEntry> getChannelLogs(int addr, int sendRecv){
 		PriorityQueue<MsgLogEntry> logs = new PriorityQueue<MsgLogEntry>();
-	    try {
-	      List<String> fileNames = nfs.getFileList();
-	      char delim = getDelim(sendRecv).charAt(0);
-	      
-	      // iterate all files in directory prefixed with delim_recv and load them as files
-	      for(String s : fileNames){
-	        if(s.charAt(0) == delim){
-	          String msg = loadFile(s);
-	          byte[] msgBytes = Utility.hexStringToByteArray(msg);
-	          int currentAddr = Integer.parseInt(s.substring(1, s.indexOf(delim,1)));
-	          int seqNum = Integer.parseInt(s.substring(s.indexOf(delim,1)+1,s.length()-4));
-	          if (currentAddr == addr) logs.add(new MsgLogEntry(msgBytes, seqNum, addr));
-	        }
-	      }
-	    } catch(IOException e) {
-	      e.printStackTrace();
-	      throw new RuntimeException("Error with NFS file system");
-	    }
+		for(LiveLog log: getLiveLogs(sendRecv).values()){
+			if(log.entry.addr() == addr) logs.add(log.entry);
+		}
 		return logs;
-	}	
+	}
+
+	private void addLive(int segment, int delta){
+		liveCounts.put(segment, liveCounts.get(segment) + delta);
+	}
+
+	/* Takes a log's record and marks out of the live counts */
+	private void dropLive(LiveLog log){
+		addLive(log.segment, -1);
+		for(int segment: log.marks.values()){
+			addLive(segment, -1);
+		}
+	}
+
+	/* Buffers a record until the next sync */
+	private void appendRecord(byte op, int sendRecv, int addr, int seqNum, byte[] msg){
+		int length = (msg == null) ? 0 : msg.length;
+		ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + length);
+		record.put(op).put((byte) sendRecv).putInt(addr).putInt(seqNum).putInt(length);
+		if(msg != null) record.put(msg);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		record.putInt((int) crc.getValue());
+		buffer.write(record.array(), 0, record.capacity());
+	}
+
+	/* Appends the buffered records to the active segment in one write, and fsyncs it */
+	private void write(){
+		if(buffer.size() == 0) return;
+		try {
+			PersistentStorageOutputStream out = node.getOutputStream(segmentName(activeSegment), true);
+			try {
+				out.write(buffer.toByteArray());
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error with NFS file system");
+		}
+		activeBytes += buffer.size();
+		buffer.reset();
+	}
+
+	/* Deletes the oldest full segments while they hold no live records. A tombstone, or a newer
+	 * sequence number, is always newer than the record it replaces, so the oldest segment can go
+	 * as soon as it is dead. Past MAX_SEGMENTS, the oldest has its live records appended again to
+	 * the active segment so it can go too.
+	 */
+	private void compact(){
+		while(liveCounts.firstKey() != activeSegment){
+			int oldest = liveCounts.firstKey();
+			if(liveCounts.get(oldest) > 0){
+				if(activeSegment - oldest <= MAX_SEGMENTS) return;
+				moveForward(oldest, SEND);
+				moveForward(oldest, RECV);
+				moveSeqsForward(oldest, SEND);
+				moveSeqsForward(oldest, RECV);
+				// the copies must be on disk before the segment is deleted
+				write();
+			}
+
+			try {
+				nfs.delete(segmentName(oldest));
+			} catch(IOException e) {
+				e.printStackTrace();
+				throw new RuntimeException("Error with NFS file system");
+			}
+			liveCounts.remove(oldest);
+		}
+	}
+
+	/* Appends again the logs with a record in the segment, each with all of its marks. A mark is
+	 * never older than its log's record, so a log with marks in the segment has its record there.
+	 */
+	private void moveForward(int segment, int sendRecv){
+		for(LiveLog log: getLiveLogs(sendRecv).values()){
+			if(log.segment != segment) continue;
+			dropLive(log);
+			appendRecord(APPEND, sendRecv, log.entry.addr(), log.entry.seqNum(), log.entry.msg());
+			log.segment = activeSegment;
+			addLive(activeSegment, 1);
+			for(Map.Entry<Integer, Integer> mark: log.marks.entrySet()){
+				appendRecord(DONE, sendRecv, log.entry.addr(), log.entry.seqNum(),
+						ByteBuffer.allocate(4).putInt(mark.getKey()).array());
+				mark.setValue(activeSegment);
+				addLive(activeSegment, 1);
+			}
+		}
+	}
+
+	/* Appends again the sequence numbers with a record in the segment */
+	private void moveSeqsForward(int segment, int sendRecv){
+		for(Map.Entry<Integer, LiveSeq> e: getLiveSeqs(sendRecv).entrySet()){
+			if(e.getValue().segment != segment) continue;
+			int seqNum = e.getValue().seqNum;
+			addLive(segment, -1);
+			appendRecord(SEQ, sendRecv, e.getKey(), seqNum, null);
+			e.setValue(new LiveSeq(seqNum, activeSegment));
+			addLive(activeSegment, 1);
+		}
+	}
+
+	/* Rebuilds the live logs and sequence numbers from the segments on disk, and takes in any
+	 * left by earlier versions.
+	 */
+	private void recover(){
+		TreeSet<Integer> segments = new TreeSet<Integer>();
+		List<String> legacy = new LinkedList<String>();
+		List<String> legacySeqs = new LinkedList<String>();
+		try {
+			for(String s : nfs.getFileList()){
+				if(s.startsWith(segment_prefix)){
+					segments.add(Integer.parseInt(s.substring(segment_prefix.length())));
+				}else if(s.startsWith(delim_send) || s.startsWith(delim_recv)){
+					legacy.add(s);
+				}else if(s.startsWith(delim_seq)){
+					legacySeqs.add(s);
+				}
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error with NFS file system");
+		}
+
+		for(int segment: segments){
+			liveCounts.put(segment, 0);
+			replay(segment, readSegment(segment));
+		}
+
+		// a crash may have cut the last segment short, so it is never appended to again
+		activeSegment = segments.isEmpty() ? 0 : segments.last() + 1;
+		liveCounts.put(activeSegment, 0);
+
+		if(!legacy.isEmpty()) importLegacyLogs(legacy);
+		if(!legacySeqs.isEmpty()) importLegacySeqs(legacySeqs);
+		compact();
+	}
+
+	private byte[] readSegment(int segment){
+		ByteArrayOutputStream contents = new ByteArrayOutputStream();
+		try {
+			PersistentStorageInputStream in = node.getInputStream(segmentName(segment));
+			try {
+				byte[] chunk = new byte[SEGMENT_BYTES];
+				int read;
+				while((read = in.read(chunk)) > 0){
+					contents.write(chunk, 0, read);
+				}
+			} finally {
+				in.close();
+			}
+		} catch(FileNotFoundException e) {
+			// deleted since it was listed
+		} catch(IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error with NFS file system");
+		}
+		return contents.toByteArray();
+	}
+
+	/* Applies the records of a segment in order, up to the first bad one */
+	private void replay(int segment, byte[] contents){
+		ByteBuffer buf = ByteBuffer.wrap(contents);
+		while(buf.remaining() >= RECORD_OVERHEAD){
+			int start = buf.position();
+			byte op = buf.get();
+			int sendRecv = buf.get();
+			int addr = buf.getInt();
+			int seqNum = buf.getInt();
+			int length = buf.getInt();
+			if((sendRecv != SEND && sendRecv != RECV) || length < 0 || length > buf.remaining() - 4) break;
+			if(op == DONE && length != 4) break;
+			if(op == SEQ && length != 0) break;
+
+			byte[] msg = new byte[length];
+			buf.get(msg);
+			CRC32 crc = new CRC32();
+			crc.update(contents, start, buf.position() - start);
+			if(buf.getInt() != (int) crc.getValue()) break;
+
+			HashMap<Long, LiveLog> logs = getLiveLogs(sendRecv);
+			LiveLog old;
+			if(op == APPEND){
+				// a log moved forward replaces itself, and its marks follow it
+				old = logs.put(key(addr, seqNum), new LiveLog(new MsgLogEntry(msg, seqNum, addr), segment));
+				addLive(segment, 1);
+			}else if(op == TOMBSTONE){
+				old = logs.remove(key(addr, seqNum));
+			}else if(op == SEQ){
+				old = null;
+				LiveSeq oldSeq = getLiveSeqs(sendRecv).put(addr, new LiveSeq(seqNum, segment));
+				if(oldSeq != null) addLive(oldSeq.segment, -1);
+				addLive(segment, 1);
+			}else if(op == DONE){
+				old = null;
+				LiveLog log = logs.get(key(addr, seqNum));
+				int id = ByteBuffer.wrap(msg).getInt();
+				if(log != null && !log.marks.containsKey(id)){
+					log.marks.put(id, segment);
+					log.entry.done().add(id);
+					addLive(segment, 1);
+				}
+			}else{
+				break;
+			}
+			if(old != null) dropLive(old);
+		}
+	}
+
+	/* Moves the hex-encoded <delim><addr><delim><seqNum>.log files of earlier versions into
+	 * the log, deleting each once the log is on disk.
+	 */
+	private void importLegacyLogs(List<String> fileNames){
+		for(String s : fileNames){
+			int sendRecv = s.startsWith(delim_send) ? SEND : RECV;
+			char delim = getDelim(sendRecv).charAt(0);
+			int addr = Integer.parseInt(s.substring(1, s.indexOf(delim,1)));
+			int seqNum = Integer.parseInt(s.substring(s.indexOf(delim,1)+1,s.length()-4));
+			logMsg(addr, Utility.hexStringToByteArray(loadFile(s)), seqNum, sendRecv);
+		}
+		write();
+		deleteAll(fileNames);
+	}
+
+	/* Moves the sequence numbers in the file names of earlier versions into the log, deleting
+	 * the files once the log is on disk.
+	 */
+	private void importLegacySeqs(List<String> fileNames){
+		for(String s : fileNames){
+			int sendRecv = s.startsWith(delim_seq + delim_seq) ? SEND : RECV;
+			int start = (sendRecv == SEND) ? 2 : 1;
+			int addr = Integer.parseInt(s.substring(start, s.indexOf(delim_seq, start)));
+			int seqNum = Integer.parseInt(s.substring(s.indexOf(delim_seq, start)+1, s.length()-4));
+			logSeq(addr, seqNum, sendRecv);
+		}
+		write();
+		deleteAll(fileNames);
+	}
+
+	private void deleteAll(List<String> fileNames){
+		try {
+			for(String s : fileNames){
+				nfs.delete(s);
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error with NFS file system");
+		}
+	}
 }
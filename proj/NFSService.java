@@ -264,7 +264,7 @@ public class NFSService {
     Files.move(oldFile.toPath(), newFile.toPath(), 
                StandardCopyOption.REPLACE_EXISTING,
                StandardCopyOption.ATOMIC_MOVE);
-    //Log.v(TAG, String.format("Updated file %s", origfile));
+    //Log.v(TAG, "Updated file %s", origfile);
     return true;
   }
 
@@ -1,3 +1,4 @@
+import edu.washington.cs.cse490h.lib.Console;
 import edu.washington.cs.cse490h.lib.Utility;
 import edu.washington.cs.cse490h.lib.ServerList;
 import edu.washington.cs.cse490h.lib.Node.NodeCrashException;
@@ -124,8 +125,8 @@ public abstract class PaxosNode extends RPCNode {
       throw new IllegalStateException("Paxosfile format corrupted");
     }
 
-    Log.i(TAG, String.format("read in PAXOSFILE, setting to round %d",
-                             lastProcessedRound));
+    Log.i(TAG, "read in PAXOSFILE, setting to round %d",
+                             lastProcessedRound);
 
     super.start();
   }
@@ -155,17 +156,19 @@ public abstract class PaxosNode extends RPCNode {
   @Override
   public void onRPCCommitRequest(Integer from, RPCMsg message) {
   	// Does this keep getting called?
-  	System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! " + from + " " + message);
+  	if (Console.isEnabled(Console.TRACE)) {
+  		Console.println(Console.TRACE, "!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! " + from + " " + message);
+  	}
     int msgId = message.getId();
-    Log.d(TAG, String.format("already received requests %s", receivedRequestMsgIds));
+    Log.d(TAG, "already received requests %s", receivedRequestMsgIds);
     if(receivedRequestMsgIds.contains(msgId)) {
       // Don't process duplicate messages
-      Log.d(TAG, String.format("Received duplicate Commit Request message from %d of %s", from, message));
+      Log.d(TAG, "Received duplicate Commit Request message from %d of %s", from, message);
       return;
     }
     receivedRequestMsgIds.add(msgId);
 
-    Log.v(TAG, String.format("New update to vote on from %d of %s", from, message));
+    Log.v(TAG, "New update to vote on from %d of %s", from, message);
     tryUpdate(from, message);
   }
 
@@ -185,13 +188,15 @@ public abstract class PaxosNode extends RPCNode {
   @Override
   public void onRPCCommitResponse(Integer from, RPCMsg message) {
     // don't intercept commit responses
-  	System.out.println("!!!!!!!! passingBack " + 0 + " " + message);
+  	if (Console.isEnabled(Console.TRACE)) {
+  		Console.println(Console.TRACE, "!!!!!!!! passingBack " + 0 + " " + message);
+  	}
 
     int msgId = message.getId();
-    Log.d(TAG, String.format("already received responses %s", receivedResponseMsgIds));
+    Log.d(TAG, "already received responses %s", receivedResponseMsgIds);
     if(receivedResponseMsgIds.contains(msgId)) {
       // Don't process duplicate messages
-      Log.d(TAG, String.format("Received duplicate Commit Response message from %d of %s", from, message));
+      Log.d(TAG, "Received duplicate Commit Response message from %d of %s", from, message);
       return;
     }
     receivedResponseMsgIds.add(msgId);
@@ -224,7 +229,7 @@ public abstract class PaxosNode extends RPCNode {
   private PaxosInstance spinupInstance(int roundNum) {
     PaxosInstance instance = instances.get(roundNum);
     if(instance == null) {
-      Log.i(TAG, String.format("Spun up Paxos instance for round %d", roundNum));
+      Log.i(TAG, "Spun up Paxos instance for round %d", roundNum);
       instance = new PaxosInstance(roundNum);
       instances.put(roundNum, instance);
     }
@@ -235,9 +240,9 @@ public abstract class PaxosNode extends RPCNode {
    * Spin down a Paxos instance for the specified round.
    */
   private void spindownInstance(int roundNum) {
-    Log.i(TAG, String.format("Spun down Paxos instance for round %d", roundNum));
-    Log.v(TAG, String.format("Decided value for round %d was %s", 
-                              roundNum, decidedUpdates.get(roundNum)));
+    Log.i(TAG, "Spun down Paxos instance for round %d", roundNum);
+    Log.v(TAG, "Decided value for round %d was %s", 
+                              roundNum, decidedUpdates.get(roundNum));
     instances.remove(roundNum);
   }
 
@@ -246,11 +251,11 @@ public abstract class PaxosNode extends RPCNode {
    * Try to propose an update.
    */
   private void tryUpdate(int from, RPCMsg updateMsg) {
-    Log.i(TAG, String.format("IT'S VOTIN' TIME ON BEHALF OF %d", from));
-    Log.v(TAG, String.format("Let's vote on update %s", updateMsg));
+    Log.i(TAG, "IT'S VOTIN' TIME ON BEHALF OF %d", from);
+    Log.v(TAG, "Let's vote on update %s", updateMsg);
 
-    Log.d(TAG, String.format("Previously decided updates %s", decidedUpdates));
-    Log.d(TAG, String.format("Current rounds of paxos running %s", instances.keySet()));
+    Log.d(TAG, "Previously decided updates %s", decidedUpdates);
+    Log.d(TAG, "Current rounds of paxos running %s", instances.keySet());
 
     // get the next round to spinup.  For any instance we already have
     // spun up, we know for sure there is at least one Proposer for
@@ -319,8 +324,8 @@ public abstract class PaxosNode extends RPCNode {
    */
   public void onRPCPaxosRequest(Integer from, RPCMsg message) {
     PaxosMsg msg = (PaxosMsg)message;
-    Log.i(TAG, String.format("%s request from %d", msg.msgType, from));
-    Log.v(TAG, String.format("%s", msg));
+    Log.i(TAG, "%s request from %d", msg.msgType, from);
+    Log.v(TAG, "%s", msg);
 
     if(decidedUpdates.containsKey(msg.roundNum)) {
 
@@ -335,7 +340,7 @@ public abstract class PaxosNode extends RPCNode {
             Pair<Integer, RPCMsg> update = decidedUpdates.get(roundNum);
             PaxosProposal proposal = new PaxosProposal(-1, update.a, update.b);
 
-            Log.d(TAG, String.format("Sending UPDATE of %s", proposal));
+            Log.d(TAG, "Sending UPDATE of %s", proposal);
             RPCSendPaxosResponse(from, 
                     new PaxosMsg(msg, roundNum, proposal));
           }
@@ -387,8 +392,8 @@ public abstract class PaxosNode extends RPCNode {
    */
   public void onRPCPaxosResponse(Integer from, RPCMsg message) {
     PaxosMsg msg = (PaxosMsg)message;
-    Log.i(TAG, String.format("%s response from %d", msg.msgType, from));
-    Log.v(TAG, String.format("%s", msg));
+    Log.i(TAG, "%s response from %d", msg.msgType, from);
+    Log.v(TAG, "%s", msg);
 
     if(msg.msgType == PaxosMsgType.UPDATE) {
       // node receiving a catch-up update
@@ -514,14 +519,14 @@ public abstract class PaxosNode extends RPCNode {
 
       // update the max proposal number to be this new proposal number
       maxProposalNum = nextNum;
-      Log.v(TAG, String.format("%s new proposal num %d", this, nextNum));
+      Log.v(TAG, "%s new proposal num %d", this, nextNum);
       return nextNum;
     }
 
 
     // broadcast of proposal to all Acceptors
     public void broadcastPrepareRequest(int from, RPCMsg updateMsg) {
-      Log.i(TAG, String.format("%s broadcast prepare requests", this));
+      Log.i(TAG, "%s broadcast prepare requests", this);
       int proposalNum = nextProposalNum();
       PaxosProposal proposal = new PaxosProposal(proposalNum, from, updateMsg);
       currProposal = proposal;
@@ -541,12 +546,12 @@ public abstract class PaxosNode extends RPCNode {
 
     // recieve prepare results
     public void receivePrepareResponse(int from, PaxosMsg msg) {
-      Log.i(TAG, String.format("%s receive prepare response", this));
+      Log.i(TAG, "%s receive prepare response", this);
 
       if(currProposal == null) {
         // we have no current proposal, a response is BOGUS
-        Log.w(TAG, String.format("%s got BOGUS prepare response for proposal "+
-                                 "they never proposed", this));
+        Log.w(TAG, "%s got BOGUS prepare response for proposal "+
+                                 "they never proposed", this);
         return;
       }
 
@@ -564,13 +569,13 @@ public abstract class PaxosNode extends RPCNode {
     	}
 
       if(msg.proposal.proposalNum == currProposal.proposalNum) {
-        Log.d(TAG, String.format("%s %d promises out of %s servers", 
+        Log.d(TAG, "%s %d promises out of %s servers", 
                                   this, promisingAcceptors.size(),
-                                  ServerList.serverNodes.size()));
+                                  ServerList.serverNodes.size());
         // if this message is for the current proposal
         switch(msg.msgType) {
           case ACCEPTOR_PROMISE:
-            Log.v(TAG, String.format("ACCEPTED!  CHALK ANOTHER ONE UP"));
+            Log.v(TAG, "ACCEPTED!  CHALK ANOTHER ONE UP");
 
             promisingAcceptors.add(from);
             // if a majority promised and we were waiting for that
@@ -582,16 +587,16 @@ public abstract class PaxosNode extends RPCNode {
             break;
 
           case ACCEPTOR_REJECT:
-            Log.v(TAG, String.format("REJECTED!  GET REAL BRO"));
+            Log.v(TAG, "REJECTED!  GET REAL BRO");
 
             rejectingAcceptors.add(from);
 
             // If a majority rejected and we were waiting for promises
             if(state == ProposerState.PROMISE_WAIT &&
                rejectingAcceptors.size() > ServerList.serverNodes.size() / 2) {
-              Log.v(TAG, String.format("%s Retrying in a new round message update %s", 
+              Log.v(TAG, "%s Retrying in a new round message update %s", 
 
-                                        this, currProposal.updateMsg));
+                                        this, currProposal.updateMsg);
 
               // abort the proposal and re-propose
               broadcastPrepareRequest(currProposal.clientId, currProposal.updateMsg);
@@ -613,7 +618,7 @@ public abstract class PaxosNode extends RPCNode {
 
     // send accept requests to all servers
     private void broadcastAcceptRequests(PaxosProposal proposal) {
-      Log.i(TAG, String.format("%s broadcast accept requests", this));
+      Log.i(TAG, "%s broadcast accept requests", this);
 
       state = ProposerState.ACCEPTED_WAIT;
       // Send Accepts to the majority of nodes that promised.
@@ -627,7 +632,7 @@ public abstract class PaxosNode extends RPCNode {
 
     // receive the value
     public void receiveDecidedRequest(PaxosProposal proposal) {
-      Log.i(TAG, String.format("%s receive decided request", this));
+      Log.i(TAG, "%s receive decided request", this);
 
       // the decided proposal is not our own
       if(originalProposal != null && !originalProposal.equals(proposal)) {
@@ -664,7 +669,7 @@ public abstract class PaxosNode extends RPCNode {
      * This Acceptor received a request to prepare for a proposal.
      */
     public void receivePrepareRequest(int from, PaxosMsg msg) {
-      Log.i(TAG, String.format("%s receive prepare request", this));
+      Log.i(TAG, "%s receive prepare request", this);
       if (msg.proposal.proposalNum < promisedNum) {
         // Ignore
         // Send a response proposal with the current promise number
@@ -699,7 +704,7 @@ public abstract class PaxosNode extends RPCNode {
      * This Acceptor received a request to accept a proposal.
      */
     public void receiveAcceptRequest(int from, PaxosMsg msg) {
-      Log.i(TAG, String.format("%s receive accept request", this));
+      Log.i(TAG, "%s receive accept request", this);
       if (msg.proposal.proposalNum >= promisedNum) {
         // if the accept request is for a proposal newer than our
         // promisedNum
@@ -734,8 +739,8 @@ public abstract class PaxosNode extends RPCNode {
     
     // receive the agreed value
     public void receiveAcceptorAcceptedRequest(int from, PaxosMsg msg) {
-      Log.i(TAG, String.format("%s receive accepted request", this));
-      Log.i(TAG, "smg: " + msg);
+      Log.i(TAG, "%s receive accepted request", this);
+      Log.i(TAG, "smg: %s", msg);
       if(acceptedAcceptors.containsKey(msg.proposal)) {
       	acceptedAcceptors.get(msg.proposal).add(from);
       } else {
@@ -751,7 +756,7 @@ public abstract class PaxosNode extends RPCNode {
     
     // send accept requests to all servers
     private void broadcastDecidedRequests(PaxosProposal proposal) {
-      Log.i(TAG, String.format("%s broadcast decided requests", this));
+      Log.i(TAG, "%s broadcast decided requests", this);
       if(decided) {
         // if we already sent out decided requests
         return;
@@ -9,6 +9,8 @@ public class Protocol {
 	// TODO: make these enums so it's clearer when to use RIOPacket, or something else
 	public static final int DATA = 0;
 	public static final int ACK = 1;
+	public static final int SACK = 2;
+	public static final int DATA_ACK = 3;
 
 	// Protocols for 2PC
 	public static final int VOTEREQ_PKT = 10;
@@ -30,8 +32,9 @@ public class Protocol {
 	 * @return true if the protocol is valid, false otherwise
 	 */
 	public static boolean isPktProtocolValid(int protocol) {
-		return (protocol == DATA || protocol == ACK || protocol == VOTEREQ_PKT
-				|| protocol == VOTE_PKT || protocol == DECISION_PKT || protocol == DECISIONREQ_PKT);
+		return (protocol == DATA || protocol == ACK || protocol == SACK || protocol == DATA_ACK
+				|| protocol == VOTEREQ_PKT || protocol == VOTE_PKT || protocol == DECISION_PKT
+				|| protocol == DECISIONREQ_PKT);
 	}
 
 	/**
@@ -64,6 +67,10 @@ public class Protocol {
 			return "RIO Data Packet";
 		case ACK:
 			return "RIO Acknowledgement Packet";
+		case SACK:
+			return "RIO Selective Acknowledgement Packet";
+		case DATA_ACK:
+			return "RIO Data Packet with Acknowledgement";
 		case VOTEREQ_PKT:
 			return "Vote Request Packet";
 		case VOTE_PKT:
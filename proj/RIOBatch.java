@@ -0,0 +1,115 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Several messages to one node, carried as the payload of a single RIOPacket
+ * so that they share its sequence number, send log and ACK. The receiver
+ * unpacks them and delivers them one by one, in the order they were added.
+ *
+ * The logs keep payloads but not protocols, so a batch is known by its first
+ * bytes. The messages the RIO layer carries are RPC bundles, which are Java
+ * serialization streams and always start 0xACED, never with BATCH_MAGIC.
+ */
+public class RIOBatch {
+
+	public static final byte[] BATCH_MAGIC = { 'R', 'I', 'O', 'B' };
+	public static final int HEADER_SIZE = BATCH_MAGIC.length + 4;
+	// protocol and length
+	public static final int ENTRY_HEADER_SIZE = 5;
+
+	private LinkedList<RIOPacket> messages;
+	private int size;
+
+	public RIOBatch() {
+		messages = new LinkedList<RIOPacket>();
+		size = HEADER_SIZE;
+	}
+
+	/**
+	 * Add a message to the end of the batch
+	 * @param protocol The protocol of the message
+	 * @param payload The message
+	 */
+	public void add(int protocol, byte[] payload) {
+		messages.add(new RIOPacket(protocol, 0, payload));
+		size += ENTRY_HEADER_SIZE + payload.length;
+	}
+
+	/**
+	 * @return The messages in the batch, as RIOPackets with no sequence number
+	 */
+	public LinkedList<RIOPacket> getMessages() {
+		return messages;
+	}
+
+	/**
+	 * @return The size of the batch once packed, in bytes
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Convert the batch into a byte array to be the payload of a RIOPacket.
+	 * Format:
+	 *        BATCH_MAGIC = 4 bytes
+	 *        number of messages = 4 bytes
+	 *        for each message:
+	 *            protocol = 1 byte
+	 *            length = 4 bytes
+	 *            message = length bytes
+	 * @return The packed batch
+	 */
+	public byte[] pack() {
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.put(BATCH_MAGIC);
+		buf.putInt(messages.size());
+		for (RIOPacket p : messages) {
+			buf.put((byte) p.getProtocol());
+			buf.putInt(p.getPayload().length);
+			buf.put(p.getPayload());
+		}
+		return buf.array();
+	}
+
+	/**
+	 * @param payload The payload of a RIOPacket, or a message log
+	 * @return true if it is a packed batch
+	 */
+	public static boolean isBatch(byte[] payload) {
+		return payload.length >= HEADER_SIZE
+				&& Arrays.equals(Arrays.copyOf(payload, BATCH_MAGIC.length), BATCH_MAGIC);
+	}
+
+	/**
+	 * Split a payload into the messages it carries
+	 * @param protocol The protocol the payload came with
+	 * @param payload A packed batch, or a single message
+	 * @return The messages in order: those in the batch, or just the payload
+	 *         itself if it is not a batch. Empty if the batch is corrupt.
+	 */
+	public static LinkedList<RIOPacket> unpack(int protocol, byte[] payload) {
+		LinkedList<RIOPacket> messages = new LinkedList<RIOPacket>();
+		if (!isBatch(payload)) {
+			messages.add(new RIOPacket(protocol, 0, payload));
+			return messages;
+		}
+
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(payload);
+			buf.position(BATCH_MAGIC.length);
+			int count = buf.getInt();
+			for (int i = 0; i < count; i++) {
+				int p = buf.get();
+				byte[] msg = new byte[buf.getInt()];
+				buf.get(msg);
+				messages.add(new RIOPacket(p, 0, msg));
+			}
+		} catch (RuntimeException e) {
+			// short, or a bad protocol or length
+			messages.clear();
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.util.LinkedList;
+
+import edu.washington.cs.cse490h.lib.Callback;
+import edu.washington.cs.cse490h.lib.PersistentStorageOutputStream;
+import edu.washington.cs.cse490h.lib.PersistentStorageWriter;
+
+/**
+ * Class that tests the reliable, in-order message layer across a crash. Node 0
+ * sends NUM_REQUESTS requests to node 1, REQUESTS_PER_STEP in each time step,
+ * and node 1 answers one of the requests it has been delivered in each time
+ * step. Node CRASH_ADDR crashes just before its CRASH_WRITE-th storage write,
+ * and the simulator restarts it in the next time step.
+ *
+ * A node forgets everything but its storage when it crashes, so the test keeps
+ * its own record of the run in static fields: how many requests node 0 has
+ * handed to the RIO layer, and which have been served and answered. The RIO
+ * layer puts a timestep's messages on disk at its end, and a node that crashes
+ * first loses them, so node 0 only counts its requests once the timestep they
+ * were sent in has ended. Requests must be served and answered in order,
+ * though one can be served again if the crash came before it was answered.
+ * Every request counted must be answered by the end of the run.
+ */
+public class RIOCrashTester extends RIONode {
+	public static double getFailureRate() { return 0/100.0; }
+	public static double getRecoveryRate() { return 100/100.0; }
+	public static double getDropRate() { return 0/100.0; }
+	public static double getDelayRate() { return 0/100.0; }
+
+	public static int NUM_REQUESTS = 12;
+	public static int REQUESTS_PER_STEP = 1;
+	public static int CRASH_ADDR = 1;
+	public static int CRASH_WRITE = 1;
+
+	// the record of the run, which survives the crash
+	public static boolean begun;
+	public static boolean crashed;
+	public static int writes;
+	public static int requestsSent;
+	public static int mostWritesInAStep;
+	public static int lastServed;
+	public static int lastAnswered;
+	public static LinkedList<String> errors = new LinkedList<String>();
+
+	// requests delivered to node 1 and not answered yet
+	private LinkedList<Integer> toAnswer;
+	// requests node 0 has handed to the RIO layer, this timestep's included
+	private int sent;
+	// node CRASH_ADDR's storage writes in the timestep of its last write
+	private long writeStep = -1;
+	private int writesInStep;
+
+	/**
+	 * Clear the record, before a run.
+	 */
+	public static void reset() {
+		begun = false;
+		crashed = false;
+		writes = 0;
+		requestsSent = 0;
+		mostWritesInAStep = 0;
+		lastServed = -1;
+		lastAnswered = -1;
+		errors.clear();
+	}
+
+	@Override
+	public void start() {
+		// the RIO layer delivers the requests it recovers as it starts
+		toAnswer = new LinkedList<Integer>();
+		sent = requestsSent;
+		super.start();
+		if (addr == 0 && begun) {
+			schedule("sendRequests");
+		}
+	}
+
+	@Override
+	public void onCommand(String command) {
+		if (command.equals("begin") && addr == 0) {
+			begun = true;
+			sendRequests();
+		}
+	}
+
+	@Override
+	public void onTimestepEnd() {
+		super.onTimestepEnd();
+		if (addr == 0) {
+			requestsSent = sent;
+		}
+	}
+
+	/**
+	 * Crash the node before its CRASH_WRITE-th storage write, and count its
+	 * writes in each time step.
+	 */
+	private void checkCrash() {
+		if (addr != CRASH_ADDR) {
+			return;
+		}
+		if (now() != writeStep) {
+			writeStep = now();
+			writesInStep = 0;
+		}
+		mostWritesInAStep = Math.max(mostWritesInAStep, ++writesInStep);
+		if (++writes == CRASH_WRITE) {
+			crashed = true;
+			fail();
+		}
+	}
+
+	@Override
+	public PersistentStorageWriter getWriter(String filename, boolean append)
+			throws IOException {
+		checkCrash();
+		return super.getWriter(filename, append);
+	}
+
+	@Override
+	public PersistentStorageOutputStream getOutputStream(String filename,
+			boolean append) throws IOException {
+		checkCrash();
+		return super.getOutputStream(filename, append);
+	}
+
+	/**
+	 * Hand the next requests to the RIO layer, and schedule itself for the
+	 * next time step until all are answered. Waiting on the answers keeps the
+	 * simulation going until node 1 is restarted after a late crash.
+	 */
+	public void sendRequests() {
+		for (int i = 0; i < REQUESTS_PER_STEP && sent < NUM_REQUESTS; i++) {
+			send(1, RPCNode.RPCCallType.REQUEST, sent);
+			sent++;
+		}
+		if (lastAnswered < NUM_REQUESTS - 1) {
+			schedule("sendRequests");
+		}
+	}
+
+	/**
+	 * Answer the oldest request delivered, and schedule itself for the next
+	 * time step while others wait.
+	 */
+	public void answer() {
+		send(0, RPCNode.RPCCallType.RESPONSE, toAnswer.removeFirst());
+		if (!toAnswer.isEmpty()) {
+			schedule("answer");
+		}
+	}
+
+	@Override
+	public void onRIOReceive(Integer from, int protocol, byte[] msg) {
+		RPCNode.RPCCallBundle bundle = RPCNode.RPCCallBundle.deserialize(msg);
+		int num = ((RIOTester.NumMsg) bundle.msg).getNum();
+
+		if (bundle.callType == RPCNode.RPCCallType.REQUEST) {
+			if (num > lastServed + 1) {
+				errors.add("request " + num + " served before " + (lastServed + 1));
+			}
+			if (num <= lastAnswered) {
+				errors.add("request " + num + " served again after it was answered");
+			}
+			lastServed = Math.max(lastServed, num);
+			if (toAnswer.isEmpty()) {
+				schedule("answer");
+			}
+			toAnswer.add(num);
+			return;
+		}
+
+		RIOLayer.responseFinalized(bundle.id);
+		if (num > lastAnswered + 1) {
+			errors.add("answer " + num + " received before " + (lastAnswered + 1));
+		}
+		lastAnswered = Math.max(lastAnswered, num);
+	}
+
+	/**
+	 * Send a request or its answer, with the number of the request as its id.
+	 */
+	private void send(int destAddr, RPCNode.RPCCallType callType, int num) {
+		RPCNode.RPCCallBundle bundle = new RPCNode.RPCCallBundle(num, callType,
+				RPCNode.RPCMsgType.COMMIT, new RIOTester.NumMsg(num, num));
+		RIOSend(destAddr, Protocol.RIOTEST_PKT,
+				RPCNode.RPCCallBundle.serialize(bundle));
+	}
+
+	/**
+	 * Call a method of this node in the next time step.
+	 */
+	private void schedule(String methodName) {
+		try {
+			Callback cb = new Callback(Callback.getMethod(methodName, this,
+					new String[0]), this, new Object[0]);
+			addTimeout(cb, 1);
+		} catch (NoSuchMethodException e) {
+			e.printStackTrace();
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+		}
+	}
+}
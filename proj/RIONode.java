@@ -29,11 +29,27 @@ public abstract class RIONode extends Node {
 			RIOLayer.RIODataReceive(from, msg);
 		}else if(protocol == Protocol.ACK) {
 			RIOLayer.RIOAckReceive(from, msg);
+		}else if(protocol == Protocol.SACK) {
+			RIOLayer.RIOSackReceive(from, msg);
+		}else if(protocol == Protocol.DATA_ACK) {
+			RIOLayer.RIODataAckReceive(from, msg);
 		}
 	}
 
 	/**
-	 * Send a message using the reliable, in-order delivery layer
+	 * Write what the RIO layer logged this timestep to disk, then send its
+	 * packets. A node that overrides this should call it first: anything it
+	 * does afterwards happens only once the timestep's messages are on disk.
+	 */
+	@Override
+	public void onTimestepEnd() {
+		RIOLayer.commit();
+	}
+
+	/**
+	 * Send a message using the reliable, in-order delivery layer. The message
+	 * is on disk and sent at the end of the timestep, and a node that crashes
+	 * before then loses it; see ReliableInOrderMsgLayer.RIOSend.
 	 * 
 	 * @param destAddr
 	 *            The address to send to
@@ -1,8 +1,5 @@
-import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import edu.washington.cs.cse490h.lib.Packet;
 import edu.washington.cs.cse490h.lib.Utility;
@@ -76,21 +73,11 @@ public class RIOPacket {
 	 * @return A byte[] for transporting over the wire. Null if failed to pack for some reason
 	 */
 	public byte[] pack() {
-		try {
-			ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-			DataOutputStream out = new DataOutputStream(byteStream);
-
-			out.writeByte(protocol);
-			out.writeInt(seqNum);
-
-			out.write(payload, 0, payload.length);
-
-			out.flush();
-			out.close();
-			return byteStream.toByteArray();
-		} catch (IOException e) {
-			return null;
-		}
+		ByteBuffer buf = ByteBuffer.wrap(new byte[HEADER_SIZE + payload.length]);
+		buf.put((byte) protocol);
+		buf.putInt(seqNum);
+		buf.put(payload);
+		return buf.array();
 	}
 
 	/**
@@ -100,25 +87,18 @@ public class RIOPacket {
 	 * @return RIOPacket object created or null if the byte[] representation was corrupted
 	 */
 	public static RIOPacket unpack(byte[] packet) {
-		try {
-			DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet));
-
-
-			int protocol = in.readByte();
-			int seqNum = in.readInt();
-
-			byte[] payload = new byte[packet.length - HEADER_SIZE];
-			int bytesRead = in.read(payload, 0, payload.length);
-
-			if (bytesRead != payload.length) {
-				return null;
-			}
+		if (packet.length < HEADER_SIZE) {
+			return null;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(packet);
+		int protocol = buf.get();
+		int seqNum = buf.getInt();
+		byte[] payload = Arrays.copyOfRange(packet, HEADER_SIZE, packet.length);
 
+		try {
 			return new RIOPacket(protocol, seqNum, payload);
 		} catch (IllegalArgumentException e) {
 			// will return null
-		} catch(IOException e) {
-			// will return null
 		}
 		return null;
 	}
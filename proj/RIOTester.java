@@ -3,7 +3,6 @@ import java.util.HashMap;
 import java.util.Random;
 
 import edu.washington.cs.cse490h.lib.Callback;
-import edu.washington.cs.cse490h.lib.Utility;
 
 /**
  * Class that tests the reliable, in-order message layer. Randomly sends
@@ -26,6 +25,31 @@ public class RIOTester extends RIONode {
 
 	private boolean failed = false;
 	
+	/**
+	 * The RIO layer keeps the log of a received message until the RPC
+	 * exchange it belongs to is over, so the numbers go in RPC bundles: each
+	 * is a RESPONSE, finalized as soon as it is received.
+	 */
+	public static class NumMsg extends RPCNode.RPCMsg {
+		public static final long serialVersionUID = 0L;
+
+		private final int id;
+		private final int num;
+
+		public NumMsg(int id, int num) {
+			this.id = id;
+			this.num = num;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public int getNum() {
+			return num;
+		}
+	}
+	
 	@Override
 	public String packetBytesToString(byte[] bytes) {
 		RIOPacket packet = RIOPacket.unpack(bytes);
@@ -37,6 +61,7 @@ public class RIOTester extends RIONode {
 
 	@Override
 	public void start() {
+		super.start();
 		logOutput("Starting up...");
 
 		// Generate a user-level synoptic event to indicate that the node started.
@@ -65,7 +90,9 @@ public class RIOTester extends RIONode {
 			logError("unknown protocol: " + protocol);
 			return;
 		}
-		Integer i = Integer.parseInt(Utility.byteArrayToString(msg));
+		RPCNode.RPCCallBundle bundle = RPCNode.RPCCallBundle.deserialize(msg);
+		RIOLayer.responseFinalized(bundle.id);
+		Integer i = ((NumMsg) bundle.msg).getNum();
 		Integer receivedNum = receivedNums.get(from);
 		if (receivedNum == null) {
 			// If we've never seen this sender before
@@ -156,9 +183,13 @@ public class RIOTester extends RIONode {
 		} while(doAgain);
 		
 
-		// Send the message
+		// Send the message, with an id no other sender or destination uses
+		int id = (addr * RIOTester.NUM_NODES + destAddr) * (NUM_DELIVERIES + 1) + next;
+		RPCNode.RPCCallBundle bundle = new RPCNode.RPCCallBundle(id,
+				RPCNode.RPCCallType.RESPONSE, RPCNode.RPCMsgType.COMMIT,
+				new NumMsg(id, next));
 		RIOSend(destAddr, Protocol.RIOTEST_PKT,
-				Utility.stringToByteArray("" + next));
+				RPCNode.RPCCallBundle.serialize(bundle));
 		nextNum.put(destAddr, next + 1);
 
 		// Schedule another send for the next time step
@@ -110,7 +110,7 @@ public abstract class RPCNode extends RIONode {
 	 *            and the filesystem transaction to commit.
 	 */
   public void RPCSendCommitRequest(int destAddr, RPCMsg msg) {
-    Log.i(TAG, String.format("Commit request to %d of %s", destAddr, msg));
+    Log.i(TAG, "Commit request to %d of %s", destAddr, msg);
     RPCCallBundle bundle = new RPCCallBundle(msg.getId(), RPCCallType.REQUEST,
                                              RPCMsgType.COMMIT, msg);
     RIOSend(destAddr, Protocol.DATA, RPCCallBundle.serialize(bundle));
@@ -128,7 +128,7 @@ public abstract class RPCNode extends RIONode {
 	 *            and the filesystem transaction to commit.
 	 */
   public void RPCSendCommitResponse(int destAddr, RPCMsg msg) {
-    Log.i(TAG, String.format("Commit response to %d of %s", destAddr, msg));
+    Log.i(TAG, "Commit response to %d of %s", destAddr, msg);
     RPCCallBundle bundle = new RPCCallBundle(msg.getId(), RPCCallType.RESPONSE,
                                              RPCMsgType.COMMIT, msg);
     RIOSend(destAddr, Protocol.DATA, RPCCallBundle.serialize(bundle));
@@ -142,7 +142,7 @@ public abstract class RPCNode extends RIONode {
 	 *            The address to send to
 	 */
   public void RPCSendPaxosRequest(int destAddr, RPCMsg msg) {
-    Log.i(TAG, String.format("Paxos request to %d of %s", destAddr, msg));
+    Log.i(TAG, "Paxos request to %d of %s", destAddr, msg);
     RPCCallBundle bundle = new RPCCallBundle(msg.getId(), RPCCallType.REQUEST,
                                              RPCMsgType.PAXOS, msg);
     RIOSend(destAddr, Protocol.DATA, RPCCallBundle.serialize(bundle));
@@ -156,7 +156,7 @@ public abstract class RPCNode extends RIONode {
 	 *            The address to send to
 	 */
   public void RPCSendPaxosResponse(int destAddr, RPCMsg msg) {
-    Log.i(TAG, String.format("Paxos response to %d of %s", destAddr, msg));
+    Log.i(TAG, "Paxos response to %d of %s", destAddr, msg);
     RPCCallBundle bundle = new RPCCallBundle(msg.getId(), RPCCallType.RESPONSE,
                                              RPCMsgType.PAXOS, msg);
     RIOSend(destAddr, Protocol.DATA, RPCCallBundle.serialize(bundle));
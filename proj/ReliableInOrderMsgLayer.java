@@ -1,10 +1,23 @@
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
 
+import edu.washington.cs.cse490h.lib.Console;
 import edu.washington.cs.cse490h.lib.Callback;
+import edu.washington.cs.cse490h.lib.NodeTimer;
 import edu.washington.cs.cse490h.lib.Utility;
 import edu.washington.cs.cse490h.lib.Node.NodeCrashException;
 
@@ -19,14 +32,56 @@ import edu.washington.cs.cse490h.lib.Node.NodeCrashException;
 public class ReliableInOrderMsgLayer {
 	public static int TIMEOUT = 3;
 	
+	// Windowed mode: each DATA packet is answered with a binary SACK that
+	// covers everything received on the channel, instead of a decimal ACK for
+	// that packet alone, and no more than WINDOW sequence numbers past the
+	// oldest unACKed packet are in flight on a channel. A SACK reports at
+	// most 64 packets past the first gap.
+	public static boolean WINDOWED = false;
+	public static int WINDOW = 64;
+	
+	// Delayed ACKs: a DATA packet that arrives in order is not ACKed straight
+	// away. The next DATA sent back to its sender carries a SACK for the
+	// channel (Protocol.DATA_ACK), and if none is sent within ACK_DELAY
+	// timesteps the SACK goes out on its own. Senders wait ACK_DELAY longer
+	// before retransmitting to allow for it.
+	public static boolean DELAYED_ACKS = false;
+	public static int ACK_DELAY = 1;
+	
+	// Adaptive retransmission: each channel times the round trip of its
+	// packets and waits about that long for an ACK, doubling the wait on
+	// each timeout up to MAX_RTO timesteps. TIMEOUT is only the wait before
+	// the first round trip is timed. Off, as by default, every packet waits
+	// TIMEOUT.
+	public static boolean ADAPTIVE_RTO = false;
+	public static int MAX_RTO = 16;
+	
+	// Coalescing: messages sent to one node in the same timestep go out
+	// together at its end, packed into one RIOPacket (see RIOBatch) with one
+	// sequence number, send log and ACK, or sooner once COALESCE_BYTES are
+	// waiting. The batch is logged when it is sent, and so goes to disk in
+	// the timestep's one sync like any other message.
+	public static boolean COALESCE = false;
+	public static int COALESCE_BYTES = 8192;
+	
 	private HashMap<Integer, InChannel> inConnections;
 	private HashMap<Integer, OutChannel> outConnections;
 	private RIONode n;
 	private MsgLogger msl;
-	private SeqNumLogger snl;
 	private HashMap<Integer,SeqLogEntries.AddrSeqPair> responseMap;
 	private HashMap<Integer,SeqLogEntries.AddrSeqPair> responseRecvdMap;
 	private LinkedList<DeliveryObject> tempDelivery;
+	// messages to each node waiting to be sent together, when coalescing
+	private HashMap<Integer, RIOBatch> pending;
+	// received batches whose log is still needed: how many of their messages
+	// are not yet answered or finalized. The others are marked done in the log.
+	private HashMap<Long, Integer> openBatches;
+	// the messages recovered from the logs that had already been answered or
+	// finalized
+	private HashSet<Integer> doneBeforeCrash;
+	// the packets sent this timestep, held until commit() has put everything
+	// logged in it on disk
+	private LinkedList<HeldPacket> held;
 	
 	private class DeliveryObject{
 		public DeliveryObject(int addr2, RIOPacket p2) {
@@ -36,6 +91,17 @@ public class ReliableInOrderMsgLayer {
 		int addr;
 		RIOPacket p;
 	}
+	
+	private class HeldPacket{
+		public HeldPacket(int destAddr2, int protocol2, byte[] payload2) {
+			destAddr=destAddr2;
+			protocol=protocol2;
+			payload=payload2;
+		}
+		int destAddr;
+		int protocol;
+		byte[] payload;
+	}
 
 	/**
 	 * Constructor.
@@ -54,41 +120,52 @@ public class ReliableInOrderMsgLayer {
 		responseRecvdMap = new HashMap<Integer,SeqLogEntries.AddrSeqPair>();
 		this.n = n;
 		this.msl = new MsgLogger(n);
-		this.snl = new SeqNumLogger(n);
 		this.tempDelivery = new LinkedList<DeliveryObject>();
+		this.pending = new HashMap<Integer, RIOBatch>();
+		this.openBatches = new HashMap<Long, Integer>();
+		this.doneBeforeCrash = new HashSet<Integer>();
+		this.held = new LinkedList<HeldPacket>();
 		
-		SeqLogEntries sle = this.snl.getSeqLog();
+		SeqLogEntries sle = this.msl.getSeqLog();
 		
 		//Recovering responseMap:
 		PriorityQueue<MsgLogEntry> recvLogsAll = this.msl.getLogs(MsgLogger.RECV);
 		PriorityQueue<MsgLogEntry> sendLogsAll = this.msl.getLogs(MsgLogger.SEND);
+		HashSet<Integer> sentIds = new HashSet<Integer>();
+		for(MsgLogEntry mle2: sendLogsAll){
+			for(RIOPacket m: RIOBatch.unpack(Protocol.DATA, mle2.msg())) sentIds.add(RPCNode.extractMessageId(m.getPayload()));
+		}
 		boolean deletedSomeRecvs = false;
 		for(MsgLogEntry mle: recvLogsAll){
-			RIOPacket rp = new RIOPacket(Protocol.DATA, mle.seqNum(), mle.msg());
-			System.out.print("rp: " );
-			for(int i = 0;i<rp.getPayload().length;i++){
-	    		System.out.print((char)rp.getPayload()[i]);
-	    	}
-			System.out.println("length: " + new String(rp.getPayload()).length());
-			RPCNode.RPCCallType mt = RPCNode.extractBundleType(rp.getPayload());
+			if (Console.isEnabled(Console.TRACE)) {
+				Console.println(Console.TRACE, "rp: " + new String(mle.msg())
+						+ "length: " + new String(mle.msg()).length());
+			}
 
 			//if we have a matching ID, then we crashed between deleting the recv log, and making the send log for the response.
 			//We have a send log, but the recv log hasn't been deleted.  So we do that now, and don't add this to the responseMap.
-			boolean alreadyResponded = false;
-			for(MsgLogEntry mle2: sendLogsAll){
-				RIOPacket rp2 = new RIOPacket(Protocol.DATA, mle2.seqNum(), mle2.msg());
-				if(RPCNode.extractMessageId(rp.getPayload()) == RPCNode.extractMessageId(rp2.getPayload())){
-					alreadyResponded = true;
-					deletedSomeRecvs = true;
-					this.msl.deleteLog(mle2.addr(), mle2.seqNum(), MsgLogger.RECV);
+			//A batch's log is deleted once all of its messages have been answered; until then the ones answered or
+			//finalized are marked done in it.
+			SeqLogEntries.AddrSeqPair asp = new SeqLogEntries.AddrSeqPair(mle.addr(), mle.seqNum());
+			int open = 0;
+			for(RIOPacket m: RIOBatch.unpack(Protocol.DATA, mle.msg())){
+				int id = RPCNode.extractMessageId(m.getPayload());
+				if(mle.done().contains(id) || sentIds.contains(id)){
+					doneBeforeCrash.add(id);
+					continue;
 				}
+				open++;
+				RPCNode.RPCCallType mt = RPCNode.extractBundleType(m.getPayload());
+				if(mt==RPCNode.RPCCallType.REQUEST) responseMap.put(id, asp);
+				else responseRecvdMap.put(id, asp);
 			}
 			
-			if(!alreadyResponded){
-				if(mt==RPCNode.RPCCallType.REQUEST) responseMap.put(RPCNode.extractMessageId(rp.getPayload()), new SeqLogEntries.AddrSeqPair(mle.addr(), mle.seqNum()));
-				else responseRecvdMap.put(RPCNode.extractMessageId(rp.getPayload()), new SeqLogEntries.AddrSeqPair(mle.addr(), mle.seqNum()));
+			if(open == 0){
+				deletedSomeRecvs = true;
+				this.msl.deleteLog(mle.addr(), mle.seqNum(), MsgLogger.RECV);
+			}else if(open > 1){
+				openBatches.put(logKey(mle.addr(), mle.seqNum()), open);
 			}
-			
 		}
 
 		
@@ -100,9 +177,9 @@ public class ReliableInOrderMsgLayer {
 		
 		if(deletedSomeRecvs) recvLogsAll = this.msl.getLogs(MsgLogger.RECV);
 		
-		LinkedList<SeqLogEntries.AddrSeqPair> last_recvs = sle.seq_recv();		
+		LinkedList<SeqLogEntries.AddrSeqPair> last_recvs = withLoggedChannels(sle.seq_recv(), recvLogsAll);		
 		for(SeqLogEntries.AddrSeqPair pair: last_recvs){
-			InChannel inC = new InChannel(this.msl, this.snl, pair.addr());
+			InChannel inC = new InChannel(this.msl, pair.addr());
 			
 			PriorityQueue<MsgLogEntry> recvLogs = this.msl.getChannelLogs(pair.addr(), MsgLogger.RECV);
 			
@@ -134,11 +211,11 @@ public class ReliableInOrderMsgLayer {
 		// We have one such index for each out channel, so we have (seq_num, destAddr) tuples.
 		// If version on file >= max of sequence numbers on log, take the version on file.  This means we successfully processed a message at least as high as the last one logged.
 		// If version on file < max sequence numbers on log, take the max sequence number on logs.  That means we logged but then crashed before updating the pointer.  In this case, just take the last one on the logs.  Logging happens first.
-		LinkedList<SeqLogEntries.AddrSeqPair> last_sends = sle.seq_send();
+		LinkedList<SeqLogEntries.AddrSeqPair> last_sends = withLoggedChannels(sle.seq_send(), sendLogsAll);
 		
 		for(SeqLogEntries.AddrSeqPair pair: last_sends){
 			
-			OutChannel outC = new OutChannel(this.snl, this.msl, this, pair.addr());
+			OutChannel outC = new OutChannel(this.msl, this, pair.addr());
 			
 			PriorityQueue<MsgLogEntry> sendLogs = this.msl.getChannelLogs(pair.addr(), MsgLogger.SEND);
 			
@@ -152,23 +229,7 @@ public class ReliableInOrderMsgLayer {
 			
 			//these transactions were not ACKd and possibly not sent.  Add them to the resend cycles and unACKd queue.
 			for(MsgLogEntry mle: sendLogs){
-				try{					
-					Method onTimeoutMethod = Callback.getMethod("onTimeout", this, new String[]{ "java.lang.Integer", "java.lang.Integer" });
-								
-					RIOPacket newPkt = new RIOPacket(Protocol.DATA, mle.seqNum(), mle.msg());
-					outC.unACKedPackets.put(mle.seqNum(), newPkt);
-					
-					n.send(pair.addr(), Protocol.DATA, newPkt.pack());
-					n.addTimeout(new Callback(onTimeoutMethod, this, new Object[]{ pair.addr(), mle.seqNum() }), ReliableInOrderMsgLayer.TIMEOUT);
-				}catch(NoSuchMethodException e) {
-					e.printStackTrace();
-				} catch (ClassNotFoundException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (SecurityException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+				outC.sendRecovered(n, new RIOPacket(Protocol.DATA, mle.seqNum(), mle.msg()));
 			}
 			outConnections.put(pair.addr(), outC);
 		}
@@ -177,12 +238,66 @@ public class ReliableInOrderMsgLayer {
 	public void cleanUpConstruction(){
 		for(DeliveryObject o: this.tempDelivery) {
 			// deliver in-order the next sequence of packets
-			System.out.println("cleanup: " + Integer.toString(o.addr));
-			System.out.println("cleanup: " + Integer.toString(o.p.getProtocol()));
-			System.out.println("cleanup: " + o.p.getPayload().length + "bytes");
-			System.out.println("cleanup: " + new String(o.p.getPayload()));
-			n.onRIOReceive(o.addr, o.p.getProtocol(), o.p.getPayload());
+			if (Console.isEnabled(Console.TRACE)) {
+				Console.println(Console.TRACE, "cleanup: " + Integer.toString(o.addr));
+				Console.println(Console.TRACE, "cleanup: " + Integer.toString(o.p.getProtocol()));
+				Console.println(Console.TRACE, "cleanup: " + o.p.getPayload().length + "bytes");
+				Console.println(Console.TRACE, "cleanup: " + new String(o.p.getPayload()));
+			}
+			for(RIOPacket m: RIOBatch.unpack(o.p.getProtocol(), o.p.getPayload())) {
+				// a batch can hold messages that were answered or finalized before the crash
+				if(doneBeforeCrash.contains(RPCNode.extractMessageId(m.getPayload()))) continue;
+				n.onRIOReceive(o.addr, m.getProtocol(), m.getPayload());
+			}
+		}
+	}
+	
+	/**
+	 * Add a channel with last sequence number -1 for each address that has
+	 * logs but no sequence number on file. The first message on a channel is
+	 * logged before its sequence number, and a write cut short by a crash can
+	 * keep the one record and not the other.
+	 * 
+	 * @param pairs
+	 *            The channels and last sequence numbers on file
+	 * @param logs
+	 *            The logs of the same direction
+	 * @return pairs, with the missing channels added
+	 */
+	private static LinkedList<SeqLogEntries.AddrSeqPair> withLoggedChannels(
+			LinkedList<SeqLogEntries.AddrSeqPair> pairs, PriorityQueue<MsgLogEntry> logs) {
+		HashSet<Integer> addrs = new HashSet<Integer>();
+		for(SeqLogEntries.AddrSeqPair pair: pairs) addrs.add(pair.addr());
+		for(MsgLogEntry mle: logs) {
+			if(addrs.add(mle.addr())) pairs.add(new SeqLogEntries.AddrSeqPair(mle.addr(), -1));
 		}
+		return pairs;
+	}
+	
+	private static long logKey(int addr, int seqNum) {
+		return ((long) addr << 32) | (seqNum & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Delete the log of a received message that has been answered or
+	 * finalized. A batch's log is only deleted with its last message; until
+	 * then the others are marked done in it, so that they are not delivered
+	 * again after a crash.
+	 * 
+	 * @param asp
+	 *            The sender and sequence number of the log
+	 * @param id
+	 *            The id of the message
+	 */
+	private void deleteRecvLog(SeqLogEntries.AddrSeqPair asp, int id) {
+		Long k = logKey(asp.addr(), asp.seq());
+		Integer open = openBatches.remove(k);
+		if(open != null && open > 1) {
+			openBatches.put(k, open - 1);
+			this.msl.markDone(asp.addr(), asp.seq(), id, MsgLogger.RECV);
+			return;
+		}
+		this.msl.deleteLog(asp.addr(), asp.seq(), MsgLogger.RECV);
 	}
 	
 	/**
@@ -201,7 +316,7 @@ public class ReliableInOrderMsgLayer {
 		RIOPacket riopkt = RIOPacket.unpack(msg);
 		InChannel in = inConnections.get(from);
 		if(in == null) {
-			in = new InChannel(this.msl, this.snl, from);
+			in = new InChannel(this.msl, from);
 			inConnections.put(from, in);
 		}
 	
@@ -211,38 +326,185 @@ public class ReliableInOrderMsgLayer {
 		
 		if(riopkt.getSeqNum() <= in.lastSeqNumDelivered){
 			// ACK - will re-send if we have already seen this packet
-			byte[] seqNumByteArray = Utility.stringToByteArray("" + riopkt.getSeqNum());
-			n.send(from, Protocol.ACK, seqNumByteArray);
+			sendACK(from, in, riopkt.getSeqNum(), false);
 			return;
 		}
 
-		RPCNode.RPCCallType mt = RPCNode.extractBundleType(riopkt.getPayload());
-		if(mt == RPCNode.RPCCallType.REQUEST) responseMap.put(RPCNode.extractMessageId(riopkt.getPayload()), new SeqLogEntries.AddrSeqPair(from, riopkt.getSeqNum()));
-		else responseRecvdMap.put(RPCNode.extractMessageId(riopkt.getPayload()), new SeqLogEntries.AddrSeqPair(from, riopkt.getSeqNum()));
+		LinkedList<RIOPacket> messages = RIOBatch.unpack(riopkt.getProtocol(), riopkt.getPayload());
+		SeqLogEntries.AddrSeqPair asp = new SeqLogEntries.AddrSeqPair(from, riopkt.getSeqNum());
+		for(RIOPacket m: messages) {
+			RPCNode.RPCCallType mt = RPCNode.extractBundleType(m.getPayload());
+			if(mt == RPCNode.RPCCallType.REQUEST) responseMap.put(RPCNode.extractMessageId(m.getPayload()), asp);
+			else responseRecvdMap.put(RPCNode.extractMessageId(m.getPayload()), asp);
+		}
 		
 		boolean alreadyLogged = this.msl.logMsg(from, riopkt.getPayload(), riopkt.getSeqNum(), MsgLogger.RECV);		
-		
-		
-					
-
-		// ACK - will re-send if we have already seen this packet
-		byte[] seqNumByteArray = Utility.stringToByteArray("" + riopkt.getSeqNum());
-		n.send(from, Protocol.ACK, seqNumByteArray);
+		if(!alreadyLogged && messages.size() > 1) openBatches.put(logKey(from, riopkt.getSeqNum()), messages.size());
+		// the log goes to disk with the channel's new sequence number at the end of the timestep, and
+		//  the ACK is held until then: after a crash, only the log can bring back a message the
+		//  channel no longer expects
+		boolean inOrder = !alreadyLogged && riopkt.getSeqNum() == in.lastSeqNumDelivered + 1;
 		
 		// we have already seen this packet and logged it.  Its also possible we have received it before
 		//  and already processed it fully.  In that case, we will fall through here and the inChannel
 		//  will reject it below instead of delivering it.
-		if(alreadyLogged) return;
-		
+		LinkedList<RIOPacket> toBeDelivered = alreadyLogged ? new LinkedList<RIOPacket>() : in.gotPacket(from, riopkt);
 		
+		// ACK - will re-send if we have already seen this packet.  A SACK is sent once the channel
+		//  has taken the packet, so that it covers it.
+		sendACK(from, in, riopkt.getSeqNum(), inOrder);
 		
-		LinkedList<RIOPacket> toBeDelivered = in.gotPacket(from, riopkt);
 		for(RIOPacket p: toBeDelivered) {
-			// deliver in-order the next sequence of packets
-			n.onRIOReceive(from, p.getProtocol(), p.getPayload());
+			// deliver in-order the next sequence of packets, and the messages of a batch in the order they were sent
+			for(RIOPacket m: RIOBatch.unpack(p.getProtocol(), p.getPayload())) {
+				n.onRIOReceive(from, m.getProtocol(), m.getPayload());
+			}
+		}
+	}
+	
+	/**
+	 * ACK a data packet: with a SACK for the whole channel in windowed mode,
+	 * otherwise with its sequence number. With delayed ACKs, a packet that
+	 * arrives in order is ACKed later by a SACK. Outside windowed mode a SACK
+	 * could miss packets more than 64 past a gap, so the others are still
+	 * ACKed one by one.
+	 * 
+	 * @param from
+	 *            The address from which the data packet came
+	 * @param in
+	 *            The channel it came in on
+	 * @param seqNum
+	 *            The sequence number of the data packet
+	 * @param inOrder
+	 *            Whether the packet was new and next in sequence; only those
+	 *            ACKs are delayed, so that a sender that is resending or has
+	 *            lost a packet hears back at once
+	 */
+	private void sendACK(int from, InChannel in, int seqNum, boolean inOrder) {
+		if(DELAYED_ACKS && inOrder) {
+			in.ackPending = true;
+			if(!in.ackTimerSet) {
+				try{
+					Method onAckTimeoutMethod = Callback.getMethod("onAckTimeout", this, new String[]{ "java.lang.Integer" });
+					n.addTimeout(new Callback(onAckTimeoutMethod, this, new Object[]{ from }), ACK_DELAY);
+					in.ackTimerSet = true;
+				}catch(NoSuchMethodException e) {
+					e.printStackTrace();
+				} catch (ClassNotFoundException e) {
+					e.printStackTrace();
+				} catch (SecurityException e) {
+					e.printStackTrace();
+				}
+			}
+		} else if(WINDOWED) {
+			in.ackPending = false;
+			sendAfterCommit(from, Protocol.SACK, in.sack());
+		} else {
+			sendAfterCommit(from, Protocol.ACK, Utility.stringToByteArray("" + seqNum));
 		}
 	}
 	
+	/**
+	 * Callback for the delayed-ACK timer of an incoming channel. Sends a SACK
+	 * if no DATA has carried one back since the timer was set.
+	 * 
+	 * @param from
+	 *            The sending node of the channel
+	 */
+	public void onAckTimeout(Integer from) {
+		InChannel in = inConnections.get(from);
+		in.ackTimerSet = false;
+		if(in.ackPending) {
+			in.ackPending = false;
+			sendAfterCommit(from, Protocol.SACK, in.sack());
+		}
+	}
+	
+	/**
+	 * Send a DATA packet. With delayed ACKs, if anything has come in from its
+	 * destination, the packet carries a SACK for that channel:
+	 *        SACK length = 1 byte
+	 *        SACK = 4 or 12 bytes
+	 *        RIOPacket
+	 * 
+	 * @param destAddr
+	 *            The address of the destination
+	 * @param pkt
+	 *            The packet
+	 */
+	void sendData(int destAddr, RIOPacket pkt) {
+		InChannel in = inConnections.get(destAddr);
+		if(!DELAYED_ACKS || in == null) {
+			sendAfterCommit(destAddr, Protocol.DATA, pkt.pack());
+			return;
+		}
+		
+		byte[] ack = in.sack();
+		byte[] data = pkt.pack();
+		ByteBuffer buf = ByteBuffer.allocate(1 + ack.length + data.length);
+		buf.put((byte) ack.length);
+		buf.put(ack);
+		buf.put(data);
+		in.ackPending = false;
+		sendAfterCommit(destAddr, Protocol.DATA_ACK, buf.array());
+	}
+	
+	/**
+	 * Send a packet once the timestep's log records are on disk. Every packet
+	 * the layer sends goes through here, so none of them can tell another
+	 * node about something that a crash then takes back.
+	 * 
+	 * @param destAddr
+	 *            The address of the destination
+	 * @param protocol
+	 *            The protocol identifier of the packet
+	 * @param payload
+	 *            The packet
+	 */
+	private void sendAfterCommit(int destAddr, int protocol, byte[] payload) {
+		held.add(new HeldPacket(destAddr, protocol, payload));
+	}
+	
+	/**
+	 * End the timestep: send the messages still waiting to be coalesced, write
+	 * everything the layer logged in the timestep to disk in one sync, then send the packets held until then. A node that crashes before
+	 * this has sent nothing in the timestep, and no more than a prefix of what
+	 * it logged in it is on disk. Called by RIONode at the end of each
+	 * timestep.
+	 */
+	public void commit() {
+		for(Integer destAddr: new ArrayList<Integer>(pending.keySet())) flush(destAddr);
+		this.msl.sync();
+		for(HeldPacket h: held) n.send(h.destAddr, h.protocol, h.payload);
+		held.clear();
+	}
+	
+	/**
+	 * @return How many timesteps to wait for an ACK before resending, allowing
+	 *         for the receiver to delay it
+	 */
+	static int retransmitTimeout() {
+		return DELAYED_ACKS ? TIMEOUT + ACK_DELAY : TIMEOUT;
+	}
+	
+	/**
+	 * Receive a data packet that carries a SACK, as sent by sendData().
+	 * 
+	 * @param from
+	 *            The address from which the packet came
+	 * @param msg
+	 *            The SACK and the data packet
+	 */
+	public void RIODataAckReceive(int from, byte[] msg) {
+		//network corruption: the length is a byte, read unsigned, and a SACK is 4 or 12 bytes long
+		if(msg.length < 1) return;
+		int sackLength = msg[0] & 0xFF;
+		if((sackLength != 4 && sackLength != 12) || msg.length < 1 + sackLength) return;
+		
+		RIOSackReceive(from, Arrays.copyOfRange(msg, 1, 1 + sackLength));
+		RIODataReceive(from, Arrays.copyOfRange(msg, 1 + sackLength, msg.length));
+	}
+	
 	/**
 	 * Receive an acknowledgment packet.
 	 * 
@@ -253,13 +515,39 @@ public class ReliableInOrderMsgLayer {
 	 */
 	public void RIOAckReceive(int from, byte[] msg) {
 		int seqNum = Integer.parseInt( Utility.byteArrayToString(msg) );
-		outConnections.get(from).gotACK(from,seqNum);
+		outConnections.get(from).gotACK(n, from, seqNum);
+	}
+	
+	/**
+	 * Receive a selective acknowledgment packet, as built by InChannel.sack().
+	 * 
+	 * @param from
+	 *            The address from which the SACK came
+	 * @param msg
+	 *            The SACK
+	 */
+	public void RIOSackReceive(int from, byte[] msg) {
+		OutChannel out = outConnections.get(from);
+		//network corruption, or a SACK for a channel we have no record of
+		if(out == null || (msg.length != 4 && msg.length != 12)) return;
+		
+		ByteBuffer buf = ByteBuffer.wrap(msg);
+		int cumulative = buf.getInt();
+		long bitmap = (msg.length == 12) ? buf.getLong() : 0;
+		out.gotSACK(n, cumulative, bitmap);
 	}
 
 	/**
 	 * Send a packet using this reliable, in-order messaging layer. Note that
 	 * this method does not include a reliable, in-order broadcast mechanism.
 	 * 
+	 * The message is logged, and goes to disk and out at the end of the
+	 * timestep, in commit(), with everything else the layer logged in it. A
+	 * node that crashes before then loses the message with the rest of the
+	 * timestep, none of which has been sent. When coalescing, the message is
+	 * logged with its batch, which is sent by the end of the timestep, so it
+	 * is committed in the same sync.
+	 * 
 	 * @param destAddr
 	 *            The address of the destination for this packet
 	 * @param protocol
@@ -267,10 +555,71 @@ public class ReliableInOrderMsgLayer {
 	 * @param payload
 	 *            The payload to be sent
 	 */
-	public void RIOSend(int destAddr, int protocol, byte[] payload) {		
+	public void RIOSend(int destAddr, int protocol, byte[] payload) {
+		if(COALESCE && protocol != Protocol.ACK) {
+			coalesce(destAddr, protocol, payload);
+		} else {
+			send(destAddr, protocol, payload);
+		}
+	}
+	
+	/**
+	 * Add a message to the batch for its destination, sending the batch
+	 * first if the message would take it over COALESCE_BYTES.
+	 * 
+	 * @param destAddr
+	 *            The address of the destination for this message
+	 * @param protocol
+	 *            The protocol identifier for the message
+	 * @param payload
+	 *            The message
+	 */
+	private void coalesce(int destAddr, int protocol, byte[] payload) {
+		RIOBatch batch = pending.get(destAddr);
+		if(batch != null && batch.size() + RIOBatch.ENTRY_HEADER_SIZE + payload.length > COALESCE_BYTES) {
+			flush(destAddr);
+			batch = null;
+		}
+		
+		if(batch == null) {
+			batch = new RIOBatch();
+			pending.put(destAddr, batch);
+		}
+		batch.add(protocol, payload);
+	}
+	
+	/**
+	 * Send the messages waiting for a node: one on its own, more as a batch.
+	 * 
+	 * @param destAddr
+	 *            The address of the node
+	 */
+	private void flush(int destAddr) {
+		RIOBatch batch = pending.remove(destAddr);
+		if(batch == null) return;
+		
+		if(batch.getMessages().size() == 1) {
+			RIOPacket m = batch.getMessages().getFirst();
+			send(destAddr, m.getProtocol(), m.getPayload());
+		} else {
+			send(destAddr, Protocol.DATA, batch.pack());
+		}
+	}
+	
+	/**
+	 * Log and send a packet on its channel.
+	 * 
+	 * @param destAddr
+	 *            The address of the destination for this packet
+	 * @param protocol
+	 *            The protocol identifier for the packet
+	 * @param payload
+	 *            The payload to be sent: a message, or a packed batch
+	 */
+	private void send(int destAddr, int protocol, byte[] payload) {
 		OutChannel out = outConnections.get(destAddr);
 		if(out == null) {
-			out = new OutChannel(this.snl, this.msl, this, destAddr);
+			out = new OutChannel(this.msl, this, destAddr);
 			outConnections.put(destAddr, out);
 		}
 		
@@ -285,30 +634,47 @@ public class ReliableInOrderMsgLayer {
 			this.msl.logMsg(destAddr, payload, out.getNextSeqNum(), MsgLogger.SEND);
 			
 			/* Delete the recv log if this is a response */
-			int currentID = RPCNode.extractMessageId(payload);
-			SeqLogEntries.AddrSeqPair asp = responseMap.get(currentID);
-			if(asp != null){
-				this.msl.deleteLog(asp.addr(), asp.seq(), MsgLogger.RECV);
-				responseMap.remove(currentID);
+			for(RIOPacket m: RIOBatch.unpack(protocol, payload)) {
+				int currentID = RPCNode.extractMessageId(m.getPayload());
+				SeqLogEntries.AddrSeqPair asp = responseMap.get(currentID);
+				if(asp != null){
+					deleteRecvLog(asp, currentID);
+					responseMap.remove(currentID);
+				}
 			}
+			
+			// the log goes to disk with the channel's new sequence number at the end of the
+			//  timestep, before the packet is sent: after a crash, the receiver waits for every
+			//  number the channel gave out
 		}
 		
 		out.sendRIOPacket(n, protocol, payload);
 	}
 
 	/**
-	 * Callback for timeouts while waiting for an ACK.
+	 * Callback for the retransmission timer of an outgoing channel.
 	 * 
 	 * This method is here and not in OutChannel because OutChannel is not a
 	 * public class.
 	 * 
 	 * @param destAddr
-	 *            The receiving node of the unACKed packet
-	 * @param seqNum
-	 *            The sequence number of the unACKed packet
+	 *            The receiving node of the channel
 	 */
-	public void onTimeout(Integer destAddr, Integer seqNum) {
-		outConnections.get(destAddr).onTimeout(n, seqNum);
+	public void onTimeout(Integer destAddr) {
+		outConnections.get(destAddr).onTimeout(n);
+	}
+	
+	/**
+	 * @return One line for each node we send to, with its retransmission
+	 *         timeout and round trip estimates
+	 */
+	public String rtoReport() {
+		StringBuffer sb = new StringBuffer();
+		for(Integer i: outConnections.keySet()) {
+			sb.append(outConnections.get(i).toString() + "\n");
+		}
+		
+		return sb.toString();
 	}
 	
 	@Override
@@ -317,6 +683,7 @@ public class ReliableInOrderMsgLayer {
 		for(Integer i: inConnections.keySet()) {
 			sb.append(inConnections.get(i).toString() + "\n");
 		}
+		sb.append(rtoReport());
 		
 		return sb.toString();
 	}
@@ -324,7 +691,7 @@ public class ReliableInOrderMsgLayer {
 	public void responseFinalized(int id) {
 		SeqLogEntries.AddrSeqPair asp = this.responseRecvdMap.get(id);
 		if(asp != null){
-			this.msl.deleteLog(asp.addr(), asp.seq(), MsgLogger.RECV);
+			deleteRecvLog(asp, id);
 			this.responseRecvdMap.remove(id);
 		}
 		
@@ -337,23 +704,24 @@ public class ReliableInOrderMsgLayer {
 class InChannel {
 	protected int lastSeqNumDelivered;
 	private int fromAddr;
-	private SeqNumLogger snl;
 	private MsgLogger msl;
 	protected HashMap<Integer, RIOPacket> outOfOrderMsgs;
+	// with delayed ACKs, whether a packet is waiting to be ACKed, and whether
+	// the timer that ACKs it is set
+	protected boolean ackPending;
+	protected boolean ackTimerSet;
 	
-	InChannel(MsgLogger msl, SeqNumLogger snl, int fromAddr){
+	InChannel(MsgLogger msl, int fromAddr){
 		lastSeqNumDelivered = -1;
-		this.snl = snl;
 		this.fromAddr = fromAddr;
 		outOfOrderMsgs = new HashMap<Integer, RIOPacket>();
 		this.msl = msl;
 	}
 	
 
-	InChannel(MsgLogger msl, SeqNumLogger snl, int fromAddr, int lsnd){
+	InChannel(MsgLogger msl, int fromAddr, int lsnd){
 		lastSeqNumDelivered = lsnd;
 		this.fromAddr = fromAddr;
-		this.snl = snl;
 		outOfOrderMsgs = new HashMap<Integer, RIOPacket>();
 		this.msl = msl;
 	}
@@ -373,7 +741,7 @@ class InChannel {
 		if(seqNum == lastSeqNumDelivered + 1) {
 			// We were waiting for this packet
 			pktsToBeDelivered.add(pkt);
-			this.snl.updateSeq(++lastSeqNumDelivered, this.fromAddr, SeqNumLogger.RECV);
+			++lastSeqNumDelivered;
 			deliverSequence(pktsToBeDelivered);
 		}else if(seqNum > lastSeqNumDelivered + 1){
 			// We received a subsequent packet and should store it
@@ -398,7 +766,7 @@ class InChannel {
 			++lastSeqNumDelivered;
 			pktsToBeDelivered.add(outOfOrderMsgs.remove(lastSeqNumDelivered));
 		}
-		this.snl.updateSeq(lastSeqNumDelivered, this.fromAddr, SeqNumLogger.RECV);
+		this.msl.logSeq(this.fromAddr, lastSeqNumDelivered, MsgLogger.RECV);
 		
 	}
 	
@@ -406,6 +774,27 @@ class InChannel {
 		return this.lastSeqNumDelivered;
 	}
 	
+	/**
+	 * Build a selective ACK for everything received on this channel: the last
+	 * sequence number delivered, then a bitmap of the packets held out of
+	 * order past it, bit i standing for lastSeqNumDelivered + 2 + i. The bitmap
+	 * is left off when no packets are held.
+	 * 
+	 * @return The SACK, 4 or 12 bytes
+	 */
+	protected byte[] sack() {
+		long bitmap = 0;
+		for(int seqNum: outOfOrderMsgs.keySet()) {
+			int i = seqNum - lastSeqNumDelivered - 2;
+			if(i >= 0 && i < 64) bitmap |= 1L << i;
+		}
+		
+		ByteBuffer buf = ByteBuffer.allocate(bitmap == 0 ? 4 : 12);
+		buf.putInt(lastSeqNumDelivered);
+		if(bitmap != 0) buf.putLong(bitmap);
+		return buf.array();
+	}
+	
 	@Override
 	public String toString() {
 		return "last delivered: " + lastSeqNumDelivered + ", outstanding: " + outOfOrderMsgs.size();
@@ -416,29 +805,55 @@ class InChannel {
  * Representation of an outgoing channel from this node
  */
 class OutChannel {
-	protected HashMap<Integer, RIOPacket> unACKedPackets;
+	protected TreeMap<Integer, RIOPacket> unACKedPackets;
+	// in windowed mode, the unACKed packets not sent yet because they are past the window
+	private LinkedList<RIOPacket> waiting;
 	protected int lastSeqNumSent;
 	private ReliableInOrderMsgLayer parent;
 	private int destAddr;
-	private SeqNumLogger snl;
 	private MsgLogger msl;
 	
-	OutChannel(SeqNumLogger snl, MsgLogger msl, ReliableInOrderMsgLayer parent, int destAddr){
+	// when each unACKed packet was first sent, or -1 once it has been resent
+	// and so can no longer be timed (Karn's rule)
+	private HashMap<Integer, Long> sendTimes;
+	// the unACKed packets that have been sent, oldest transmission first, and
+	// when each was last sent; the timer fires when the oldest is due
+	private LinkedHashMap<Integer, Long> lastSent;
+	private NodeTimer timer;
+	// round trip estimates, in timesteps; srtt is -1 until the first sample
+	private double srtt;
+	private double rttvar;
+	private int rto;
+	private int retransmissions;
+	
+	OutChannel(MsgLogger msl, ReliableInOrderMsgLayer parent, int destAddr){
 		lastSeqNumSent = -1;
-		this.snl = snl;
 		this.msl = msl;
-		unACKedPackets = new HashMap<Integer, RIOPacket>();
+		unACKedPackets = new TreeMap<Integer, RIOPacket>();
+		waiting = new LinkedList<RIOPacket>();
 		this.parent = parent;
 		this.destAddr = destAddr;
+		sendTimes = new HashMap<Integer, Long>();
+		lastSent = new LinkedHashMap<Integer, Long>();
+		srtt = -1;
+		rttvar = 0;
+		rto = ReliableInOrderMsgLayer.retransmitTimeout();
+		retransmissions = 0;
 	}
 	
-	OutChannel(SeqNumLogger snl, MsgLogger msl, ReliableInOrderMsgLayer parent, int destAddr, int lsn){
+	OutChannel(MsgLogger msl, ReliableInOrderMsgLayer parent, int destAddr, int lsn){
 		lastSeqNumSent = lsn;
-		this.snl = snl;
 		this.msl = msl;
-		unACKedPackets = new HashMap<Integer, RIOPacket>();
+		unACKedPackets = new TreeMap<Integer, RIOPacket>();
+		waiting = new LinkedList<RIOPacket>();
 		this.parent = parent;
 		this.destAddr = destAddr;
+		sendTimes = new HashMap<Integer, Long>();
+		lastSent = new LinkedHashMap<Integer, Long>();
+		srtt = -1;
+		rttvar = 0;
+		rto = ReliableInOrderMsgLayer.retransmitTimeout();
+		retransmissions = 0;
 	}
 	
 	/**
@@ -452,25 +867,33 @@ class OutChannel {
 	 *            The payload to be sent
 	 */
 	protected void sendRIOPacket(RIONode n, int protocol, byte[] payload) {
-		try{
-			this.snl.updateSeq(++lastSeqNumSent, this.destAddr, SeqNumLogger.SEND);
-			
-			Method onTimeoutMethod = Callback.getMethod("onTimeout", parent, new String[]{ "java.lang.Integer", "java.lang.Integer" });
-						
-			RIOPacket newPkt = new RIOPacket(protocol, lastSeqNumSent, payload);
-			unACKedPackets.put(lastSeqNumSent, newPkt);
-			
-			n.send(destAddr, Protocol.DATA, newPkt.pack());
-			n.addTimeout(new Callback(onTimeoutMethod, parent, new Object[]{ destAddr, lastSeqNumSent }), ReliableInOrderMsgLayer.TIMEOUT);
-		}catch(NoSuchMethodException e) {
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (SecurityException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		this.msl.logSeq(this.destAddr, ++lastSeqNumSent, MsgLogger.SEND);
+		
+		RIOPacket newPkt = new RIOPacket(protocol, lastSeqNumSent, payload);
+		unACKedPackets.put(lastSeqNumSent, newPkt);
+		
+		if(ReliableInOrderMsgLayer.WINDOWED && (!waiting.isEmpty() || !inWindow(lastSeqNumSent))) {
+			// sent when ACKs open the window
+			waiting.add(newPkt);
+			return;
 		}
+		
+		sendTimes.put(lastSeqNumSent, n.now());
+		transmit(n, lastSeqNumSent);
+	}
+	
+	/**
+	 * Send a packet recovered from the send logs after a crash. It may have
+	 * been sent before, so its round trip is not timed.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param pkt
+	 *            The packet
+	 */
+	protected void sendRecovered(RIONode n, RIOPacket pkt) {
+		unACKedPackets.put(pkt.getSeqNum(), pkt);
+		transmit(n, pkt.getSeqNum());
 	}
 	
 	protected int getNextSeqNum(){
@@ -478,33 +901,186 @@ class OutChannel {
 	}
 	
 	/**
-	 * Called when a timeout for this channel triggers
+	 * @return true if the packet is within WINDOW of the oldest unACKed one
+	 */
+	private boolean inWindow(int seqNum) {
+		return unACKedPackets.isEmpty() || seqNum < unACKedPackets.firstKey() + ReliableInOrderMsgLayer.WINDOW;
+	}
+	
+	/**
+	 * Send the packets that were held back and now fit in the window.
 	 * 
 	 * @param n
 	 *            The sender and parent of this channel
-	 * @param seqNum
-	 *            The sequence number of the unACKed packet
 	 */
-	public void onTimeout(RIONode n, Integer seqNum) {
-		if(unACKedPackets.containsKey(seqNum)) {
-			resendRIOPacket(n, seqNum);
+	private void sendWaiting(RIONode n) {
+		while(!waiting.isEmpty()) {
+			int seqNum = waiting.peek().getSeqNum();
+			if(unACKedPackets.containsKey(seqNum)) {
+				if(!inWindow(seqNum)) return;
+				sendTimes.put(seqNum, n.now());
+				transmit(n, seqNum);
+			}
+			waiting.poll();
 		}
 	}
 	
+	/**
+	 * Called when the retransmission timer for this channel triggers. Resends
+	 * every packet that has waited a timeout since it was last sent.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 */
+	public void onTimeout(RIONode n) {
+		long due = n.now() - rto();
+		LinkedList<Integer> expired = new LinkedList<Integer>();
+		for(Map.Entry<Integer, Long> e: lastSent.entrySet()) {
+			if(e.getValue() > due) break;
+			expired.add(e.getKey());
+		}
+		
+		if(!expired.isEmpty()) {
+			// back off once each time the timer expires, rather than once for
+			// every packet of a lost window
+			rto = Math.min(rto * 2, ReliableInOrderMsgLayer.MAX_RTO);
+			for(int seqNum: expired) resendRIOPacket(n, seqNum);
+		}
+		restartTimer(n);
+	}
+	
+	/**
+	 * Set the retransmission timer for when the oldest packet sent is due, or
+	 * stop it if nothing is waiting for an ACK.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 */
+	private void restartTimer(RIONode n) {
+		if(lastSent.isEmpty()) {
+			if(timer != null) timer.cancel();
+			return;
+		}
+		
+		if(timer == null) {
+			try{
+				Method onTimeoutMethod = Callback.getMethod("onTimeout", parent, new String[]{ "java.lang.Integer" });
+				timer = new NodeTimer(n, new Callback(onTimeoutMethod, parent, new Object[]{ destAddr }));
+			}catch(NoSuchMethodException e) {
+				e.printStackTrace();
+				return;
+			} catch (ClassNotFoundException e) {
+				e.printStackTrace();
+				return;
+			} catch (SecurityException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+		
+		long oldest = lastSent.values().iterator().next();
+		timer.schedule((int) (oldest + rto() - n.now()));
+	}
+	
+	/**
+	 * @return How many timesteps to wait for the ACK of a packet sent now
+	 */
+	private int rto() {
+		return ReliableInOrderMsgLayer.ADAPTIVE_RTO ? rto : ReliableInOrderMsgLayer.retransmitTimeout();
+	}
+	
+	/**
+	 * Forget the send times of packets that were just ACKed, and take a round
+	 * trip sample from the last one sent, unless it was resent (Karn's rule).
+	 * Updates the estimates as Jacobson/Karels do: the timeout is
+	 * SRTT + max(1, 4 RTTVAR), so at least a timestep more than the round trip.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param seqNums
+	 *            The sequence numbers that were just ACKed
+	 */
+	private void acked(RIONode n, List<Integer> seqNums) {
+		int newest = Integer.MIN_VALUE;
+		long sentAt = -1;
+		for(int seqNum: seqNums) {
+			lastSent.remove(seqNum);
+			Long t = sendTimes.remove(seqNum);
+			if(seqNum > newest) {
+				newest = seqNum;
+				sentAt = (t == null) ? -1 : t;
+			}
+		}
+		if(sentAt < 0) return;
+		
+		double r = n.now() - sentAt;
+		if(srtt < 0) {
+			srtt = r;
+			rttvar = r / 2;
+		} else {
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - r);
+			srtt = 0.875 * srtt + 0.125 * r;
+		}
+		rto = (int) Math.min(ReliableInOrderMsgLayer.MAX_RTO, Math.ceil(srtt + Math.max(1, 4 * rttvar)));
+	}
+	
 	/**
 	 * Called when we get an ACK back. Removes the outstanding packet if it is
 	 * still in unACKedPackets.
 	 * 
+	 * @param n
+	 *            The sender and parent of this channel
 	 * @param seqNum
 	 *            The sequence number that was just ACKed
 	 */
-	protected void gotACK(int dest, int seqNum) {
+	protected void gotACK(RIONode n, int dest, int seqNum) {
 		//added a check here since now we might get multiple ACKS for safety
-		if(unACKedPackets.containsKey(seqNum)) unACKedPackets.remove(seqNum);
+		if(unACKedPackets.containsKey(seqNum)) {
+			unACKedPackets.remove(seqNum);
+			acked(n, Collections.singletonList(seqNum));
+		}
 		
 		//remove corresponding send log
 		this.msl.deleteLog(dest, seqNum, MsgLogger.SEND);
 		
+		sendWaiting(n);
+		restartTimer(n);
+	}
+	
+	/**
+	 * Called when we get a SACK back. Removes every outstanding packet it
+	 * covers, deletes their send logs in one batch, and sends what the window
+	 * now has room for.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param cumulative
+	 *            The last sequence number the receiver has delivered
+	 * @param bitmap
+	 *            The packets the receiver holds past it, bit i standing for
+	 *            cumulative + 2 + i
+	 */
+	protected void gotSACK(RIONode n, int cumulative, long bitmap) {
+		LinkedList<Integer> acked = new LinkedList<Integer>();
+		
+		SortedMap<Integer, RIOPacket> delivered = unACKedPackets.headMap(cumulative + 1);
+		acked.addAll(delivered.keySet());
+		delivered.clear();
+		
+		while(bitmap != 0) {
+			int seqNum = cumulative + 2 + Long.numberOfTrailingZeros(bitmap);
+			bitmap &= bitmap - 1;
+			if(unACKedPackets.remove(seqNum) != null) acked.add(seqNum);
+		}
+		
+		//only the logs of packets not ACKed before; duplicate SACKs delete nothing
+		if(!acked.isEmpty()) {
+			acked(n, acked);
+			this.msl.deleteLogs(destAddr, acked, MsgLogger.SEND);
+		}
+		
+		sendWaiting(n);
+		restartTimer(n);
 	}
 	
 	/**
@@ -516,20 +1092,38 @@ class OutChannel {
 	 *            The sequence number of the unACKed packet
 	 */
 	private void resendRIOPacket(RIONode n, int seqNum) {
-		try{
-			Method onTimeoutMethod = Callback.getMethod("onTimeout", parent, new String[]{ "java.lang.Integer", "java.lang.Integer" });
-			RIOPacket riopkt = unACKedPackets.get(seqNum);
-			
-			n.send(destAddr, Protocol.DATA, riopkt.pack());
-			n.addTimeout(new Callback(onTimeoutMethod, parent, new Object[]{ destAddr, seqNum }), ReliableInOrderMsgLayer.TIMEOUT);
-		}catch(NoSuchMethodException e) {
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (SecurityException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		sendTimes.put(seqNum, -1L);
+		retransmissions++;
+		transmit(n, seqNum);
+	}
+	
+	/**
+	 * Send an unACKed packet, and set the retransmission timer if it is the
+	 * only one waiting for an ACK.
+	 * 
+	 * @param n
+	 *            The sender and parent of this channel
+	 * @param seqNum
+	 *            The sequence number of the unACKed packet
+	 */
+	private void transmit(RIONode n, int seqNum) {
+		parent.sendData(destAddr, unACKedPackets.get(seqNum));
+		
+		// to the back of the line
+		lastSent.remove(seqNum);
+		lastSent.put(seqNum, n.now());
+		if(timer == null || !timer.isSet()) restartTimer(n);
+	}
+	
+	/**
+	 * @return The channel's retransmission timeout and round trip estimates,
+	 *         e.g. "to 2: rto 3, srtt 2.06, rttvar 0.31, 0 unACKed, 4 resent"
+	 */
+	@Override
+	public String toString() {
+		String estimates = (srtt < 0) ? "no round trips timed"
+				: String.format(Locale.ROOT, "srtt %.2f, rttvar %.2f", srtt, rttvar);
+		return "to " + destAddr + ": rto " + rto() + ", " + estimates + ", "
+				+ unACKedPackets.size() + " unACKed, " + retransmissions + " resent";
 	}
 }
@@ -251,13 +251,13 @@ public class TwitterNode extends MCCNode {
 
 		//create(filename);
 		mapUUIDs(transactionId, TwitterOp.CREATE, Arrays.asList(user + " " + password));
-		Log.i(TAG, "idMap: " + idMap);
+		Log.i(TAG, "idMap: %s", idMap);
 		
 		NFSTransaction.Builder b = new NFSTransaction.Builder(transactionId, this.userToken);
 		b.createFile_newUser(filename, user, password);
 		
 		submitTransaction(b.build());
-		Log.i(TAG, "SENDING SUBMIT TRANSACTION FOR CREATE USER: 	" + user);
+		Log.i(TAG, "SENDING SUBMIT TRANSACTION FOR CREATE USER: 	%s", user);
 		System.out.println("create user commit sent"); 
 	}
 	
@@ -270,7 +270,7 @@ public class TwitterNode extends MCCNode {
 		args.add(user);
 		args.add(password);
 		mapUUIDs(transactionId, TwitterOp.LOGIN, args);
-    Log.d(TAG, String.format("security token %s", args));
+    Log.d(TAG, "security token %s", args);
 		
 		NFSTransaction.Builder b = new NFSTransaction.Builder(transactionId,(user + "|" + password).getBytes());
 		b.touchFile(filename);
@@ -382,8 +382,8 @@ public class TwitterNode extends MCCNode {
 	// Assumes cache is up to date
 	@Override
 	public void onMCCResponse(Integer from, int tid, boolean success, Pair<Boolean,byte[]> securityResponse) {
-		Log.i(TAG, "From: " + from + ", tid: "+ tid + ", success: "+ success + ", securityResponse");
-    Log.d(TAG, idMap.toString());
+		Log.i(TAG, "From: %d, tid: %d, success: %s, securityResponse", from, tid, success);
+    Log.d(TAG, "%s", idMap);
 		waitingForResponse = false;
 		Pair<TwitterOp, List<String>> p = idMap.remove(tid);
 		if (p == null) {
@@ -391,8 +391,8 @@ public class TwitterNode extends MCCNode {
 			// If it already happened on the server, it will not do it twice.
 			Pair<String, Integer> peek = commandQueue.peek();
 			if (peek != null) {
-				Log.i(TAG, "tid: " + tid);
-				Log.i(TAG, "idMap: " + idMap);
+				Log.i(TAG, "tid: %d", tid);
+				Log.i(TAG, "idMap: %s", idMap);
 				Log.i(TAG, "POOP");
 				doCommand(peek.a, peek.b);
 			}
@@ -416,7 +416,7 @@ public class TwitterNode extends MCCNode {
 			case LOGIN: 
 				username = extraInfo.get(0);
 
-        Log.d(TAG, String.format("security response %s", securityResponse));
+        Log.d(TAG, "security response %s", securityResponse);
 				userToken = securityResponse.b;
         String userTokenString = Utility.bytesToHexString(userToken);
 				String filename = username + "_followers.txt";
@@ -424,7 +424,7 @@ public class TwitterNode extends MCCNode {
 					if (exists(filename)) {
 						System.out.println("You are logged in as " + username);
 						
-            Log.d(TAG, String.format("SECURITY response %s", securityResponse));
+            Log.d(TAG, "SECURITY response %s", securityResponse);
 						nfsService.delete(USER_FILE);
 			            nfsService.append(USER_FILE, username + "\n" + userTokenString); 
 						
@@ -562,14 +562,14 @@ public class TwitterNode extends MCCNode {
 	private void pollCommand(int currentTid) {
 		RIOLayer.responseFinalized(currentTid); // We're done with the old response.
 		ccl.deleteLog(currentTid);
-		Log.i(TAG, commandQueue.toString());
+		Log.i(TAG, "%s", commandQueue);
 		commandQueue.poll(); // Dequeue the current command
 		idMap.put(currentTid, new Pair(TwitterOp.LOGOUT, Arrays.asList("ALREADY_COMPLETED")));
-		Log.i(TAG, "response finalized for: " + currentTid);
-		Log.i(TAG, commandQueue.toString());
+		Log.i(TAG, "response finalized for: %d", currentTid);
+		Log.i(TAG, "%s", commandQueue);
 		if (commandQueue.size() > 0) {
 			Pair<String, Integer> commandAndTid = commandQueue.peek();
-			Log.i(TAG, commandAndTid.toString());
+			Log.i(TAG, "%s", commandAndTid);
 			doCommand(commandAndTid.a, commandAndTid.b);
 		}
 	}
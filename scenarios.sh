@@ -0,0 +1,9 @@
+#!/bin/bash
+
+# Builds the benchmark module and runs the end-to-end scenarios at several
+# node counts, printing a tab separated report. Any arguments are passed on
+# to ScenarioBenchmark, e.g. "./scenarios.sh --sizes=4,8 -o report.tsv"
+# appends a report for two cluster sizes to report.tsv.
+
+(cd bench && mvn -q -B package) || exit 1
+java -cp bench/target/benchmarks.jar:./jars/plume.jar:./jars/java-json.jar edu.washington.cs.cse490h.lib.ScenarioBenchmark "$@"